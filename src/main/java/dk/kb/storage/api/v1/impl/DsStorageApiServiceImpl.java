@@ -3,14 +3,21 @@ package dk.kb.storage.api.v1.impl;
 import dk.kb.storage.api.v1.DsStorageApi;
 import dk.kb.storage.config.ServiceConfig;
 import dk.kb.storage.facade.DsStorageFacade;
+import dk.kb.storage.facade.ExportProgress;
+import dk.kb.storage.model.v1.DsRecordBulkResultDto;
 import dk.kb.storage.model.v1.DsRecordDto;
 import dk.kb.storage.model.v1.OriginCountDto;
 import dk.kb.storage.model.v1.OriginDto;
 import dk.kb.storage.model.v1.RecordTypeDto;
 import dk.kb.storage.model.v1.RecordsCountDto;
 import dk.kb.storage.model.v1.TranscriptionDto;
-import dk.kb.util.Pair;
+import dk.kb.storage.storage.PagingInfo;
+import dk.kb.storage.storage.RecordJSONWriter;
+import dk.kb.storage.storage.RecordRowMapper;
+import dk.kb.storage.util.ExportCompression;
+import dk.kb.storage.util.MinimalRecordsBinary;
 import dk.kb.util.webservice.ImplBase;
+import dk.kb.util.webservice.exception.InvalidArgumentServiceException;
 import dk.kb.util.webservice.stream.ExportWriter;
 import dk.kb.util.webservice.stream.ExportWriterFactory;
 import dk.kb.util.webservice.stream.ContinuationUtil;
@@ -27,9 +34,15 @@ import javax.validation.Valid;
 import javax.validation.constraints.NotNull;
 import javax.ws.rs.core.*;
 import javax.ws.rs.ext.Providers;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * ds-storage
@@ -43,6 +56,13 @@ public class DsStorageApiServiceImpl extends ImplBase implements DsStorageApi {
 
     private static final Logger log = LoggerFactory.getLogger(DsStorageApiServiceImpl.class);
 
+    private static final String MIME_NDJSON = "application/x-ndjson";
+    private static final String HEADER_PAGING_CONTINUATION_TOKEN = "Paging-Continuation-Token";
+    private static final String HEADER_PAGING_HAS_MORE = "Paging-Has-More";
+    private static final String HEADER_PAGING_RECORD_COUNT = "Paging-Record-Count";
+    private static final List<String> PAGING_HEADERS = List.of(
+            HEADER_PAGING_CONTINUATION_TOKEN, HEADER_PAGING_HAS_MORE, HEADER_PAGING_RECORD_COUNT);
+
     /*
      * How to access the various web contexts. See
      * https://cxf.apache.org/docs/jax-rs-basics.html#JAX-RSBasics-Contextannotations
@@ -101,34 +121,56 @@ public class DsStorageApiServiceImpl extends ImplBase implements DsStorageApi {
 
     }
     @Override
-    public StreamingOutput getRecordsModifiedAfter(String origin,RecordTypeDto recordType, Long mTime, Long maxRecords) {
+    public StreamingOutput getRecordsModifiedAfter(String origin,RecordTypeDto recordType, Long mTime, Long maxRecords, String fields) {
         if (recordType != null) {
+            if (fields != null && !fields.isBlank()) {
+                throw new InvalidArgumentServiceException("fields cannot be combined with recordType");
+            }
             return getRecordsByRecordTypeModifiedAfterLocalTree(origin,recordType, mTime,  maxRecords);
         }
         else {
-            return getRecordsModifiedAfterNoLocalTree( origin, mTime, maxRecords);   
+            return getRecordsModifiedAfterNoLocalTree( origin, mTime, maxRecords, fields);   
             
         }       
     }
     
-    private StreamingOutput getRecordsModifiedAfterNoLocalTree(String origin, Long mTime, Long maxRecords) {
+    private StreamingOutput getRecordsModifiedAfterNoLocalTree(String origin, Long mTime, Long maxRecords, String fields) {
         try {
-            log.debug("getRecordsModifiedAfter(origin='{}', mTime={}, maxRecords={}) with batchSize={} " +
+            log.debug("getRecordsModifiedAfter(origin='{}', mTime={}, maxRecords={}, fields='{}') with batchSize={} " +
                       "called with call details: {}",
-                      origin, mTime, maxRecords, ServiceConfig.getDBBatchSize(), getCallDetails());
+                      origin, mTime, maxRecords, fields, ServiceConfig.getDBBatchSize(), getCallDetails());
+            // Resolved before streaming starts so unknown fields are reported as 400
+            RecordRowMapper mapper = RecordRowMapper.forFields(fields);
             // Both mTime and maxRecords defaults should be set in the OpenAPI YAML, but the current version of
             // the OpenAPI generator does not support defaults for longs (int64)
             long finalMTime = mTime == null ? 0L : mTime;
             long finalMaxRecords = maxRecords == null ? 1000L : maxRecords;
 
-            // Count records in the origin we are extracting from
-            long recordsInOrigin = DsStorageFacade.countRecordsInOrigin(origin, finalMTime);
-            setHeaders(finalMTime, finalMaxRecords, DsStorageFacade.getMaxMtimeAfter(origin, finalMTime, finalMaxRecords), recordsInOrigin);
-
+            ExportWriterFactory.FORMAT format = getExportFormat();
+            ExportCompression compression = negotiateExportCompression();
+            // With trailers, the paging information is not calculated up front, which would reject invalid requests
+            DsStorageFacade.validateExport(origin, finalMaxRecords);
+            AtomicReference<Map<String, String>> trailers = setupPagingTrailers();
+            if (trailers == null) {
+                setHeaders(finalMTime, finalMaxRecords, getExtension(format), DsStorageFacade.getPagingInfo(origin, null, finalMTime, finalMaxRecords));
+            } else {
+                setContentDispositionHeader(finalMTime, finalMaxRecords, getExtension(format));
+            }
+            ExportProgress progress = new ExportProgress(finalMTime);
+
+            // Precomputed JSON for the data can only be spliced into the output by the passthrough writer
+            if (ServiceConfig.isDBExportPassthrough() || ServiceConfig.isPrecomputedJSON(origin)) {
+                return output -> {
+                    try (RecordJSONWriter writer = openRecordJSONWriter(output, format, compression)) {
+                        DsStorageFacade.getRecordsModifiedAfter(writer, origin, finalMTime, finalMaxRecords, ServiceConfig.getDBBatchSize(), progress, mapper);
+                        setPagingTrailers(trailers, origin, null, progress, finalMaxRecords);
+                    }
+                };
+            }
             return output -> {
-                try (ExportWriter writer = ExportWriterFactory.wrap(
-                        output, httpServletResponse, ExportWriterFactory.FORMAT.json, false, "records")) {
-                    DsStorageFacade.getRecordsModifiedAfter(writer, origin, finalMTime, finalMaxRecords, ServiceConfig.getDBBatchSize());
+                try (ExportWriter writer = openExportWriter(output, format, compression)) {
+                    DsStorageFacade.getRecordsModifiedAfter(writer, origin, finalMTime, finalMaxRecords, ServiceConfig.getDBBatchSize(), progress, mapper);
+                    setPagingTrailers(trailers, origin, null, progress, finalMaxRecords);
                 }
             };
         } catch (Exception e){
@@ -147,13 +189,22 @@ public class DsStorageApiServiceImpl extends ImplBase implements DsStorageApi {
             long finalMTime = mTime == null ? 0L : mTime;
             long finalMaxRecords = maxRecords == null ? 1000L : maxRecords;
 
-            long recordsInOrigin = DsStorageFacade.countRecordsInOrigin(origin, finalMTime); //TODO Victor. Shouldn't this also use recordType when counting?
-            setHeaders(finalMTime, finalMaxRecords, DsStorageFacade.getMaxMtimeAfter(origin, finalMTime, finalMaxRecords), recordsInOrigin);
+            ExportWriterFactory.FORMAT format = getExportFormat();
+            ExportCompression compression = negotiateExportCompression();
+            // With trailers, the paging information is not calculated up front, which would reject invalid requests
+            DsStorageFacade.validateExport(origin, finalMaxRecords);
+            AtomicReference<Map<String, String>> trailers = setupPagingTrailers();
+            if (trailers == null) {
+                setHeaders(finalMTime, finalMaxRecords, getExtension(format), DsStorageFacade.getPagingInfo(origin, recordType, finalMTime, finalMaxRecords));
+            } else {
+                setContentDispositionHeader(finalMTime, finalMaxRecords, getExtension(format));
+            }
+            ExportProgress progress = new ExportProgress(finalMTime);
 
             return output -> {
-                try (ExportWriter writer = ExportWriterFactory.wrap(
-                        output, httpServletResponse, ExportWriterFactory.FORMAT.json, false, "records")) {
-                    DsStorageFacade.getRecordsByRecordTypeModifiedAfterWithLocalTree(writer, origin, recordType, finalMTime, finalMaxRecords, ServiceConfig.getDBBatchSize());
+                try (ExportWriter writer = openExportWriter(output, format, compression)) {
+                    DsStorageFacade.getRecordsByRecordTypeModifiedAfterWithLocalTree(writer, origin, recordType, finalMTime, finalMaxRecords, ServiceConfig.getDBBatchSize(), progress);
+                    setPagingTrailers(trailers, origin, recordType, progress, finalMaxRecords);
                 }
             };
         } catch (Exception e){
@@ -167,22 +218,61 @@ public class DsStorageApiServiceImpl extends ImplBase implements DsStorageApi {
      * explicitly: Content-Disposition, Paging-Continuation-Token, Paging-Has-More and Paging-Record-Count.
      * @param finalMTime is used to determine how to set the Content-Disposition header.
      * @param finalMaxRecords is used to determine how to set the Content-Disposition header.
-     * @param continuationPair contains the values for the Paging-Continuation-Token and Paging-Has-More headers.
-     *                         See {@link DsStorageFacade#getMaxMtimeAfter(String, long, long)} and
-     *                         {@link DsStorageFacade#getMaxMtimeAfter(String, RecordTypeDto, long, long)} for explanation.
-     * @param recordsInOrigin the amount of records available from the backing DsStorage during the call.
+     * @param extension the file extension for the format of the export, used in the Content-Disposition header.
+     * @param pagingInfo contains the values for the Paging-Continuation-Token, Paging-Has-More and
+     *                   Paging-Record-Count headers.
+     *                   See {@link DsStorageFacade#getPagingInfo(String, RecordTypeDto, long, long)} for explanation.
+     */
+    private void setHeaders(long finalMTime, long finalMaxRecords, String extension, PagingInfo pagingInfo) {
+        setContentDispositionHeader(finalMTime, finalMaxRecords, extension);
+        ContinuationUtil.setHeaders(httpServletResponse, pagingInfo.getContinuation());
+        ContinuationUtil.setHeaderRecordCount(httpServletResponse, pagingInfo.getRecordCount());
+    }
+
+    /**
+     * If the client has announced that it accepts trailers with the request header {@code TE: trailers}, the paging
+     * headers Paging-Continuation-Token, Paging-Has-More and Paging-Record-Count are delivered as HTTP trailers after
+     * the records instead of as headers. This means that streaming can start without counting the records first.
+     * <p>
+     * Clients that do not send {@code TE: trailers} or requests where the protocol does not support trailers
+     * (e.g. HTTP/1.0) get the paging headers as normal headers.
+     * @return holder for the trailer fields that must be filled when the export has finished or null if trailers
+     *         are not used.
      */
-    private void setHeaders(long finalMTime, long finalMaxRecords, Pair<Long, Boolean> continuationPair, long recordsInOrigin) {
-        setContentDispositionHeader(finalMTime, finalMaxRecords);
-        ContinuationUtil.setHeaders(httpServletResponse, continuationPair);
-
-        // Figure which value is the correct amount to be used for the Paging-Record-Count header.
-        long returnedRecords = Math.min(finalMaxRecords, recordsInOrigin);
-        if (finalMaxRecords == -1L){
-            returnedRecords = recordsInOrigin;
+    private AtomicReference<Map<String, String>> setupPagingTrailers() {
+        String te = httpServletRequest.getHeader("TE");
+        if (te == null || !te.toLowerCase(Locale.ROOT).contains("trailers")) {
+            return null;
         }
+        AtomicReference<Map<String, String>> trailers = new AtomicReference<>(Collections.emptyMap());
+        try {
+            httpServletResponse.setTrailerFields(trailers::get);
+        } catch (IllegalStateException e) {
+            log.debug("Trailers are not supported for the response. Paging information is delivered as headers: {}",
+                      e.getMessage());
+            return null;
+        }
+        httpServletResponse.setHeader("Trailer", String.join(", ", PAGING_HEADERS));
+        return trailers;
+    }
 
-        ContinuationUtil.setHeaderRecordCount(httpServletResponse, returnedRecords);
+    /**
+     * Calculate the paging information for a finished export and set it as trailer fields.
+     * Does nothing if trailers is null.
+     */
+    private void setPagingTrailers(AtomicReference<Map<String, String>> trailers, String origin,
+                                   RecordTypeDto recordType, ExportProgress progress, long maxRecords) {
+        if (trailers == null) {
+            return;
+        }
+        PagingInfo pagingInfo = DsStorageFacade.getPagingInfo(origin, recordType, progress, maxRecords);
+        Map<String, String> fields = new HashMap<>();
+        if (pagingInfo.getLastMTime() != null) {
+            fields.put(HEADER_PAGING_CONTINUATION_TOKEN, Long.toString(pagingInfo.getLastMTime()));
+        }
+        fields.put(HEADER_PAGING_HAS_MORE, Boolean.toString(pagingInfo.hasMore()));
+        fields.put(HEADER_PAGING_RECORD_COUNT, Long.toString(pagingInfo.getRecordCount()));
+        trailers.set(fields);
     }
 
     /**
@@ -190,9 +280,10 @@ public class DsStorageApiServiceImpl extends ImplBase implements DsStorageApi {
      * @param finalMTime value used to construct the filename used on in header.
      * @param finalMaxRecords amount of records being requested. If this value is more than 2, then the response is
      *                        shown inline.
+     * @param extension the file extension for the format of the export, e.g. {@code .json}.
      */
-    private void setContentDispositionHeader(long finalMTime, long finalMaxRecords) {
-        String filename = "records_" + finalMTime + ".json";
+    private void setContentDispositionHeader(long finalMTime, long finalMaxRecords, String extension) {
+        String filename = "records_" + finalMTime + extension;
         if (finalMaxRecords < 2) { // The Swagger GUI is extremely sluggish for inline rendering
             // A few records is ok to show inline in the Swagger GUI:
             // Show inline in Swagger UI, inline when opened directly in browser
@@ -205,6 +296,138 @@ public class DsStorageApiServiceImpl extends ImplBase implements DsStorageApi {
         }
     }
 
+    /**
+     * @return the file extension for the export format: {@code .jsonl} for NDJSON, else {@code .json}.
+     */
+    private static String getExtension(ExportWriterFactory.FORMAT format) {
+        return format == ExportWriterFactory.FORMAT.jsonl ? ".jsonl" : ".json";
+    }
+
+    /**
+     * Select the format for an export from the Accept header of the request: NDJSON (one record per line) if the
+     * client prefers {@code application/x-ndjson} at least as much as JSON, else a JSON array.
+     * @return {@link ExportWriterFactory.FORMAT#jsonl} or {@link ExportWriterFactory.FORMAT#json}.
+     */
+    private ExportWriterFactory.FORMAT getExportFormat() {
+        Map<String, Double> qualities = getAcceptQualities();
+        double ndjsonQuality = qualities.getOrDefault(MIME_NDJSON, 0.0);
+        return ndjsonQuality > 0.0 && ndjsonQuality >= getJSONQuality(qualities) ?
+                ExportWriterFactory.FORMAT.jsonl : ExportWriterFactory.FORMAT.json;
+    }
+
+    /**
+     * @return true if the client prefers the binary format for minimal records {@link MinimalRecordsBinary#MIME_TYPE}
+     *         at least as much as JSON and NDJSON in the Accept header of the request.
+     */
+    private boolean isMinimalRecordsBinaryAccepted() {
+        Map<String, Double> qualities = getAcceptQualities();
+        double binaryQuality = qualities.getOrDefault(MinimalRecordsBinary.MIME_TYPE, 0.0);
+        return binaryQuality > 0.0 && binaryQuality >= getJSONQuality(qualities) &&
+               binaryQuality >= qualities.getOrDefault(MIME_NDJSON, 0.0);
+    }
+
+    /**
+     * @return the quality for JSON, which is also accepted by {@code application/*} and {@code *}{@code /*}.
+     */
+    private static double getJSONQuality(Map<String, Double> qualities) {
+        return Math.max(qualities.getOrDefault(MediaType.APPLICATION_JSON, 0.0),
+                        Math.max(qualities.getOrDefault("application/*", 0.0), qualities.getOrDefault("*/*", 0.0)));
+    }
+
+    /**
+     * Parse the Accept header of the request.
+     * @return map from lowercased media type without parameters to the quality. If there is no Accept header,
+     *         {@code *}{@code /*} is accepted with quality 1.
+     */
+    private Map<String, Double> getAcceptQualities() {
+        Map<String, Double> qualities = new HashMap<>();
+        String accept = httpServletRequest.getHeader(HttpHeaders.ACCEPT);
+        if (accept == null || accept.isBlank()) {
+            qualities.put("*/*", 1.0);
+            return qualities;
+        }
+        for (String part : accept.split(",")) {
+            String[] tokens = part.split(";");
+            String type = tokens[0].trim().toLowerCase(Locale.ROOT);
+            double quality = 1.0;
+            for (int i = 1 ; i < tokens.length ; i++) {
+                String parameter = tokens[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0.0;
+                    }
+                }
+            }
+            qualities.merge(type, quality, Math::max);
+        }
+        return qualities;
+    }
+
+    /**
+     * Select the compression for an export from the Accept-Encoding header of the request and the encodings offered
+     * in {@code db.export.contentEncodings}. The Content-Encoding header is not set here, but by
+     * {@link #compress(OutputStream, ExportCompression)} when streaming starts, so error responses for requests that
+     * fail before that are not labelled as compressed.
+     * @return the compression to use or null if the export is not compressed.
+     */
+    private ExportCompression negotiateExportCompression() {
+        httpServletResponse.addHeader(HttpHeaders.VARY, "Accept, Accept-Encoding");
+        return ExportCompression.negotiate(
+                httpServletRequest.getHeader(HttpHeaders.ACCEPT_ENCODING),
+                ExportCompression.parseList(ServiceConfig.getDBExportContentEncodings()));
+    }
+
+    /**
+     * Set the Content-Encoding header and compress the output of an export. Must be called before anything is written
+     * to the output.
+     * @param output the output stream for the response.
+     * @param compression the compression from {@link #negotiateExportCompression()}. Null means no compression.
+     * @return the output stream to write the export to.
+     */
+    private OutputStream compress(OutputStream output, ExportCompression compression) throws IOException {
+        if (compression == null) {
+            return output;
+        }
+        httpServletResponse.setHeader(HttpHeaders.CONTENT_ENCODING, compression.getEncoding());
+        return compression.compress(output);
+    }
+
+    /**
+     * Create the writer for an export in the given format, compressing the output if requested. Closing the writer
+     * finishes the compressed data.
+     * @param output the output stream for the response.
+     * @param format {@link ExportWriterFactory.FORMAT#json} or {@link ExportWriterFactory.FORMAT#jsonl}.
+     * @param compression the compression from {@link #negotiateExportCompression()}. Null means no compression.
+     * @return a writer for the records.
+     */
+    private ExportWriter openExportWriter(
+            OutputStream output, ExportWriterFactory.FORMAT format, ExportCompression compression) throws IOException {
+        OutputStream encoded = compress(output, compression);
+        ExportWriter writer = ExportWriterFactory.wrap(encoded, httpServletResponse, format, false, "records");
+        if (format == ExportWriterFactory.FORMAT.jsonl) {
+            httpServletResponse.setContentType(MIME_NDJSON);
+        }
+        return writer;
+    }
+
+    /**
+     * Create the passthrough writer for an export in the given format, compressing the output if requested.
+     * Closing the writer finishes the compressed data.
+     * @param output the output stream for the response.
+     * @param format {@link ExportWriterFactory.FORMAT#json} or {@link ExportWriterFactory.FORMAT#jsonl}.
+     * @param compression the compression from {@link #negotiateExportCompression()}. Null means no compression.
+     * @return a writer for records read directly from the database.
+     */
+    private RecordJSONWriter openRecordJSONWriter(
+            OutputStream output, ExportWriterFactory.FORMAT format, ExportCompression compression) throws IOException {
+        OutputStream encoded = compress(output, compression);
+        boolean lines = format == ExportWriterFactory.FORMAT.jsonl;
+        httpServletResponse.setContentType(lines ? MIME_NDJSON : MediaType.APPLICATION_JSON);
+        return new RecordJSONWriter(encoded, lines);
+    }
+
     @Override
     public void recordPost(DsRecordDto dsRecordDto) {
         try {
@@ -217,6 +440,20 @@ public class DsStorageApiServiceImpl extends ImplBase implements DsStorageApi {
 
     }
 
+    @Override
+    public DsRecordBulkResultDto createOrUpdateRecords(List<DsRecordDto> dsRecordDtos) {
+        try {
+            log.debug("createOrUpdateRecords(#records={}) called with call details: {}",
+                      dsRecordDtos == null ? 0 : dsRecordDtos.size(), getCallDetails());
+            if (dsRecordDtos == null) {
+                throw new InvalidArgumentServiceException("A list of records must be given");
+            }
+            return DsStorageFacade.createOrUpdateRecords(dsRecordDtos);
+        } catch (Exception e) {
+            throw handleException(e);
+        }
+    }
+
     @Override
     public RecordsCountDto touchRecord(String recordId) {
         try {
@@ -335,13 +572,36 @@ public class DsStorageApiServiceImpl extends ImplBase implements DsStorageApi {
         long finalMTime = mTime == null ? 0L : mTime;
         long finalMaxRecords = maxRecords == null ? 1000L : maxRecords;
 
-        long recordsInOrigin = DsStorageFacade.countRecordsInOrigin(origin, finalMTime); //TODO Victor. Shouldn't this also use recordType when counting?
-        setHeaders(finalMTime, finalMaxRecords, DsStorageFacade.getMaxMtimeAfter(origin, finalMTime, finalMaxRecords), recordsInOrigin);
+        boolean binary = isMinimalRecordsBinaryAccepted();
+        ExportWriterFactory.FORMAT format = getExportFormat();
+        String extension = binary ? ".bin" : getExtension(format);
+        ExportCompression compression = negotiateExportCompression();
+        // With trailers, the paging information is not calculated up front, which would reject invalid requests
+        DsStorageFacade.validateExport(origin, finalMaxRecords);
+        AtomicReference<Map<String, String>> trailers = setupPagingTrailers();
+        if (trailers == null) {
+            setHeaders(finalMTime, finalMaxRecords, extension, DsStorageFacade.getPagingInfo(origin, null, finalMTime, finalMaxRecords));
+        } else {
+            setContentDispositionHeader(finalMTime, finalMaxRecords, extension);
+        }
+        ExportProgress progress = new ExportProgress(finalMTime);
 
+        if (binary) {
+            httpServletResponse.setContentType(MinimalRecordsBinary.MIME_TYPE);
+            return output -> {
+                OutputStream encoded = compress(output, compression);
+                try (MinimalRecordsBinary.Writer writer = new MinimalRecordsBinary.Writer(encoded)) {
+                    DsStorageFacade.getMinimalRecordsModifiedAfter(writer, origin, finalMTime, finalMaxRecords, ServiceConfig.getDBBatchSize(), progress);
+                    // Without the end marker the client can see that the export failed
+                    writer.finish();
+                    setPagingTrailers(trailers, origin, null, progress, finalMaxRecords);
+                }
+            };
+        }
         return output -> {
-            try (ExportWriter writer = ExportWriterFactory.wrap(
-                    output, httpServletResponse, ExportWriterFactory.FORMAT.json, false, "records")) {
-                DsStorageFacade.getMinimalRecordsModifiedAfter(writer, origin, finalMTime, finalMaxRecords, ServiceConfig.getDBBatchSize());
+            try (ExportWriter writer = openExportWriter(output, format, compression)) {
+                DsStorageFacade.getMinimalRecordsModifiedAfter(writer, origin, finalMTime, finalMaxRecords, ServiceConfig.getDBBatchSize(), progress);
+                setPagingTrailers(trailers, origin, null, progress, finalMaxRecords);
             }
         };
     }
@@ -6,6 +6,7 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Set;
 
+import dk.kb.storage.facade.DsStorageFacade;
 import dk.kb.storage.model.v1.StatusDto;
 import dk.kb.storage.model.v1.WhoamiDto;
 import dk.kb.storage.model.v1.WhoamiTokenDto;
@@ -87,6 +88,9 @@ public class ServiceApiServiceImpl extends ImplBase implements ServiceApi {
                 .gitBranch(BuildInfoManager.getGitBranch())
                 .gitClosestTag(BuildInfoManager.getGitClosestTag())
                 .gitCommitTime(BuildInfoManager.getGitCommitTime())
+                .databasePool(DsStorageFacade.getDatabasePoolStatus())
+                .databaseReadReplicaPool(DsStorageFacade.getDatabaseReadReplicaPoolStatus())
+                .recordCache(DsStorageFacade.getRecordCacheStatus())
                 .health("ok");
     }
 
@@ -2,8 +2,9 @@ package dk.kb.storage.config;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-
+import java.util.Set;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -21,9 +22,19 @@ public class ServiceConfig {
 	  private static final Logger log = LoggerFactory.getLogger(ServiceConfig.class);
 
 	  public static final int DB_BATCH_SIZE_DEFAULT = 100;
+	  public static final int DB_FETCH_SIZE_DEFAULT = 1000;
+	  public static final int DB_BULK_TRANSACTION_SIZE_DEFAULT = 500;
+	  public static final int DB_STATEMENT_CACHE_SIZE_DEFAULT = 100;
+	  public static final int DB_PREPARE_THRESHOLD_DEFAULT = 5;
+	  public static final int DB_POOL_MAX_WAIT_MILLIS_DEFAULT = 10000;
+	  public static final int DB_TREE_MAX_NODES_DEFAULT = 10000;
+	  public static final int RECORD_CACHE_MAX_BYTES_DEFAULT = 64*1024*1024;
+	  public static final int RECORD_CACHE_MAX_RECORD_BYTES_DEFAULT = 1024*1024;
 
 	//key is origin
 	private static final HashMap<String,OriginDto> allowedOrigins = new HashMap<>();
+	//origins with precomputeJSON: true
+	private static final Set<String> precomputedJSONOrigins = new HashSet<>();
     
 	
 	/**
@@ -61,6 +72,10 @@ public class ServiceConfig {
 			originDto.setUpdateStrategy(UpdateStrategyDto.valueOf(updateStrategy));                	
 			allowedOrigins.put(name, originDto);
             log.info("Updatestrategy loaded for origin: '{}' with update strategy: '{}'", originDto.getName(), originDto.getUpdateStrategy());
+			if (origin.getBoolean("precomputeJSON", false)) {
+				precomputedJSONOrigins.add(name);
+				log.info("Precomputed JSON for data enabled for origin: '{}'", name);
+			}
 		}
 
 		log.info("Allowed origin loaded from config. Number of origins: '{}'", allowedOrigins.size());
@@ -97,10 +112,302 @@ public class ServiceConfig {
 		return serviceConfig.getInteger("db.batch.size", DB_BATCH_SIZE_DEFAULT);
 	}
 
+	/**
+	 * If true, record exports are delivered from a single query with a server side cursor instead of
+	 * one query for each batch.
+	 * @return true if exports should be streamed. Default is false.
+	 */
+	public static boolean isDBExportStreaming() {
+		return serviceConfig.getBoolean("db.export.streaming", false);
+	}
+
+	/**
+	 * If true, record exports without recordType are written directly from the database rows to the output, with the
+	 * data for the records streamed from the JDBC driver instead of being loaded as records first.
+	 * @return true if exports should use passthrough of the data. Default is false.
+	 */
+	public static boolean isDBExportPassthrough() {
+		return serviceConfig.getBoolean("db.export.passthrough", false);
+	}
+
+	/**
+	 * @return the number of rows fetched from the database in each round trip when streaming exports.
+	 */
+	public static int getDBFetchSize() {
+		return serviceConfig.getInteger("db.export.fetchSize", DB_FETCH_SIZE_DEFAULT);
+	}
+
+	/**
+	 * If larger than 0, the next batches of a record export are fetched by a separate thread while the current batch
+	 * is written. Only used when exports are not streamed.
+	 * @return the maximum number of fetched batches waiting to be written. Default is 0 (no prefetching).
+	 */
+	public static int getDBExportPrefetchDepth() {
+		return serviceConfig.getInteger("db.export.prefetchDepth", 0);
+	}
+
+	/**
+	 * @return comma separated {@code Content-Encoding}s offered for {@code /records} and {@code /records/minimal}
+	 *         in order of preference. Empty means that exports are never compressed. Default is {@code zstd,gzip}.
+	 */
+	public static String getDBExportContentEncodings() {
+		return serviceConfig.getString("db.export.contentEncodings", "zstd,gzip");
+	}
+
+	/**
+	 * @return the maximum number of records written in each transaction when creating or updating records in bulk.
+	 */
+	public static int getDBBulkTransactionSize() {
+		return serviceConfig.getInteger("db.bulk.transactionSize", DB_BULK_TRANSACTION_SIZE_DEFAULT);
+	}
+
+	/**
+	 * @return the allocator for mTimes: {@code jvm} (default) for a single ds-storage instance or {@code database}
+	 *         when more than one ds-storage instance writes to the same database.
+	 */
+	public static String getMTimeAllocatorType() {
+		return serviceConfig.getString("db.mTimeAllocator.type", "jvm");
+	}
+
+	/**
+	 * @return the number of mTimes fetched from the database in each round trip for the {@code database} allocator.
+	 */
+	public static int getMTimeAllocatorBlockSize() {
+		return serviceConfig.getInteger("db.mTimeAllocator.blockSize", 1000);
+	}
+
+	/**
+	 * @return the maximum age in milliseconds of a block of mTimes for the {@code database} allocator.
+	 */
+	public static long getMTimeAllocatorMaxBlockAgeMillis() {
+		return serviceConfig.getInteger("db.mTimeAllocator.maxBlockAgeMillis", 1000);
+	}
+
+	/**
+	 * @return the time in milliseconds, in addition to the maximum block age, that records are held back from
+	 *         harvesting by mTime with the {@code database} allocator. Covers the time from allocation of an mTime to
+	 *         the commit of the write and clock differences between instances.
+	 */
+	public static long getMTimeAllocatorHarvestMarginMillis() {
+		return serviceConfig.getInteger("db.mTimeAllocator.harvestMarginMillis", 5000);
+	}
+
+	/**
+	 * If true, prepared statements are pooled for each connection in the connection pool, so statements are
+	 * reused across calls instead of being prepared for every call.
+	 * @return true if prepared statements should be pooled. Default is true.
+	 */
+	public static boolean isDBStatementCacheEnabled() {
+		return serviceConfig.getBoolean("db.statementCache.enabled", true);
+	}
+
+	/**
+	 * @return the maximum number of pooled prepared statements for each connection.
+	 */
+	public static int getDBStatementCacheSize() {
+		return serviceConfig.getInteger("db.statementCache.maxOpenStatements", DB_STATEMENT_CACHE_SIZE_DEFAULT);
+	}
+
+	/**
+	 * @return the number of executions of a prepared statement before the PostgreSQL driver switches to a server side
+	 *         prepared statement. 0 disables server side prepared statements. Not used for other databases.
+	 */
+	public static int getDBPrepareThreshold() {
+		return serviceConfig.getInteger("db.statementCache.prepareThreshold", DB_PREPARE_THRESHOLD_DEFAULT);
+	}
+
+	/**
+	 * @return the maximum number of idle connections in the pool. Default is the connection pool size.
+	 */
+	public static int getDBPoolMaxIdle() {
+		return serviceConfig.getInteger("db.pool.maxIdle", getConnectionPoolSize());
+	}
+
+	/**
+	 * @return the minimum number of idle connections kept in the pool by the evictor. Default is 0.
+	 */
+	public static int getDBPoolMinIdle() {
+		return serviceConfig.getInteger("db.pool.minIdle", 0);
+	}
+
+	/**
+	 * @return the maximum number of milliseconds to wait for a connection from the pool before the request fails
+	 *         with 503 Service Unavailable. -1 means wait indefinitely.
+	 */
+	public static long getDBPoolMaxWaitMillis() {
+		return serviceConfig.getInteger("db.pool.maxWaitMillis", DB_POOL_MAX_WAIT_MILLIS_DEFAULT);
+	}
+
+	/**
+	 * @return the query used for validating connections, e.g. {@code SELECT 1}. If empty, connections are validated
+	 *         with {@code Connection.isValid}.
+	 */
+	public static String getDBPoolValidationQuery() {
+		return serviceConfig.getString("db.pool.validationQuery", "");
+	}
+
+	/**
+	 * @return true if connections are validated before they are borrowed from the pool. Default is true.
+	 */
+	public static boolean isDBPoolTestOnBorrow() {
+		return serviceConfig.getBoolean("db.pool.testOnBorrow", true);
+	}
+
+	/**
+	 * @return true if idle connections are validated by the evictor. Default is false.
+	 */
+	public static boolean isDBPoolTestWhileIdle() {
+		return serviceConfig.getBoolean("db.pool.testWhileIdle", false);
+	}
+
+	/**
+	 * @return milliseconds between runs of the evictor for idle connections. -1 (default) disables the evictor.
+	 */
+	public static long getDBPoolTimeBetweenEvictionRunsMillis() {
+		return serviceConfig.getInteger("db.pool.timeBetweenEvictionRunsMillis", -1);
+	}
+
+	/**
+	 * @return the minimum time in milliseconds a connection can be idle before it can be evicted. Default is 30 minutes.
+	 */
+	public static long getDBPoolMinEvictableIdleTimeMillis() {
+		return serviceConfig.getInteger("db.pool.minEvictableIdleTimeMillis", 1800000);
+	}
+
+	/**
+	 * @return the number of seconds a connection can be borrowed before it is considered abandoned and can be removed.
+	 *         0 (default) disables removal of abandoned connections.
+	 */
+	public static int getDBPoolRemoveAbandonedTimeoutSeconds() {
+		return serviceConfig.getInteger("db.pool.removeAbandonedTimeoutSeconds", 0);
+	}
+
+	/**
+	 * @return the JDBC url for a read replica of the database, e.g. a PostgreSQL hot standby. Read-only requests use
+	 *         the replica instead of the primary database. Empty if no replica is used (default).
+	 */
+	public static String getDBReadReplicaUrl() {
+		return serviceConfig.getString("db.readReplica.url", "");
+	}
+
+	/**
+	 * @return the JDBC driver for the read replica. Default is the driver for the primary database.
+	 */
+	public static String getDBReadReplicaDriver() {
+		return serviceConfig.getString("db.readReplica.driver", getDBDriver());
+	}
+
+	/**
+	 * @return the username for the read replica. Default is the username for the primary database.
+	 */
+	public static String getDBReadReplicaUserName() {
+		return serviceConfig.getString("db.readReplica.username", getDBUserName());
+	}
+
+	/**
+	 * @return the password for the read replica. Default is the password for the primary database.
+	 */
+	public static String getDBReadReplicaPassword() {
+		return serviceConfig.getString("db.readReplica.password", getDBPassword());
+	}
+
+	/**
+	 * @return the maximum number of connections to the read replica. Default is the connection pool size.
+	 */
+	public static int getDBReadReplicaConnectionPoolSize() {
+		return serviceConfig.getInteger("db.readReplica.connectionPoolSize", getConnectionPoolSize());
+	}
+
+	/**
+	 * @return the maximum replication lag in seconds for using the read replica. If the lag is larger, read-only
+	 *         requests use the primary database. Negative means no limit. Default is 60 seconds.
+	 */
+	public static double getDBReadReplicaMaxLagSeconds() {
+		return serviceConfig.getInteger("db.readReplica.maxLagSeconds", 60);
+	}
+
+	/**
+	 * @return the query returning the replication lag in seconds for the read replica. Empty (default) means the
+	 *         query for PostgreSQL hot standby.
+	 */
+	public static String getDBReadReplicaLagQuery() {
+		return serviceConfig.getString("db.readReplica.lagQuery", "");
+	}
+
+	/**
+	 * @return the minimum number of milliseconds between measurements of the replication lag. Default is 5 seconds.
+	 */
+	public static long getDBReadReplicaLagCheckIntervalMillis() {
+		return serviceConfig.getInteger("db.readReplica.lagCheckIntervalMillis", 5000);
+	}
+
+	/**
+	 * @return the maximum number of records in a full record tree. Larger trees are rejected. Default is 10000.
+	 */
+	public static int getDBTreeMaxNodes() {
+		return serviceConfig.getInteger("db.tree.maxNodes", DB_TREE_MAX_NODES_DEFAULT);
+	}
+
+	/**
+	 * @return true if records are cached in memory for single record and record tree lookups. Default is false.
+	 */
+	public static boolean isRecordCacheEnabled() {
+		return serviceConfig.getBoolean("cache.records.enabled", false);
+	}
+
+	/**
+	 * @return the maximum estimated memory usage in bytes for the record cache. Default is 64 MB.
+	 */
+	public static long getRecordCacheMaxBytes() {
+		return serviceConfig.getInteger("cache.records.maxBytes", RECORD_CACHE_MAX_BYTES_DEFAULT);
+	}
+
+	/**
+	 * @return records estimated to use more memory than this number of bytes are not cached. Default is 1 MB.
+	 */
+	public static long getRecordCacheMaxRecordBytes() {
+		return serviceConfig.getInteger("cache.records.maxRecordBytes", RECORD_CACHE_MAX_RECORD_BYTES_DEFAULT);
+	}
+
+	/**
+	 * @return true if the mTime of cached records is checked against the database before they are used. This must be
+	 *         true if more than one ds-storage instance writes to the database. Default is true.
+	 */
+	public static boolean isRecordCacheValidateMTime() {
+		return serviceConfig.getBoolean("cache.records.validateMTime", true);
+	}
+
+	/**
+	 * @return true if export prefetching runs on virtual threads and the number of concurrent storage actions is
+	 *         bounded, when supported by the JVM (Java 21+). Default is false.
+	 */
+	public static boolean isVirtualThreadsEnabled() {
+		return serviceConfig.getBoolean("threads.virtual.enabled", false);
+	}
+
+	/**
+	 * @return the maximum number of storage actions running at the same time when virtual threads are enabled.
+	 *         Default is the size of the connection pool.
+	 */
+	public static int getVirtualThreadsMaxConcurrentStorageActions() {
+		return serviceConfig.getInteger("threads.virtual.maxConcurrentStorageActions", getConnectionPoolSize());
+	}
+
 	public static HashMap<String, OriginDto> getAllowedOrigins() {
 		return allowedOrigins;
 	}
 
+	/**
+	 * If true, the JSON representation of {@code data} is computed when records in the origin are written and stored
+	 * in the column {@code data_json}, so exports can deliver it without escaping the data again.
+	 * Enabled with {@code precomputeJSON: true} for the origin.
+	 * @param origin the origin for the records.
+	 * @return true if JSON for the data is precomputed for the origin. Default is false.
+	 */
+	public static boolean isPrecomputedJSON(String origin) {
+		return origin != null && precomputedJSONOrigins.contains(origin);
+	}
+
 	
 	/**
 	 * Direct access to the backing YAML-class is used for configurations with more flexible content
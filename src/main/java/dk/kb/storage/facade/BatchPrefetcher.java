@@ -0,0 +1,147 @@
+package dk.kb.storage.facade;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.util.webservice.exception.InternalServiceException;
+
+/**
+ * Fetches batches from a {@link BatchSource} in a separate thread, so the next batches are fetched while the caller
+ * processes the current batch, e.g. writes it to a slow client. At most {@code depth} fetched batches are waiting to
+ * be processed, which bounds the memory usage.
+ * <p>
+ * The source is only called from the fetching thread, so it can keep its paging state without synchronization.
+ * The thread does not hold a database connection while waiting for the caller, as each batch is fetched in its own
+ * storage action. Exceptions thrown by the source are thrown by {@link #next()} after the batches fetched before the
+ * exception have been delivered.
+ * <p>
+ * Always {@link #close()} the prefetcher, so the fetching thread stops if the caller does not process all batches.
+ *
+ * @param <T> the type of the elements in the batches.
+ */
+public class BatchPrefetcher<T> implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(BatchPrefetcher.class);
+
+    // How often the fetching thread checks if the prefetcher has been closed while waiting for room in the queue
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+    private final BlockingQueue<List<T>> queue;
+    private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+    private volatile boolean closed = false;
+    private boolean finished = false;
+
+    /**
+     * Create the prefetcher and start fetching batches.
+     * @param name the name of the fetching thread.
+     * @param depth the maximum number of fetched batches waiting to be processed. Must be at least 1.
+     * @param source delivers the batches. An empty batch signals that there are no more batches.
+     */
+    public BatchPrefetcher(String name, int depth, BatchSource<T> source) {
+        this(task -> {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            return thread;
+        }, depth, source);
+    }
+
+    /**
+     * Create the prefetcher and start fetching batches in a thread from the given factory, e.g. a virtual thread.
+     * @param threadFactory creates the fetching thread. The thread must not keep the JVM alive.
+     * @param depth the maximum number of fetched batches waiting to be processed. Must be at least 1.
+     * @param source delivers the batches. An empty batch signals that there are no more batches.
+     */
+    public BatchPrefetcher(ThreadFactory threadFactory, int depth, BatchSource<T> source) {
+        queue = new ArrayBlockingQueue<>(depth);
+        threadFactory.newThread(() -> fetch(source)).start();
+    }
+
+    private void fetch(BatchSource<T> source) {
+        try {
+            List<T> batch;
+            do {
+                batch = source.next();
+            } while (put(batch) && !batch.isEmpty());
+        } catch (RuntimeException e) {
+            failure.set(e);
+            put(Collections.emptyList());
+        } catch (Exception e) {
+            failure.set(new InternalServiceException(e));
+            put(Collections.emptyList());
+        }
+    }
+
+    /**
+     * Add the batch to the queue, waiting for room if the queue is full.
+     * @return false if the prefetcher has been closed, else true.
+     */
+    private boolean put(List<T> batch) {
+        try {
+            while (!closed) {
+                if (queue.offer(batch, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while prefetching batches");
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Get the next batch, waiting for it to be fetched if needed.
+     * @return the next batch. Empty when there are no more batches.
+     * @throws RuntimeException the exception thrown by the source, if any.
+     */
+    public List<T> next() {
+        if (finished) {
+            return Collections.emptyList();
+        }
+        List<T> batch;
+        try {
+            batch = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalServiceException("Interrupted while waiting for the next batch", e);
+        }
+        if (batch.isEmpty()) {
+            finished = true;
+            RuntimeException e = failure.get();
+            if (e != null) {
+                throw e;
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Stop fetching batches. Batches already fetched are discarded.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        queue.clear();
+    }
+
+    /**
+     * Delivers the batches for a {@link BatchPrefetcher}.
+     * @param <T> the type of the elements in the batches.
+     */
+    @FunctionalInterface
+    public interface BatchSource<T> {
+        /**
+         * @return the next batch. Empty if there are no more batches.
+         * @throws Exception if fetching failed. No more batches are requested.
+         */
+        List<T> next() throws Exception;
+    }
+}
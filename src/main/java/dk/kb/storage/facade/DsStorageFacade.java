@@ -2,9 +2,16 @@ package dk.kb.storage.facade;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
 
 import dk.kb.util.Pair;
@@ -14,20 +21,33 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import dk.kb.storage.config.ServiceConfig;
+import dk.kb.storage.model.v1.DatabasePoolStatusDto;
+import dk.kb.storage.model.v1.DsRecordBulkResultDto;
 import dk.kb.storage.model.v1.DsRecordDto;
 import dk.kb.storage.model.v1.DsRecordMinimalDto;
+import dk.kb.storage.model.v1.DsRecordResultDto;
+import dk.kb.storage.model.v1.DsRecordResultStatusDto;
 
 import dk.kb.storage.model.v1.OriginCountDto;
 import dk.kb.storage.model.v1.OriginDto;
+import dk.kb.storage.model.v1.RecordCacheStatusDto;
 import dk.kb.storage.model.v1.RecordTypeDto;
 import dk.kb.storage.model.v1.RecordsCountDto;
 import dk.kb.storage.model.v1.TranscriptionDto;
 import dk.kb.storage.model.v1.UpdateStrategyDto;
+import dk.kb.storage.storage.ConnectionPoolTimeoutException;
 import dk.kb.storage.storage.DsStorage;
+import dk.kb.storage.storage.PagingInfo;
+import dk.kb.storage.storage.RecordJSONWriter;
+import dk.kb.storage.storage.RecordRowMapper;
 import dk.kb.storage.util.IdNormaliser;
+import dk.kb.storage.util.MinimalRecordsBinary;
+import dk.kb.storage.util.VirtualThreads;
+import dk.kb.storage.webservice.exception.ServiceUnavailableServiceException;
 import dk.kb.util.webservice.exception.InternalServiceException;
 import dk.kb.util.webservice.exception.InvalidArgumentServiceException;
 import dk.kb.util.webservice.exception.NotFoundServiceException;
+import dk.kb.util.webservice.exception.ServiceException;
 
 
 
@@ -35,6 +55,14 @@ public class DsStorageFacade {
 
     private static final Logger log = LoggerFactory.getLogger(DsStorageFacade.class);
 
+    private static RecordCache recordCache = null;
+    private static boolean recordCacheInitialized = false;
+
+    // null means use the configuration
+    private static Boolean virtualThreads = null;
+    private static StorageActionLimiter storageActionLimiter = null;
+    private static boolean storageActionLimiterInitialized = false;
+
 
     /**
      * <p>
@@ -50,11 +78,20 @@ public class DsStorageFacade {
      */
     public static  ArrayList<DsRecordMinimalDto>  getReferenceIds(String origin, long mTime, int batchSize)  {                       
         String id = String.format(Locale.ROOT, "getReferenceIds(origin='%s', mTime=%d, batchSize=%d)", origin, mTime, batchSize);
-        return performStorageAction(id, storage -> storage.getReferenceIds(origin, mTime, batchSize));
+        return performReadOnlyStorageAction(id, storage -> storage.getReferenceIds(origin, mTime, batchSize));
     }
 
     public static Long getMinimalRecordsModifiedAfter(
             ExportWriter writer, String origin, long mTime, long maxRecords, int batchSize) {
+        return getMinimalRecordsModifiedAfter(writer, origin, mTime, maxRecords, batchSize, new ExportProgress(mTime));
+    }
+
+    /**
+     * Write minimal records with mTime larger than the given mTime and register the delivered records in progress.
+     * @see #getMinimalRecordsModifiedAfter(ExportWriter, String, long, long, int)
+     */
+    public static Long getMinimalRecordsModifiedAfter(
+            ExportWriter writer, String origin, long mTime, long maxRecords, int batchSize, ExportProgress progress) {
         String id = String.format(Locale.ROOT, "getMinimalRecordsModifiedAfter(origin='%s', mTime=%d, maxRecords=%d, batchSize=%d)",
                 origin, mTime, maxRecords, batchSize);
         long pending = maxRecords == -1 ? Long.MAX_VALUE : maxRecords; // -1 = all records
@@ -62,11 +99,12 @@ public class DsStorageFacade {
         long totalDelivered = 0L;
         while (pending > 0) {
             int request = pending < batchSize ? (int) pending : batchSize;
-            long delivered = performStorageAction(id, storage -> {
+            long delivered = performReadOnlyStorageAction(id, storage -> {
                 ArrayList<DsRecordMinimalDto> records = storage.getReferenceIds(origin, lastMTime.get(), request);
                 writer.writeAll(records);
                 if (!records.isEmpty()) {
                     lastMTime.set(records.get(records.size()-1).getmTime());
+                    progress.delivered(records.size(), lastMTime.get());
                 }
                 return (long)records.size();
             });
@@ -80,6 +118,38 @@ public class DsStorageFacade {
         return totalDelivered;
     }
     
+    /**
+     * Write minimal records with mTime larger than the given mTime in the compact binary format and register the
+     * delivered records in progress. The records are written directly from the database rows without creating
+     * {@link DsRecordMinimalDto}s. The caller must call {@link MinimalRecordsBinary.Writer#finish()} when this method
+     * returns without exceptions.
+     * @see #getMinimalRecordsModifiedAfter(ExportWriter, String, long, long, int)
+     */
+    public static Long getMinimalRecordsModifiedAfter(
+            MinimalRecordsBinary.Writer writer, String origin, long mTime, long maxRecords, int batchSize,
+            ExportProgress progress) {
+        String id = String.format(Locale.ROOT, "getMinimalRecordsModifiedAfterBinary(origin='%s', mTime=%d, maxRecords=%d, batchSize=%d)",
+                origin, mTime, maxRecords, batchSize);
+        long pending = maxRecords == -1 ? Long.MAX_VALUE : maxRecords; // -1 = all records
+        long lastMTime = mTime;
+        long totalDelivered = 0L;
+        while (pending > 0) {
+            int request = pending < batchSize ? (int) pending : batchSize;
+            long startMTime = lastMTime;
+            long delivered = performReadOnlyStorageAction(
+                    id, storage -> storage.writeReferenceIds(origin, startMTime, request, writer));
+            if (delivered == 0) {
+                break;
+            }
+            lastMTime = writer.getLastMTime();
+            progress.delivered(delivered, lastMTime);
+            pending -= delivered;
+            totalDelivered += delivered;
+        }
+        log.info("Delivered '{}' records", totalDelivered);
+        return totalDelivered;
+    }
+
     /**
      * <p>
      * Create or update a new transcription. The primary key is fileId that comes from
@@ -90,6 +160,7 @@ public class DsStorageFacade {
      * 
      */
     public static void createOrUpdateTranscription(TranscriptionDto transcription)   {
+        Set<String> modifiedIds = new HashSet<>();
         performStorageAction("createOrUpdatTranscription(" + transcription.getFileId() + ")", storage -> {                      
            String fileId=transcription.getFileId();     
            // Sanity check
@@ -102,58 +173,188 @@ public class DsStorageFacade {
             }              
             storage.createNewTranscription(transcription);      
             //Touch the record in the ds_records table so will be selected in next indexing job and transcriptions will be indexed as well.
+            modifiedIds.addAll(storage.getIdsByReferenceId(fileId));
             int touched=storage.updateMTimeForRecordByFileId(fileId);
             log.info("Create/Updated transcription with fileId='{}' number of records touched='{}'",fileId,touched);                                         
             return null; // Something must be returned
         });
+        invalidateCachedRecords(modifiedIds);
     }
 
     
     
     public static void createOrUpdateRecord(DsRecordDto record)  {
+        Set<String> modifiedIds = new HashSet<>();
         performStorageAction("createOrUpdateRecord(" + record.getId() + ")", storage -> {
-            validateOriginExists(record.getOrigin());        
-            validateIdHasOriginPrefix(record.getOrigin(), record.getId());
-            validateRecordType(record.getRecordType());
-            String orgId = record.getId();
-            if (record.getParentId() != null) { //Parent ID must belong to same collection and also validate
-              validateIdHasOriginPrefix(record.getOrigin(), record.getParentId());
+            validateAndNormaliseRecord(record);
+
+            //Single statement create or update. Keeping or clearing the kalturaId is done in SQL
+            log.info("Creating or updating record with id: '{}'", record.getId());
+            storage.upsertRecord(record);
+            modifiedIds.add(record.getId());
+            modifiedIds.add(record.getParentId());
+            updateMTimeForParentChild(storage, record, modifiedIds);
+            return null; // Something must be returned
+        });
+        invalidateCachedRecords(modifiedIds);
+    }
+
+    /**
+     * Create or update multiple records. Each record is validated and written as with
+     * {@link #createOrUpdateRecord(DsRecordDto)}, but the records are written in transactions of up to
+     * {@link ServiceConfig#getDBBulkTransactionSize()} records. For each transaction, existence and old referenceIds
+     * are resolved with a single query and the records are written with batched inserts and updates.
+     * <p>
+     * A record failing validation is reported as failed without affecting the other records. If a transaction
+     * fails, all records in that transaction are reported as failed and the remaining transactions are still
+     * processed. If the same id occurs more than once, the occurrences are written in order in separate transactions.
+     *
+     * @param records the records to create or update.
+     * @return the number of created, updated and failed records and the status for each record in the given order.
+     */
+    public static DsRecordBulkResultDto createOrUpdateRecords(List<DsRecordDto> records) {
+        int transactionSize = ServiceConfig.getDBBulkTransactionSize();
+        List<DsRecordResultDto> results = new ArrayList<>(records.size());
+
+        List<DsRecordDto> chunk = new ArrayList<>();
+        List<DsRecordResultDto> chunkResults = new ArrayList<>();
+        Set<String> chunkIds = new HashSet<>();
+        for (DsRecordDto record : records) {
+            DsRecordResultDto result = new DsRecordResultDto();
+            result.setId(record.getId());
+            results.add(result);
+            try {
+                validateAndNormaliseRecord(record);
+                result.setId(record.getId());
+            } catch (Exception e) {
+                log.warn("Invalid record with id '{}' in bulk: {}", record.getId(), e.getMessage());
+                setFailed(result, e);
+                continue;
             }
-            
-            String idNorm = IdNormaliser.normaliseId(record.getId());
-            if (!orgId.equals(idNorm)) {
-                record.setOrgid(orgId); //set this before changing value below
-                record.setId(idNorm);                
-                record.setIdError(true);
-                log.warn("ID was normalized from: '{}' to '{}'", orgId, idNorm);
+            if (chunk.size() >= transactionSize || chunkIds.contains(record.getId())) {
+                writeRecordChunk(chunk, chunkResults);
+                chunk.clear();
+                chunkResults.clear();
+                chunkIds.clear();
             }
-            
-            if (record.getParentId() != null) { //Also normalize parentID
-                record.setParentId(IdNormaliser.normaliseId(record.getParentId()));                
-            }            
-            
-            boolean recordExists = storage.recordExists(record.getId());
-            if (recordExists) {
-                //Have to load record to see if referenceId has changed. Then we need to clear kalturaId
-                DsRecordDto oldRecord = storage.loadRecord(record.getId());
-              
-                //Keep old kalturaId if referenceid is the same.
-                if (record.getKalturaId() == null && record.getReferenceId() != null  && record.getReferenceId().equals(oldRecord.getReferenceId()) ) {                   
-                    record.setKalturaId(oldRecord.getKalturaId());                      
-                   log.info("Updating record with id: '{}' Keeping kalturaID: '{}'", record.getId() , oldRecord.getKalturaId());
+            chunk.add(record);
+            chunkResults.add(result);
+            chunkIds.add(record.getId());
+        }
+        writeRecordChunk(chunk, chunkResults);
+
+        DsRecordBulkResultDto bulkResult = new DsRecordBulkResultDto();
+        bulkResult.setCreated((int) results.stream().filter(r -> r.getStatus() == DsRecordResultStatusDto.CREATED).count());
+        bulkResult.setUpdated((int) results.stream().filter(r -> r.getStatus() == DsRecordResultStatusDto.UPDATED).count());
+        bulkResult.setFailed((int) results.stream().filter(r -> r.getStatus() == DsRecordResultStatusDto.FAILED).count());
+        bulkResult.setResults(results);
+        log.info("Bulk create or update of {} records: created={}, updated={}, failed={}",
+                 records.size(), bulkResult.getCreated(), bulkResult.getUpdated(), bulkResult.getFailed());
+        return bulkResult;
+    }
+
+    /**
+     * Write the given validated and normalised records in a single transaction and set the status for each record.
+     * If the transaction fails, all records are marked as failed.
+     * @param chunk the records to write. No id must occur more than once.
+     * @param results the result for each of the records, in the same order as the records.
+     * @throws ServiceUnavailableServiceException if the storage is overloaded. The records are not marked as failed,
+     *         as the client should retry them later. Chunks written before this are committed.
+     */
+    private static void writeRecordChunk(List<DsRecordDto> chunk, List<DsRecordResultDto> results) {
+        if (chunk.isEmpty()) {
+            return;
+        }
+        Set<String> modifiedIds = new HashSet<>();
+        try {
+            performStorageAction("createOrUpdateRecords(#records=" + chunk.size() + ", firstId=" + chunk.get(0).getId() + ")", storage -> {
+                List<String> ids = new ArrayList<>(chunk.size());
+                chunk.forEach(record -> ids.add(record.getId()));
+                Map<String, DsRecordMinimalDto> existing = storage.loadMinimalRecords(ids);
+
+                List<DsRecordDto> creates = new ArrayList<>();
+                List<DsRecordDto> updates = new ArrayList<>();
+                for (int i = 0; i < chunk.size(); i++) {
+                    DsRecordDto record = chunk.get(i);
+                    DsRecordMinimalDto oldRecord = existing.get(record.getId());
+                    if (oldRecord == null) {
+                        creates.add(record);
+                        results.get(i).setStatus(DsRecordResultStatusDto.CREATED);
+                    } else {
+                        keepOrClearKalturaId(record, oldRecord.getReferenceId(), oldRecord.getKalturaId());
+                        updates.add(record);
+                        results.get(i).setStatus(DsRecordResultStatusDto.UPDATED);
+                    }
                 }
-                else {                
-                   log.info("Updating record with id: '{}' Clearing kalturaID since referenceID has changed '{}' to  '{}'", record.getId() ,oldRecord.getReferenceId(),record.getReferenceId() );
-                    record.setKalturaId(null);
-                }                
-                storage.updateRecord(record);
-            } else {               
-                log.info("Creating new record with id: '{}'", record.getId());
-                storage.createNewRecord(record);
-            }
-            updateMTimeForParentChild(storage,record.getId());
-            return null; // Something must be returned
-        });
+                storage.createNewRecords(creates);
+                storage.updateRecords(updates);
+                for (DsRecordDto record : chunk) {
+                    modifiedIds.add(record.getId());
+                    modifiedIds.add(record.getParentId());
+                    updateMTimeForParentChild(storage, record, modifiedIds);
+                }
+                return null; // Something must be returned
+            });
+            invalidateCachedRecords(modifiedIds);
+        } catch (ServiceUnavailableServiceException e) { // Temporary, so the whole request fails with 503
+            throw e;
+        } catch (Exception e) {
+            log.warn("Failed writing {} records starting with id '{}'. All records in the transaction are marked as failed",
+                     chunk.size(), chunk.get(0).getId());
+            results.forEach(result -> setFailed(result, e));
+        }
+    }
+
+    private static void setFailed(DsRecordResultDto result, Exception e) {
+        result.setStatus(DsRecordResultStatusDto.FAILED);
+        result.setMessage(e.getMessage() == null ? e.toString() : e.getMessage());
+    }
+
+    /**
+     * Validate the record and normalise its id and parentId.
+     * If the id is normalised, the original id is stored as orgid and the record is marked with idError.
+     * @param record the record to validate and normalise.
+     * @throws InvalidArgumentServiceException if the record is not valid.
+     */
+    private static void validateAndNormaliseRecord(DsRecordDto record) {
+        validateOriginExists(record.getOrigin());        
+        validateIdHasOriginPrefix(record.getOrigin(), record.getId());
+        validateRecordType(record.getRecordType());
+        String orgId = record.getId();
+        if (record.getParentId() != null) { //Parent ID must belong to same collection and also validate
+          validateIdHasOriginPrefix(record.getOrigin(), record.getParentId());
+        }
+        
+        String idNorm = IdNormaliser.normaliseId(record.getId());
+        if (!orgId.equals(idNorm)) {
+            record.setOrgid(orgId); //set this before changing value below
+            record.setId(idNorm);                
+            record.setIdError(true);
+            log.warn("ID was normalized from: '{}' to '{}'", orgId, idNorm);
+        }
+        
+        if (record.getParentId() != null) { //Also normalize parentID
+            record.setParentId(IdNormaliser.normaliseId(record.getParentId()));                
+        }            
+    }
+
+    /**
+     * Keep the old kalturaId for a record that is updated if the referenceId is the same. Else clear the kalturaId.
+     * The same rule is used by {@link DsStorage#upsertRecord(DsRecordDto)} in SQL.
+     * @param record the record to update.
+     * @param oldReferenceId the referenceId for the record in storage.
+     * @param oldKalturaId the kalturaId for the record in storage.
+     */
+    private static void keepOrClearKalturaId(DsRecordDto record, String oldReferenceId, String oldKalturaId) {
+        //Keep old kalturaId if referenceid is the same.
+        if (record.getKalturaId() == null && record.getReferenceId() != null  && record.getReferenceId().equals(oldReferenceId) ) {                   
+            record.setKalturaId(oldKalturaId);                      
+           log.info("Updating record with id: '{}' Keeping kalturaID: '{}'", record.getId() , oldKalturaId);
+        }
+        else {                
+           log.info("Updating record with id: '{}' Clearing kalturaID since referenceID has changed '{}' to  '{}'", record.getId() ,oldReferenceId,record.getReferenceId() );
+            record.setKalturaId(null);
+        }                
     }
 
     
@@ -165,10 +366,13 @@ public class DsStorageFacade {
      * @param kalturaId The Kaltura id in the kaltura system. The id is given to a record after upload.
      */
     public static void updateKalturaIdForRecord(String referenceId, String kalturaId){
+         Set<String> modifiedIds = new HashSet<>();
          performStorageAction("updateKalturaIdForRecord(" + referenceId + ")", storage -> {
+         modifiedIds.addAll(storage.getIdsByReferenceId(referenceId));
          storage.updateKalturaIdForRecords(referenceId, kalturaId);         
         return null;    // Something must be returned
         });
+         invalidateCachedRecords(modifiedIds);
     }
     
     /**
@@ -182,11 +386,34 @@ public class DsStorageFacade {
          storage.updateReferenceIdForRecord(recordId,referenceId);         
         return null;    // Something must be returned
         });
+         invalidateCachedRecords(List.of(recordId));
     }
     
         
+    /**
+     * @return live metrics for the database connection pool. Null if the storage has not been initialized.
+     */
+    public static DatabasePoolStatusDto getDatabasePoolStatus() {
+        return DsStorage.getPoolStatus();
+    }
+
+    /**
+     * @return live metrics for the read replica connection pool. Null if no read replica is configured.
+     */
+    public static DatabasePoolStatusDto getDatabaseReadReplicaPoolStatus() {
+        return DsStorage.getReadReplicaPoolStatus();
+    }
+
+    /**
+     * @return live metrics for the record cache. Null if the cache is disabled.
+     */
+    public static RecordCacheStatusDto getRecordCacheStatus() {
+        RecordCache cache = getRecordCache();
+        return cache == null ? null : cache.getStatus();
+    }
+
     public static ArrayList<OriginCountDto> getOriginStatistics() {
-        return performStorageAction("getOriginStatistics", DsStorage::getOriginStatictics);
+        return performReadOnlyStorageAction("getOriginStatistics", DsStorage::getOriginStatictics);
     }
 
     /**
@@ -196,7 +423,7 @@ public class DsStorageFacade {
      * @return the number of records sent through the stream.
      */
     public static long countRecordsInOrigin(String origin, long mTime){
-        return performStorageAction("getAmountOfRecordsForOrigin(origin: " + origin +")", storage -> {
+        return performReadOnlyStorageAction("getAmountOfRecordsForOrigin(origin: " + origin +")", storage -> {
             validateOriginExists(origin);
             return storage.getAmountOfRecordsForOrigin(origin, mTime);
         } );
@@ -213,18 +440,47 @@ public class DsStorageFacade {
     */
     public static Long getRecordsModifiedAfter(
             ExportWriter writer, String origin, long mTime, long maxRecords, int batchSize) {
-        String id = String.format(Locale.ROOT, "writeRecordsModifiedAfter(origin='%s', mTime=%d, maxRecords=%d, batchSize=%d)",
-                                  origin, mTime, maxRecords, batchSize);
+        return getRecordsModifiedAfter(writer, origin, mTime, maxRecords, batchSize, new ExportProgress(mTime));
+    }
+
+    /**
+     * Write records with mTime larger than the given mTime and register the delivered records in progress.
+     * @see #getRecordsModifiedAfter(ExportWriter, String, long, long, int)
+     */
+    public static Long getRecordsModifiedAfter(
+            ExportWriter writer, String origin, long mTime, long maxRecords, int batchSize, ExportProgress progress) {
+        return getRecordsModifiedAfter(writer, origin, mTime, maxRecords, batchSize, progress, RecordRowMapper.ALL);
+    }
+
+    /**
+     * Write records with mTime larger than the given mTime and register the delivered records in progress.
+     * Only the fields selected by the mapper are loaded from the database. The other fields are null.
+     * @param mapper the fields to deliver for the records. Use {@link RecordRowMapper#ALL} for all fields.
+     * @see #getRecordsModifiedAfter(ExportWriter, String, long, long, int)
+     */
+    public static Long getRecordsModifiedAfter(
+            ExportWriter writer, String origin, long mTime, long maxRecords, int batchSize, ExportProgress progress,
+            RecordRowMapper mapper) {
+        if (ServiceConfig.isDBExportStreaming()) {
+            return streamRecordsModifiedAfter(writer, origin, mTime, maxRecords, progress, mapper);
+        }
+        int prefetchDepth = ServiceConfig.getDBExportPrefetchDepth();
+        if (prefetchDepth > 0) {
+            return prefetchRecordsModifiedAfter(writer, origin, mTime, maxRecords, batchSize, progress, mapper, prefetchDepth);
+        }
+        String id = String.format(Locale.ROOT, "writeRecordsModifiedAfter(origin='%s', mTime=%d, maxRecords=%d, batchSize=%d, %s)",
+                                  origin, mTime, maxRecords, batchSize, mapper);
         long pending = maxRecords == -1 ? Long.MAX_VALUE : maxRecords; // -1 = all records
         final AtomicLong lastMTime = new AtomicLong(mTime);
         long totalDelivered = 0L;
         while (pending > 0) {
             int request = pending < batchSize ? (int) pending : batchSize;
-            long delivered = performStorageAction(id, storage -> {
-                ArrayList<DsRecordDto> records = storage.getRecordsModifiedAfter(origin, lastMTime.get(), request);
+            long delivered = performReadOnlyStorageAction(id, storage -> {
+                ArrayList<DsRecordDto> records = storage.getRecordsModifiedAfter(origin, lastMTime.get(), request, mapper);
                 writer.writeAll(records);
                 if (!records.isEmpty()) {
                     lastMTime.set(records.get(records.size()-1).getmTime());
+                    progress.delivered(records.size(), lastMTime.get());
                 }
                 return (long)records.size();
             });
@@ -238,6 +494,135 @@ public class DsStorageFacade {
         return totalDelivered;
     }
 
+    /**
+     *   Retrieve records (DsRecordDs) in batches like {@link #getRecordsModifiedAfter}, but the next batches are
+     *   fetched by a separate thread while the current batch is written. The time for an export is then closer to
+     *   the larger of the database time and the time for delivering the records than to their sum.
+     *   The output is identical to {@link #getRecordsModifiedAfter}. Package private for load testing.
+     *
+     *   @param origin origin for the record. Origins are defined in the yaml file
+     *   @param mTime Retrieve records starting from this time
+     *   @param maxRecords Number of maximum records to extract total. -1 means all records
+     *   @param batchSize Number of records in each batch.
+     *   @param progress receives each delivered batch.
+     *   @param mapper the fields to deliver for the records.
+     *   @param prefetchDepth the maximum number of fetched batches waiting to be written.
+     *   @return the total amount of records that have been written from storage.
+     */
+    static Long prefetchRecordsModifiedAfter(
+            ExportWriter writer, String origin, long mTime, long maxRecords, int batchSize, ExportProgress progress,
+            RecordRowMapper mapper, int prefetchDepth) {
+        String id = String.format(Locale.ROOT, "prefetchRecordsModifiedAfter(origin='%s', mTime=%d, maxRecords=%d, batchSize=%d, prefetchDepth=%d, %s)",
+                                  origin, mTime, maxRecords, batchSize, prefetchDepth, mapper);
+        // Only used by the fetching thread
+        final AtomicLong pending = new AtomicLong(maxRecords == -1 ? Long.MAX_VALUE : maxRecords); // -1 = all records
+        final AtomicLong lastMTime = new AtomicLong(mTime);
+        BatchPrefetcher.BatchSource<DsRecordDto> source = () -> {
+            if (pending.get() <= 0) {
+                return Collections.emptyList();
+            }
+            int request = pending.get() < batchSize ? (int) pending.get() : batchSize;
+            ArrayList<DsRecordDto> records = performReadOnlyStorageAction(
+                    id, storage -> storage.getRecordsModifiedAfter(origin, lastMTime.get(), request, mapper));
+            if (!records.isEmpty()) {
+                lastMTime.set(records.get(records.size()-1).getmTime());
+                pending.addAndGet(-records.size());
+            }
+            return records;
+        };
+
+        long totalDelivered = 0L;
+        try (BatchPrefetcher<DsRecordDto> prefetcher = new BatchPrefetcher<>(
+                VirtualThreads.newThreadFactory("export-prefetch-", useVirtualThreads()), prefetchDepth, source)) {
+            List<DsRecordDto> records;
+            while (!(records = prefetcher.next()).isEmpty()) {
+                writer.writeAll(records);
+                progress.delivered(records.size(), records.get(records.size()-1).getmTime());
+                totalDelivered += records.size();
+            }
+        } catch (ServiceException e) {
+            throw e;
+        } catch (Exception e) {
+            log.warn("Exception performing action '{}'", id, e);
+            throw new InternalServiceException(e);
+        }
+        log.info("Delivered '{}' records", totalDelivered);
+        return totalDelivered;
+    }
+
+    /**
+     *   Retrieve records (DsRecordDs) using a single query with a server side cursor. Each record is written as soon
+     *   as it has been read from the database, so neither the number of queries nor the memory usage depends on
+     *   the number of records. The output is identical to {@link #getRecordsModifiedAfter}.
+     *
+     *   @param origin origin for the record. Origins are defined in the yaml file
+     *   @param mTime Retrieve records starting from this time
+     *   @param maxRecords Number of maximum records to extract total. -1 means all records
+     *   @param progress receives each delivered record.
+     *   @param mapper the fields to deliver for the records.
+     *   @return the total amount of records that have been written from storage.
+     */
+    private static Long streamRecordsModifiedAfter(
+            ExportWriter writer, String origin, long mTime, long maxRecords, ExportProgress progress,
+            RecordRowMapper mapper) {
+        String id = String.format(Locale.ROOT, "streamRecordsModifiedAfter(origin='%s', mTime=%d, maxRecords=%d, %s)",
+                                  origin, mTime, maxRecords, mapper);
+        long totalDelivered = performReadOnlyStorageAction(id, storage ->
+                storage.streamRecordsModifiedAfter(origin, mTime, maxRecords, mapper, record -> {
+                    writer.write(record);
+                    progress.delivered(1, record.getmTime());
+                }));
+        log.info("Delivered '{}' records", totalDelivered);
+        return totalDelivered;
+    }
+
+    /**
+     *   Write records with mTime larger than the given mTime directly from the database rows to the writer and
+     *   register the delivered records in progress. No {@link DsRecordDto}s are created and the {@code data} of the
+     *   records is streamed from the database driver to the output, see {@link RecordJSONWriter}.
+     *   <p>
+     *   If {@link ServiceConfig#isDBExportStreaming()} all records are written from a single query. Else a query is
+     *   issued for each batch. Batches are not prefetched, as that requires the records to be held in memory.
+     *   <p>
+     *   If {@link ServiceConfig#isPrecomputedJSON(String)} for the origin, the JSON for the data stored at ingest is
+     *   copied to the output without escaping the data again.
+     *
+     *   @param writer receives the records.
+     *   @param origin origin for the record. Origins are defined in the yaml file
+     *   @param mTime Retrieve records starting from this time
+     *   @param maxRecords Number of maximum records to extract total. -1 means all records
+     *   @param batchSize Number of records in each batch when not streaming.
+     *   @param progress receives the delivered records.
+     *   @param fieldMapper the fields to deliver for the records. Use {@link RecordRowMapper#ALL} for all fields.
+     *   @return the total amount of records that have been written from storage.
+     */
+    public static Long getRecordsModifiedAfter(
+            RecordJSONWriter writer, String origin, long mTime, long maxRecords, int batchSize, ExportProgress progress,
+            RecordRowMapper fieldMapper) {
+        boolean streaming = ServiceConfig.isDBExportStreaming();
+        RecordRowMapper mapper = ServiceConfig.isPrecomputedJSON(origin) ? fieldMapper.withPrecomputedJSON() : fieldMapper;
+        String id = String.format(Locale.ROOT, "writeRecordsModifiedAfter(origin='%s', mTime=%d, maxRecords=%d, batchSize=%d, streaming=%b, %s)",
+                                  origin, mTime, maxRecords, batchSize, streaming, mapper);
+        long pending = maxRecords == -1 ? Long.MAX_VALUE : maxRecords; // -1 = all records
+        long totalDelivered = 0L;
+        while (pending > 0) {
+            long request = streaming ? maxRecords : pending < batchSize ? pending : batchSize;
+            long lastMTime = totalDelivered == 0 ? mTime : writer.getLastMTime();
+            long delivered = performReadOnlyStorageAction(
+                    id, storage -> storage.writeRecordsModifiedAfter(origin, lastMTime, request, mapper, writer));
+            if (delivered > 0) {
+                progress.delivered(delivered, writer.getLastMTime());
+            }
+            totalDelivered += delivered;
+            if (streaming || delivered == 0) {
+                break;
+            }
+            pending -= delivered;
+        }
+        log.info("Delivered '{}' records", totalDelivered);
+        return totalDelivered;
+    }
+
     /**
      *   Retrieve records (DsRecordDs) as a list with the local tree loaded as object.
      *
@@ -249,6 +634,17 @@ public class DsStorageFacade {
      */
     public static Long getRecordsByRecordTypeModifiedAfterWithLocalTree(
             ExportWriter writer, String origin, RecordTypeDto recordType, long mTime, long maxRecords, int batchSize) {
+        return getRecordsByRecordTypeModifiedAfterWithLocalTree(
+                writer, origin, recordType, mTime, maxRecords, batchSize, new ExportProgress(mTime));
+    }
+
+    /**
+     * Write records of the given type with local tree and register the delivered records in progress.
+     * @see #getRecordsByRecordTypeModifiedAfterWithLocalTree(ExportWriter, String, RecordTypeDto, long, long, int)
+     */
+    public static Long getRecordsByRecordTypeModifiedAfterWithLocalTree(
+            ExportWriter writer, String origin, RecordTypeDto recordType, long mTime, long maxRecords, int batchSize,
+            ExportProgress progress) {
         String id = String.format(Locale.ROOT, "getRecordsByRecordTypeModifiedAfterWithLocalTree(origin='%s', recordType='%s' mTime=%d, maxRecords=%d, batchSize=%d)",
                                   origin, recordType, mTime, maxRecords, batchSize);
         long pending = maxRecords == -1 ? Long.MAX_VALUE : maxRecords; // -1 = all records
@@ -256,22 +652,18 @@ public class DsStorageFacade {
         long totalDelivered = 0L;
         while (pending > 0) {
             int request = pending < batchSize ? (int) pending : batchSize;
-            long delivered = performStorageAction(id, storage -> {
+            long delivered = performReadOnlyStorageAction(id, storage -> {
 
                 //important. Only load id's for performance. Then load the recordTree
                 ArrayList<String> ids = storage.getRecordsIdsByRecordTypeModifiedAfter(origin, recordType,lastMTime.get(), request);
 
-                ArrayList<DsRecordDto> records = new ArrayList<>();
-                for (String singleId : ids) {
-                    records.add(getRecord(singleId));
-                }
-                                
-                // We have to load the localTree for the records                
-                records.forEach(DsStorageFacade::setLocalTreeForRecord);
-                
+                // Load the records with localTree using set based queries on this connection
+                List<DsRecordDto> records = loadRecordsWithLocalTree(storage, ids);
+
                 writer.writeAll(records);
                 if (!records.isEmpty()) {
                     lastMTime.set(records.get(records.size()-1).getmTime());
+                    progress.delivered(records.size(), lastMTime.get());
                 }
                 return (long)records.size();
             });
@@ -308,7 +700,11 @@ public class DsStorageFacade {
            return record;
       }
       else {
-          return getRecordTreeLocal(recordId);
+          DsRecordDto record = getRecordTreeLocal(recordId);
+          if (record==null) {
+              throw new NotFoundServiceException("No recordId found for:"+recordId);
+          }
+          return record;
       }      
     }
 
@@ -320,9 +716,9 @@ public class DsStorageFacade {
      * 
      */
     private static DsRecordDto getRecord(String recordId) {
-        return performStorageAction(" getRecord(" + recordId + ")", storage -> {
+        return performReadOnlyStorageAction(" getRecord(" + recordId + ")", storage -> {
         String idNorm = IdNormaliser.normaliseId(recordId);
-           DsRecordDto record = storage.loadRecordWithChildIds(idNorm);
+           DsRecordDto record = loadRecordWithChildIds(storage, idNorm);
            return record;
         });
     }
@@ -330,23 +726,28 @@ public class DsStorageFacade {
     /**
      *   Will load full object tree. The DsRecordDto return will a pointer the record with the recordId in the tree
      * <p>
-     *  Logic: Find top parent recursive and load children.
+     *  Logic: Find top parent with a recursive query and load the tree below it with another recursive query.
      * 
      *  @param recordId The full object tree will be returned with a pointer to this record   
+     *  @return the record or null if it does not exist.
+     *  @throws InvalidArgumentServiceException if the tree has more than {@code db.tree.maxNodes} records.
      * 
      */
     public static DsRecordDto getRecordTree(String recordId) {
-             
-        return performStorageAction("getRecord(" + recordId + ")", storage -> {
+        int maxNodes = ServiceConfig.getDBTreeMaxNodes();
+        return performReadOnlyStorageAction("getRecord(" + recordId + ")", storage -> {
         String idNorm = IdNormaliser.normaliseId(recordId);          
-        DsRecordDto record = getRecord(idNorm); //Load from facade as this will set children. Will return null if record not found
-                
-         DsRecordDto topParent = getTopParent(record); //this will also detect a cycle.              
-                  
-         loadAndSetChildRelations(topParent,new HashSet<>(), record); //Recursive method
-                    
-         return record;
-         
+         DsRecordDto topParent = getTopParent(storage, idNorm); //this will also detect a cycle.
+         if (topParent == null) { //Record not found
+             return null;
+         }
+
+         List<DsRecordDto> nodes = storage.loadSubtree(topParent.getId(), maxNodes + 1);
+         if (nodes.size() > maxNodes) {
+             throw new InvalidArgumentServiceException(
+                     "Record tree for id '" + recordId + "' has more than " + maxNodes + " records (db.tree.maxNodes)");
+         }
+         return linkTree(nodes, topParent.getId(), idNorm);
         });
     }
   
@@ -357,15 +758,21 @@ public class DsStorageFacade {
      *  1) If there is a parent record, the given record will point to it, but the parent will not point back to this child
      *  2) Children will be loaded, but the children will not point back to this parent record.      
      * 
+     *  The record, its parent and its children are loaded on the same connection, so a request never holds more than
+     *  one database connection.
+     * 
      *  @param recordId The local object tree will be returned with a pointer to this record   
+     *  @return the record or null if it does not exist.
      * 
      */
     private static DsRecordDto getRecordTreeLocal(String recordId) {
            
-        return performStorageAction("getRecordTreeLocal(" + recordId + ")", storage -> {
+        return performReadOnlyStorageAction("getRecordTreeLocal(" + recordId + ")", storage -> {
         String idNorm = IdNormaliser.normaliseId(recordId);          
-        DsRecordDto record = getRecord(idNorm); //Load from facade as this will set children as id's. 
-        setLocalTreeForRecord(record);                                     
+        DsRecordDto record = loadRecordWithChildIds(storage, idNorm);
+        if (record != null) {
+            setLocalTreeForRecords(storage, List.of(record));
+        }
         return record;
          
         });
@@ -377,10 +784,10 @@ public class DsStorageFacade {
      * @throws NotFoundServiceException when a record cannot be found in storage.
      */
     public static RecordsCountDto touchRecord(String recordId) {
-        RecordsCountDto countDto = performStorageAction("updateMTimeForRecord(" + recordId +")", storage -> {
-            String idNorm = IdNormaliser.normaliseId(recordId);
-            return storage.updateMTimeForRecord(idNorm);
-        });
+        String idNorm = IdNormaliser.normaliseId(recordId);
+        RecordsCountDto countDto = performStorageAction("updateMTimeForRecord(" + recordId +")", storage ->
+                storage.updateMTimeForRecord(idNorm));
+        invalidateCachedRecords(List.of(idNorm));
 
         if (countDto.getCount() == null | countDto.getCount() < 1){
             log.error("The record with id: '{}' was not touched as it doesn't exist in DS-storage", recordId);
@@ -391,31 +798,38 @@ public class DsStorageFacade {
     }
   
     /**
-     * Will recursive go up in the tree to find the top parent.
+     * Find the top parent for a record. The parent chain is loaded with a single recursive query.
      * Throws an exception if a cycle is detected.
      * If a parent does not exist it will return last valid record instead. This is due to inconsistent data.
      *  
-     * @param record to retrieve parent for.
-     * @throws InternalServiceException If a cycle is detected.
-     * @return parent record
+     * @param storage the storage to load the parent chain from.
+     * @param recordId the normalised id of the record to retrieve the top parent for.
+     * @throws InternalServiceException If a cycle is detected or the chain is longer than
+     *                                  {@link DsStorage#PARENT_CHAIN_MAX_DEPTH}.
+     * @return id, origin and parentId for the top parent. The record itself if it has no parent.
+     *         Null if the record does not exist.
      */
-    private static DsRecordDto getTopParent(DsRecordDto record) throws InternalServiceException{
-    
+    private static DsRecordDto getTopParent(DsStorage storage, String recordId) throws SQLException {
+      List<DsRecordDto> chain = storage.loadParentChain(recordId);
+      if (chain.isEmpty()) {
+          return null;
+      }
+
       HashSet<String> ids = new HashSet<>();
-      DsRecordDto topParent = record;
-      while (topParent.getParentId() != null) {          
-      
-          if (ids.contains(topParent.getId())) {
-              log.error("Cycle detected for recordId: '{}'", topParent.getId());
-              throw new InternalServiceException("Cycle detected for recordId:"+topParent.getId());              
-          }          
-          ids.add(topParent.getId());
-          DsRecordDto nextParent = getRecord(topParent.getParentId());                                           
-          if (nextParent==null) { //inconsistent data.
-              log.warn("Inconsistent data. Parent with ID does not exist: '{}' and is set for record: '{}'", topParent.getParentId(), topParent.getId());
-              return topParent; 
+      for (DsRecordDto record : chain) {
+          if (!ids.add(record.getId())) {
+              log.error("Cycle detected for recordId: '{}'", record.getId());
+              throw new InternalServiceException("Cycle detected for recordId:"+record.getId());
+          }
+      }
+      DsRecordDto topParent = chain.get(chain.size()-1);
+      if (topParent.getParentId() != null) {
+          if (chain.size() > DsStorage.PARENT_CHAIN_MAX_DEPTH) {
+              log.error("More than {} parents for recordId: '{}'", DsStorage.PARENT_CHAIN_MAX_DEPTH, recordId);
+              throw new InternalServiceException("More than " + DsStorage.PARENT_CHAIN_MAX_DEPTH + " parents for recordId:"+recordId);
           }
-          topParent=nextParent;
+          //inconsistent data.
+          log.warn("Inconsistent data. Parent with ID does not exist: '{}' and is set for record: '{}'", topParent.getParentId(), topParent.getId());
       }
       return topParent;        
     }
@@ -429,29 +843,39 @@ public class DsStorageFacade {
      * @param mTimeTo modified time to. Format is millis +3 digits
      */
     public static RecordsCountDto deleteRecordsForOrigin(String origin, long mTimeFrom, long mTimeTo) {
-        return performStorageAction("deleteRecordsForOrigin(" + origin + ")", storage -> {
+        RecordsCountDto deleted = performStorageAction("deleteRecordsForOrigin(" + origin + ")", storage -> {
             validateOriginExists(origin);
             RecordsCountDto count = storage.deleteRecordsForOrigin(origin,mTimeFrom,mTimeTo);                       
             log.info("Deleted {} records from origin={}",count.getCount(),origin);                                            
             return count;
         });
+        invalidateAllCachedRecords();
+        return deleted;
     }
     
 
     public static RecordsCountDto markRecordForDelete(String recordId) {
         //TODO touch children etc.
-        return performStorageAction("markRecordForDelete(" + recordId + ")", storage -> {
+        Set<String> modifiedIds = new HashSet<>();
+        RecordsCountDto marked = performStorageAction("markRecordForDelete(" + recordId + ")", storage -> {
             String idNorm = IdNormaliser.normaliseId(recordId);            
             RecordsCountDto countDto = storage.markRecordForDelete(idNorm);
-            updateMTimeForParentChild(storage,recordId);
+            modifiedIds.add(idNorm);
+            DsRecordDto record = storage.loadRecordRelation(idNorm); //Only id, origin and parentId
+            if (record != null) { //Can happen when marking records for delete and record is not in storage.
+                modifiedIds.add(record.getParentId());
+                updateMTimeForParentChild(storage, record, modifiedIds);
+            }
             log.info("Record marked for delete: '{}'", recordId);                       
             return countDto;
         });
+        invalidateCachedRecords(modifiedIds);
+        return marked;
     }
 
 
     public static RecordsCountDto deleteMarkedForDelete(String origin) {
-        return performStorageAction("deleteMarkedForDelete(" + origin + ")", storage -> {
+        RecordsCountDto deleted = performStorageAction("deleteMarkedForDelete(" + origin + ")", storage -> {
             validateOriginExists(origin);
 
             RecordsCountDto count =  storage.deleteMarkedForDelete(origin);
@@ -460,6 +884,8 @@ public class DsStorageFacade {
             //We are not touching parent/children relation when deleting for real.
             return count;
         });
+        invalidateAllCachedRecords();
+        return deleted;
     }
 
     /**
@@ -474,7 +900,7 @@ public class DsStorageFacade {
      *         least 1 record with {@code record.mTime} higher than the maximum within the constraints).
      */
     public static Pair<Long, Boolean> getMaxMtimeAfter(String origin, long mTime, long maxRecords) {
-        return performStorageAction(
+        return performReadOnlyStorageAction(
                 "getMaxMtimeAfter(origin='" + origin + "', mTime=" + mTime + ", maxRecords=" + maxRecords + ")",
                 storage -> storage.getMaxMtimeAfter(origin, mTime, maxRecords));
     }
@@ -493,26 +919,87 @@ public class DsStorageFacade {
      */
     public static Pair<Long, Boolean> getMaxMtimeAfter(
             String origin, RecordTypeDto recordType, long mTime, long maxRecords) {
-        return performStorageAction(
+        return performReadOnlyStorageAction(
                 "getMaxMtimeAfter(origin='" + origin + "', type='" + recordType + "', mTime=" + mTime +
                 ", maxRecords=" + maxRecords + ")",
                 storage -> storage.getMaxMtimeAfter(origin, recordType, mTime, maxRecords));
     }
 
 
+    /**
+     * Calculate the values for the paging headers of an export of records where {@code record.mTime > mTime},
+     * ordered by {@code record.mTime} and limited to {@code maxRecords}.
+     * @param origin only records from the {@code origin} will be inspected.
+     * @param recordType only records with the given type will be inspected. If null, all records are inspected.
+     * @param mTime only records with modification time larger than {@code mTime} will be inspected.
+     * @param maxRecords the size of the page. {@code -1} means no limit.
+     * @return continuation token, has more and record count for the page.
+     * @see DsStorage#getPagingInfo(String, RecordTypeDto, long, long)
+     */
+    public static PagingInfo getPagingInfo(String origin, RecordTypeDto recordType, long mTime, long maxRecords) {
+        return performReadOnlyStorageAction(
+                "getPagingInfo(origin='" + origin + "', type='" + recordType + "', mTime=" + mTime +
+                ", maxRecords=" + maxRecords + ")",
+                storage -> {
+                    validateOriginExists(origin);
+                    return storage.getPagingInfo(origin, recordType, mTime, maxRecords);
+                });
+    }
+
+    /**
+     * Validate the parameters for an export before streaming of the records starts. When the paging information is
+     * delivered as headers, {@link #getPagingInfo(String, RecordTypeDto, long, long)} performs the same validation,
+     * but when it is delivered as trailers, errors must be caught before the response is committed with status 200.
+     * @param origin the origin of the export. Must be defined in the configuration.
+     * @param maxRecords the maximum number of records to export. Must be {@code -1} (no limit) or at least 0.
+     * @throws InvalidArgumentServiceException if the origin is unknown or maxRecords is invalid.
+     */
+    public static void validateExport(String origin, long maxRecords) {
+        validateOriginExists(origin);
+        if (maxRecords < -1) {
+            throw new InvalidArgumentServiceException(
+                    "maxRecords must be -1 (no limit) or at least 0, but was " + maxRecords);
+        }
+    }
+
+    /**
+     * Calculate the values for the paging headers after an export has been delivered. As the records have already been
+     * delivered, the continuation token and the record count are known and only the existence of further records needs
+     * to be checked, which is only done if the export was limited by {@code maxRecords}.
+     * @param origin the origin of the export.
+     * @param recordType the record type of the export. If null, all records were exported.
+     * @param progress the delivered records.
+     * @param maxRecords the maximum number of records the export could deliver. {@code -1} means no limit.
+     * @return continuation token, has more and record count for the delivered records. The continuation token is null
+     *         if no records were delivered.
+     */
+    public static PagingInfo getPagingInfo(String origin, RecordTypeDto recordType, ExportProgress progress, long maxRecords) {
+        long delivered = progress.getDelivered();
+        if (delivered == 0) {
+            return new PagingInfo(null, false, 0);
+        }
+        if (maxRecords == -1 || delivered < maxRecords) { // Everything available at the time of the export was delivered
+            return new PagingInfo(progress.getLastMTime(), false, delivered);
+        }
+        boolean hasMore = performReadOnlyStorageAction(
+                "getPagingInfo(origin='" + origin + "', type='" + recordType + "', lastMTime=" + progress.getLastMTime() + ")",
+                storage -> storage.getPagingInfo(origin, recordType, progress.getLastMTime(), 1).getRecordCount() > 0);
+        return new PagingInfo(progress.getLastMTime(), hasMore, delivered);
+    }
+
     /*
-     * This is called whenever a record is modified (create/update/markfordelete). The recordId here
+     * This is called whenever a record is modified (create/update/markfordelete). The record here
      * has already been assigned a new mTime. Update mTime for parent and/or children according to  update strategy for that origin.
+     * Only id, origin and parentId are used from the record, so the record is never loaded with data here.
      * 
      * This method will not commit/rollback as this is handled by the calling method.
+     * The ids of the records that are touched are added to modifiedIds, so they can be removed from the record cache
+     * after commit.
      * 
      * See UpdateStrategyDto
      */
-    private static void updateMTimeForParentChild(DsStorage storage, String recordId) throws Exception{
-        DsRecordDto record=  storage.loadRecord(recordId); //Notice for performance tuning, recordDto can sometimes be given to the method. No premature optimization...
-        if (record==null) { //Can happen when marking records for delete and record is not in storage.            
-            return;            
-        }
+    private static void updateMTimeForParentChild(DsStorage storage, DsRecordDto record, Set<String> modifiedIds) throws Exception{
+        String recordId = record.getId();
         OriginDto origin = ServiceConfig.getAllowedOrigins().get(record.getOrigin());       
         UpdateStrategyDto updateStrategy = origin.getUpdateStrategy();
 
@@ -523,13 +1010,13 @@ public class DsStorageFacade {
                 // Do nothing
                 break;
             case CHILD:
-                updateMTimeForChildren(storage, recordId);
+                updateMTimeForChildren(storage, recordId, modifiedIds);
                 break;
             case PARENT:
-                updateMTimeForParent(storage, record);
+                updateMTimeForParent(storage, record, modifiedIds);
                 break;
             case ALL:
-                updateMTimeForAll(storage, record);
+                updateMTimeForAll(storage, record, modifiedIds);
                 break;
             default:
                 throw new InvalidArgumentServiceException("Update strategy not implemented:"+updateStrategy);
@@ -540,17 +1027,15 @@ public class DsStorageFacade {
      * Update mTime for all children of the Record with the given parentId.
      * @param storage ready for updates.
      * @param parentId the ID of the parent record.
+     * @param modifiedIds receives the ids of the updated records.
      * @throws Exception if updating failed.
      */
-    private static void updateMTimeForChildren(DsStorage storage, String parentId) throws Exception {
-        //update all children one at a time
+    private static void updateMTimeForChildren(DsStorage storage, String parentId, Set<String> modifiedIds) throws Exception {
+        //update all children in one batch
         ArrayList<String> childrenIds = storage.getChildrenIds(parentId);
-        for (String childId : childrenIds) {
-
-            RecordsCountDto count = storage.updateMTimeForRecord(childId);
-           if (count.getCount() == 0) {
-               log.warn("Children with id does not exist:"+childId);           
-           }
+        modifiedIds.addAll(childrenIds);
+        for (String childId : storage.updateMTimeForRecords(childrenIds)) {
+            log.warn("Children with id does not exist:"+childId);
         }
     }
 
@@ -558,36 +1043,38 @@ public class DsStorageFacade {
      * Update mTime for the parent of the Record, if it has any.
      * @param storage ready for updates.
      * @param record the Record to update parent mTime for.
+     * @param modifiedIds receives the ids of the updated records.
      * @throws Exception if updating failed.
      */
-     private static void updateMTimeForParent(DsStorage storage, DsRecordDto record) throws Exception {
+     private static void updateMTimeForParent(DsStorage storage, DsRecordDto record, Set<String> modifiedIds) throws Exception {
         //Notice for performance tuning, recordDto can sometimes be given to the method. No premature optimization...
         boolean hasParent = (record.getParentId() != null);
         if (!hasParent) {
             return;
         }
         storage.updateMTimeForRecord(record.getParentId());
+        modifiedIds.add(record.getParentId());
     }
 
     /**
      * Update mTime for all children and the parent of the Record, if it has any.
      * @param storage ready for updates.
      * @param record the Record to update children and parent mTime for.
+     * @param modifiedIds receives the ids of the updated records.
      * @throws Exception if updating failed.
      */
-     private static void updateMTimeForAll(DsStorage storage, DsRecordDto record) throws Exception {
-        DsRecordDto topParent = getTopParent(record);
+     private static void updateMTimeForAll(DsStorage storage, DsRecordDto record, Set<String> modifiedIds) throws Exception {
+        DsRecordDto topParent = getTopParent(storage, record.getId());
         String recordId = record.getId();
         if (!recordId.equals(topParent.getId())) {
             storage.updateMTimeForRecord(topParent.getId());
+            modifiedIds.add(topParent.getId());
         }
-        //And all children
+        //And all children in one batch
         ArrayList<String> childrenIds = storage.getChildrenIds(recordId);
-        for (String childId: childrenIds) {
-            if (!recordId.equals(childId)) {
-                storage.updateMTimeForRecord(childId);
-            }
-        }
+        childrenIds.remove(recordId);
+        storage.updateMTimeForRecords(childrenIds);
+        modifiedIds.addAll(childrenIds);
     }
 
     /**
@@ -630,10 +1117,16 @@ public class DsStorageFacade {
      * @param actionID a debug-oriented ID for the action, typically the name of the calling method.
      * @param action the action to perform on the storage.
      * @return return value from the action.
+     * @throws ServiceUnavailableServiceException if no database connection or no permit from the
+     *         {@link StorageActionLimiter} was available within the configured time.
      * @throws InternalServiceException if anything goes wrong.
      */
     private static <T> T performStorageAction(String actionID, StorageAction<T> action) {
          long start=System.currentTimeMillis();
+        StorageActionLimiter limiter = getStorageActionLimiter();
+        if (limiter != null) {
+            limiter.acquire(actionID);
+        }
         try (DsStorage storage = new DsStorage()) {
             T result;
             try {
@@ -659,81 +1152,276 @@ public class DsStorageFacade {
 
             log.debug("Storage method '{}' SQL time in millis: {} ", actionID, (System.currentTimeMillis()-start));
             return result;
+        } catch (ConnectionPoolTimeoutException e) { // All connections in use for longer than db.pool.maxWaitMillis
+            log.warn("No database connection available for action '{}': {}", actionID, e.getMessage());
+            throw new ServiceUnavailableServiceException(e.getMessage(), e);
         } catch (SQLException e) { //Connecting to storage failed
             log.error("SQLException performing action '{}'", actionID, e);
             throw new InternalServiceException(e);
+        } finally {
+            if (limiter != null) {
+                limiter.release();
+            }
         }
     }
 
+
+    /**
+     * Performs the given read-only action on a storage and returns the result from the action.
+     * <p>
+     * The storage is read-only and in autocommit mode, so there is no transaction to commit or roll back. If a read
+     * replica has been configured with {@code db.readReplica}, the action is performed on the replica.
+     * The action must not modify the storage.
+     * @param actionID a debug-oriented ID for the action, typically the name of the calling method.
+     * @param action the action to perform on the storage.
+     * @return return value from the action.
+     * @throws ServiceUnavailableServiceException if no database connection or no permit from the
+     *         {@link StorageActionLimiter} was available within the configured time.
+     * @throws InternalServiceException if anything goes wrong.
+     */
+    private static <T> T performReadOnlyStorageAction(String actionID, StorageAction<T> action) {
+        long start=System.currentTimeMillis();
+        StorageActionLimiter limiter = getStorageActionLimiter();
+        if (limiter != null) {
+            limiter.acquire(actionID);
+        }
+        try (DsStorage storage = new DsStorage(true)) {
+            T result;
+            try {
+                result = action.process(storage);
+            }
+            catch(InvalidArgumentServiceException e) {
+                log.warn("Exception performing read-only action '{}': {}", actionID, e.getMessage());
+                throw new InvalidArgumentServiceException(e);
+            }
+            catch (Exception e) {
+                log.warn("Exception performing read-only action '{}'", actionID, e);
+                throw new InternalServiceException(e);
+            }
+            log.debug("Read-only storage method '{}' SQL time in millis: {}, read replica: {}",
+                      actionID, (System.currentTimeMillis()-start), storage.isUsingReadReplica());
+            return result;
+        } catch (ConnectionPoolTimeoutException e) { // All connections in use for longer than db.pool.maxWaitMillis
+            log.warn("No database connection available for read-only action '{}': {}", actionID, e.getMessage());
+            throw new ServiceUnavailableServiceException(e.getMessage(), e);
+        } catch (SQLException e) { //Connecting to storage failed
+            log.error("SQLException performing read-only action '{}'", actionID, e);
+            throw new InternalServiceException(e);
+        } finally {
+            if (limiter != null) {
+                limiter.release();
+            }
+        }
+    }
     
     /**
-     * This method will call itself recursively
-     * The callstack length will only be equal to depth of tree, so not an issue.
-     * Call this method with top-parent of the record tree to get the full tree.
+     * Build the object tree from records loaded with {@link DsStorage#loadSubtree(String, int)}. The children and
+     * childrenIds for each record are set from the parentIds of the other records, in the order of the records.
+     * The top record does not get a parent, so the tree cannot contain cycles.
      * 
-     * @param currentRecord Top record in the object tree. The tree will only be loaded from this node and down.
-     * @param previousIdsForCycleDetection Set to keep track of cycles. When calling this method supply it with a new empty HashSet
-     * @param origo     record used as recursive parameter
+     * @param nodes the top record and all records below it.
+     * @param topId the id of the top record.
+     * @param origoId the id of the record the tree is requested for.
+     * @return the record with origoId, or null if it is not in the tree.
      */
-    
-    private static void loadAndSetChildRelations(DsRecordDto currentRecord, HashSet<String> previousIdsForCycleDetection, DsRecordDto origo)  {
-       
-                
-        List<String> childrenIds = currentRecord.getChildrenIds();                
-        List<DsRecordDto> childrenRecords = new ArrayList<>();
-        for (String childId: childrenIds) {
-                        
-            //DsRecordDto child = getRecord(childId);          
-            DsRecordDto child = childId.equals(origo.getId()) ? origo: getRecord(childId);
-            child.setParent(currentRecord);
-            childrenRecords.add(child);
-            
-            if(previousIdsForCycleDetection.contains(child.getId())){
-                log.error("Parent-child cycle detected for id (stopped loading rest of hierarchy tree): {} ", child.getId());
-                throw new InternalServiceException("Parent-child cycle detected for id:"+child.getId());
+    private static DsRecordDto linkTree(List<DsRecordDto> nodes, String topId, String origoId) {
+        Map<String, DsRecordDto> byId = new HashMap<>();
+        for (DsRecordDto node : nodes) {
+            node.setChildrenIds(new ArrayList<>());
+            node.setChildren(new ArrayList<>());
+            byId.put(node.getId(), node);
+        }
+        for (DsRecordDto node : nodes) {
+            DsRecordDto parent = node.getId().equals(topId) ? null : byId.get(node.getParentId());
+            if (parent != null) {
+                parent.getChildrenIds().add(node.getId());
+                parent.getChildren().add(node);
+                node.setParent(parent);
             }
-            previousIdsForCycleDetection.add(child.getId());
-            loadAndSetChildRelations(child, previousIdsForCycleDetection,origo); //This is the recursive call
-        }             
-       
-        currentRecord.setChildren(childrenRecords);
-        
+        }
+        return byId.get(origoId);
     }
 
-    
     /**
-     * This method will load the local tree around the given record. It will
-     * 1) Load the parent if it exists, and this will be set as parent. Parent will not point down to this child
-     * 2) Load all children and set them as children. The children will not point back to this parent.   
-     * 
-     * @param record The input record with the local tree set
-     * @exception InvalidArgumentServiceException is thrown if a record has over 1000 children. It is not expected any caller would want this, but is instead seen as mistake.
+     * Load the records with the given ids and set the local tree for each of them, see
+     * {@link #setLocalTreeForRecords(DsStorage, List)}. All queries are done on the given storage, four queries in
+     * total, instead of a transaction for each record, parent and child.
+     *
+     * @param storage the storage to use for all queries.
+     * @param ids the normalised ids of the records to load. Ids that do not exist are skipped.
+     * @return the records with local tree in the same order as the ids.
+     * @exception InvalidArgumentServiceException is thrown if a record has over 1000 children.
      */
-    
-    private static void setLocalTreeForRecord(DsRecordDto record)  {
+    private static List<DsRecordDto> loadRecordsWithLocalTree(DsStorage storage, List<String> ids) throws SQLException {
+        List<DsRecordDto> records = storage.loadRecordsWithChildIds(ids);
+        setLocalTreeForRecords(storage, records);
+        return records;
+    }
 
-        //Doom switch prevention.
-        if (record.getChildrenIds() != null && record.getChildrenIds().size() > 1000) { // It seems our collections will have a very few or millions. 
-            throw new InvalidArgumentServiceException("Record has too many children, id:"+record.getId());           
+    /**
+     * Load the local tree around the given records. For each record
+     * <ol>
+     *   <li>the parent is loaded, if it exists, and set as parent. The parent will not point down to the record</li>
+     *   <li>all children are loaded and set as children. The children will not point back to the record</li>
+     * </ol>
+     * The parents and children are loaded with the given storage, so no other database connection is used.
+     *
+     * @param storage the storage to load the parents and children from.
+     * @param records records with childrenIds.
+     * @exception InvalidArgumentServiceException is thrown if a record has over 1000 children. It is not expected any
+     *            caller would want this, but is instead seen as mistake.
+     */
+    private static void setLocalTreeForRecords(DsStorage storage, List<DsRecordDto> records) throws SQLException {
+        // Parents and children are loaded as separate objects, also if they are part of the batch,
+        // so they do not get a local tree themselves
+        Set<String> relatedIds = new LinkedHashSet<>();
+        for (DsRecordDto record : records) {
+            if (record.getChildrenIds().size() > 1000) { // Doom switch. Collections have very few or millions
+                throw new InvalidArgumentServiceException("Record has too many children, id:"+record.getId());
+            }
+            if (record.getParentId() != null) {
+                relatedIds.add(IdNormaliser.normaliseId(record.getParentId()));
+            }
+            relatedIds.addAll(record.getChildrenIds());
         }
-        
-        //Set parent
-        String parentId=record.getParentId();
-        if (parentId != null) {
-            DsRecordDto parent = getRecord(parentId);
-            record.setParent(parent);
+        // The same parents are requested again and again across batches, so they are taken from the record cache.
+        // The records in the batch are not cached, as an export would just push everything else out of the cache
+        Map<String, DsRecordDto> related = new HashMap<>();
+        loadRecordsWithChildIds(storage, relatedIds).forEach(record -> related.put(record.getId(), record));
+
+        for (DsRecordDto record : records) {
+            if (record.getParentId() != null) {
+                record.setParent(related.get(IdNormaliser.normaliseId(record.getParentId())));
+            }
+            record.getChildrenIds().stream()
+                    .map(related::get)
+                    .filter(Objects::nonNull)
+                    .forEach(record::addChildrenItem);
         }
-        
-        record.getChildrenIds().stream()
-        .map(DsStorageFacade::getRecord)
-        .forEach(record::addChildrenItem);
-      
-         
-        //just alternative method                  
-        //childrenIds.forEach( c -> record.getChildren().add(getRecord(c))); // Just to make Toke happy, but only as a comment instead of the for-loop        
     }
 
-    
+    /**
+     * Load a record and its children ids, using the record cache if it is enabled.
+     * @param storage the storage to load from if the record is not cached.
+     * @param recordId the normalised id of the record.
+     * @return the record or null if it does not exist.
+     * @see DsStorage#loadRecordWithChildIds(String)
+     */
+    private static DsRecordDto loadRecordWithChildIds(DsStorage storage, String recordId) throws SQLException {
+        RecordCache cache = getRecordCache();
+        return cache == null ? storage.loadRecordWithChildIds(recordId) : cache.loadRecordWithChildIds(storage, recordId);
+    }
+
+    /**
+     * Load records and their children ids, using the record cache if it is enabled.
+     * @param storage the storage to load from for the records that are not cached.
+     * @param ids the normalised ids of the records.
+     * @return the records in the same order as the ids. Ids that do not exist are skipped.
+     * @see DsStorage#loadRecordsWithChildIds(Collection)
+     */
+    private static List<DsRecordDto> loadRecordsWithChildIds(DsStorage storage, Collection<String> ids) throws SQLException {
+        RecordCache cache = getRecordCache();
+        return cache == null ? storage.loadRecordsWithChildIds(ids) : cache.loadRecordsWithChildIds(storage, ids);
+    }
+
+    /**
+     * Remove modified records from the record cache. Must be called after the changes have been committed.
+     * @param ids the ids of the modified records. Null values are ignored.
+     */
+    private static void invalidateCachedRecords(Collection<String> ids) {
+        RecordCache cache = getRecordCache();
+        if (cache != null) {
+            cache.invalidate(ids);
+        }
+    }
+
+    /**
+     * Remove all records from the record cache. Must be called after the changes have been committed.
+     */
+    private static void invalidateAllCachedRecords() {
+        RecordCache cache = getRecordCache();
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    /**
+     * @return the record cache, created from the configuration on first call, or null if it is disabled with
+     *         {@code cache.records.enabled}.
+     */
+    static synchronized RecordCache getRecordCache() {
+        if (!recordCacheInitialized) {
+            if (ServiceConfig.isRecordCacheEnabled()) {
+                recordCache = new RecordCache(ServiceConfig.getRecordCacheMaxBytes(),
+                                              ServiceConfig.getRecordCacheMaxRecordBytes(),
+                                              ServiceConfig.isRecordCacheValidateMTime());
+            }
+            recordCacheInitialized = true;
+        }
+        return recordCache;
+    }
+
+    /**
+     * Replace the record cache. Used by unit tests.
+     * @param cache the new cache. If null, the cache is created from the configuration on next use.
+     */
+    static synchronized void setRecordCache(RecordCache cache) {
+        recordCache = cache;
+        recordCacheInitialized = cache != null;
+    }
+
+    /**
+     * @return true if export prefetching runs on virtual threads and storage actions are bounded by a
+     *         {@link StorageActionLimiter}. Requires {@code threads.virtual.enabled} and Java 21+.
+     */
+    static synchronized boolean useVirtualThreads() {
+        if (virtualThreads == null) {
+            virtualThreads = ServiceConfig.isVirtualThreadsEnabled();
+            if (virtualThreads && !VirtualThreads.isSupported()) {
+                log.warn("threads.virtual.enabled is true, but Java {} does not support virtual threads. " +
+                         "Using platform threads", System.getProperty("java.version"));
+                virtualThreads = false;
+            }
+        }
+        return virtualThreads;
+    }
+
+    /**
+     * @return the limiter for concurrent storage actions, created from the configuration on first call, or null if
+     *         virtual threads are not used.
+     */
+    static synchronized StorageActionLimiter getStorageActionLimiter() {
+        if (!storageActionLimiterInitialized) {
+            if (useVirtualThreads()) {
+                storageActionLimiter = new StorageActionLimiter(
+                        ServiceConfig.getVirtualThreadsMaxConcurrentStorageActions(),
+                        ServiceConfig.getDBPoolMaxWaitMillis());
+            }
+            storageActionLimiterInitialized = true;
+        }
+        return storageActionLimiter;
+    }
+
+    /**
+     * Replace the storage action limiter. Used by unit tests.
+     * @param limiter the new limiter. Null means no limit.
+     */
+    static synchronized void setStorageActionLimiter(StorageActionLimiter limiter) {
+        storageActionLimiter = limiter;
+        storageActionLimiterInitialized = true;
+    }
+
+    /**
+     * Enable or disable virtual threads. Used by unit tests.
+     * @param virtual true to use virtual threads if supported. If null, the configuration is used.
+     *                The storage action limiter is recreated on next use.
+     */
+    static synchronized void setVirtualThreads(Boolean virtual) {
+        virtualThreads = virtual == null ? null : virtual && VirtualThreads.isSupported();
+        storageActionLimiter = null;
+        storageActionLimiterInitialized = false;
+    }
+
     /**
     *  Load full transcription for a stream 
     *  
@@ -741,14 +1429,15 @@ public class DsStorageFacade {
     *  @return TranscriptionDto Return empty transcriptionDto if none is found
     */
     public static TranscriptionDto getTranscription(String fileId) {        
-       return performStorageAction(
+       return performReadOnlyStorageAction(
                "getTranscription(fileId='" + fileId +")",
                storage -> storage.getTranscriptionByFileId(fileId));             
     }
     
 
     /**
-     * Callback used with {@link #performStorageAction(String, StorageAction)}.
+     * Callback used with {@link #performStorageAction(String, StorageAction)} and
+     * {@link #performReadOnlyStorageAction(String, StorageAction)}.
      * @param <T> the object returned from the {@link StorageAction#process(DsStorage)} method.
      */
     @FunctionalInterface
@@ -0,0 +1,47 @@
+package dk.kb.storage.facade;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the records delivered by an export while it is running, so that the paging information can be
+ * calculated when the export has finished instead of before it starts.
+ */
+public class ExportProgress {
+
+    private final AtomicLong delivered = new AtomicLong(0);
+    private final AtomicLong lastMTime;
+
+    /**
+     * @param mTime the mTime the export starts after.
+     */
+    public ExportProgress(long mTime) {
+        lastMTime = new AtomicLong(mTime);
+    }
+
+    /**
+     * Register that a number of records has been delivered.
+     * @param count the number of delivered records.
+     * @param mTime the mTime of the last of the delivered records.
+     */
+    public void delivered(long count, long mTime) {
+        if (count == 0) {
+            return;
+        }
+        delivered.addAndGet(count);
+        lastMTime.set(mTime);
+    }
+
+    /**
+     * @return the number of records delivered so far.
+     */
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * @return the mTime of the last delivered record or the start mTime if no records have been delivered.
+     */
+    public long getLastMTime() {
+        return lastMTime.get();
+    }
+}
@@ -0,0 +1,274 @@
+package dk.kb.storage.facade;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.storage.model.v1.DsRecordDto;
+import dk.kb.storage.model.v1.RecordCacheStatusDto;
+import dk.kb.storage.storage.DsStorage;
+
+/**
+ * In-memory least recently used cache for records, keyed by the normalised record id. The cache is bounded by the
+ * estimated memory usage of the records, where the {@code data} field is by far the largest part.
+ * <p>
+ * Only the record itself is cached. The children ids are loaded from the database for each request, so creating,
+ * moving or deleting a child never leaves a parent with outdated children ids in the cache.
+ * <p>
+ * Writes through {@link DsStorageFacade} invalidate the written records and their parents after the transaction has
+ * been committed. A record loaded by a request that started before an invalidation is not added to the cache, so a
+ * slow reader cannot put an old version of a record back into the cache.
+ * Records read from a read replica are never added to the cache, as the replica can lag behind the primary database
+ * and the cache would then keep an old version of a record after the replica has caught up.
+ * If {@code validateMTime} is true, the mTime of cached records is compared to the database before they are used, so
+ * changes made by other ds-storage instances or directly in the database are also detected. This costs a single light
+ * query for all the cached records in a request.
+ * <p>
+ * Records handed out by the cache are copies, so callers are free to modify them, e.g. for building record trees.
+ */
+public class RecordCache {
+
+    private static final Logger log = LoggerFactory.getLogger(RecordCache.class);
+
+    /**
+     * Estimated memory usage for a cached record, not counting the data. Covers the object, the map entry and the
+     * small string fields.
+     */
+    static final long ENTRY_OVERHEAD_BYTES = 512;
+
+    private final long maxBytes;
+    private final long maxRecordBytes;
+    private final boolean validateMTime;
+
+    // Access ordered, so the first entry is the least recently used
+    private final LinkedHashMap<String, DsRecordDto> records = new LinkedHashMap<>(1000, 0.75f, true);
+    private long bytes = 0;
+    // Incremented on each invalidation. Records loaded before an invalidation are not added to the cache
+    private long generation = 0;
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong stale = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    /**
+     * @param maxBytes the maximum estimated number of bytes used by the cached records.
+     * @param maxRecordBytes records estimated to use more than this number of bytes are not cached.
+     * @param validateMTime if true, the mTimes of cached records are checked against the database before use.
+     */
+    public RecordCache(long maxBytes, long maxRecordBytes, boolean validateMTime) {
+        this.maxBytes = maxBytes;
+        this.maxRecordBytes = Math.min(maxRecordBytes, maxBytes);
+        this.validateMTime = validateMTime;
+        log.info("Created {}", this);
+    }
+
+    /**
+     * Load the records with the given ids and their children ids. The result is the same as
+     * {@link DsStorage#loadRecordsWithChildIds(Collection)}, but the records are taken from the cache when possible.
+     * Records not in the cache are loaded from the storage with a single query and added to the cache, unless the
+     * storage reads from a read replica.
+     *
+     * @param storage the storage used for loading records, mTimes and children ids.
+     * @param ids the normalised ids of the records to load.
+     * @return the records with childrenIds in the same order as the given ids. Ids that do not exist are skipped.
+     */
+    public ArrayList<DsRecordDto> loadRecordsWithChildIds(DsStorage storage, Collection<String> ids) throws SQLException {
+        Set<String> uniqueIds = new LinkedHashSet<>(ids);
+        long startGeneration;
+        Map<String, DsRecordDto> cached = new HashMap<>();
+        synchronized (this) {
+            startGeneration = generation;
+            for (String id : uniqueIds) {
+                DsRecordDto record = records.get(id);
+                if (record != null) {
+                    cached.put(id, record);
+                }
+            }
+        }
+
+        if (validateMTime && !cached.isEmpty()) {
+            Map<String, Long> mTimes = storage.loadMTimes(cached.keySet());
+            Iterator<Map.Entry<String, DsRecordDto>> entries = cached.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<String, DsRecordDto> entry = entries.next();
+                if (!entry.getValue().getmTime().equals(mTimes.get(entry.getKey()))) {
+                    entries.remove();
+                    remove(entry.getKey(), entry.getValue());
+                    stale.incrementAndGet();
+                }
+            }
+        }
+        hits.addAndGet(cached.size());
+
+        List<String> missingIds = new ArrayList<>();
+        for (String id : uniqueIds) {
+            if (!cached.containsKey(id)) {
+                missingIds.add(id);
+            }
+        }
+        misses.addAndGet(missingIds.size());
+        Map<String, DsRecordDto> loaded = storage.loadRecords(missingIds);
+        if (!storage.isUsingReadReplica()) { // A lagging replica can deliver an old version of the record
+            put(loaded.values(), startGeneration);
+        }
+
+        Map<String, DsRecordDto> found = new LinkedHashMap<>();
+        for (String id : uniqueIds) {
+            DsRecordDto record = cached.containsKey(id) ? copy(cached.get(id)) : loaded.get(id);
+            if (record != null) {
+                found.put(id, record);
+            }
+        }
+        Map<String, List<String>> childrenIds = storage.getChildrenIds(found.keySet());
+        ArrayList<DsRecordDto> result = new ArrayList<>(found.size());
+        for (DsRecordDto record : found.values()) {
+            record.setChildrenIds(childrenIds.get(record.getId()));
+            result.add(record);
+        }
+        return result;
+    }
+
+    /**
+     * Load a single record and its children ids.
+     * @see #loadRecordsWithChildIds(DsStorage, Collection)
+     * @param storage the storage used for loading.
+     * @param id the normalised id of the record.
+     * @return the record with childrenIds or null if it does not exist.
+     */
+    public DsRecordDto loadRecordWithChildIds(DsStorage storage, String id) throws SQLException {
+        List<DsRecordDto> records = loadRecordsWithChildIds(storage, List.of(id));
+        return records.isEmpty() ? null : records.get(0);
+    }
+
+    /**
+     * Add copies of the given records to the cache, unless the cache has been invalidated since the records were
+     * loaded.
+     * @param loaded records loaded from the storage.
+     * @param loadGeneration the generation at the time the loading started.
+     */
+    private synchronized void put(Collection<DsRecordDto> loaded, long loadGeneration) {
+        if (loadGeneration != generation) {
+            return;
+        }
+        for (DsRecordDto record : loaded) {
+            long size = estimateBytes(record);
+            if (size > maxRecordBytes) {
+                continue;
+            }
+            DsRecordDto old = records.put(record.getId(), copy(record));
+            if (old != null) {
+                bytes -= estimateBytes(old);
+            }
+            bytes += size;
+        }
+        Iterator<DsRecordDto> eldest = records.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= estimateBytes(eldest.next());
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Remove the record with the given id, if the cached version is the given one.
+     */
+    private synchronized void remove(String id, DsRecordDto record) {
+        if (records.get(id) == record) {
+            records.remove(id);
+            bytes -= estimateBytes(record);
+        }
+    }
+
+    /**
+     * Remove the records with the given ids from the cache. Must be called after the changes to the records have been
+     * committed.
+     * @param ids normalised ids of modified records. Null values are ignored.
+     */
+    public synchronized void invalidate(Collection<String> ids) {
+        generation++;
+        for (String id : ids) {
+            if (id == null) {
+                continue;
+            }
+            DsRecordDto old = records.remove(id);
+            if (old != null) {
+                bytes -= estimateBytes(old);
+            }
+        }
+    }
+
+    /**
+     * Remove all records from the cache. Used after changes where the modified records are not known.
+     */
+    public synchronized void invalidateAll() {
+        generation++;
+        records.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @return hit rate, size and other metrics for the cache.
+     */
+    public synchronized RecordCacheStatusDto getStatus() {
+        long hitCount = hits.get();
+        long lookups = hitCount + misses.get();
+        return new RecordCacheStatusDto()
+                .entries(records.size())
+                .bytes(bytes)
+                .maxBytes(maxBytes)
+                .hits(hitCount)
+                .misses(misses.get())
+                .stale(stale.get())
+                .evictions(evictions.get())
+                .hitRate(lookups == 0 ? 0.0 : (double) hitCount / lookups)
+                .validateMTime(validateMTime);
+    }
+
+    /**
+     * @return the estimated memory usage for the record in the cache. Strings use up to 2 bytes per char.
+     */
+    static long estimateBytes(DsRecordDto record) {
+        return ENTRY_OVERHEAD_BYTES + (record.getData() == null ? 0 : 2L * record.getData().length());
+    }
+
+    /**
+     * Copy the fields of the record that are loaded from the records table. Children ids and the record tree are not
+     * copied.
+     */
+    static DsRecordDto copy(DsRecordDto record) {
+        DsRecordDto copy = new DsRecordDto();
+        copy.setId(record.getId());
+        copy.setOrgid(record.getOrgid());
+        copy.setIdError(record.getIdError());
+        copy.setOrigin(record.getOrigin());
+        copy.setRecordType(record.getRecordType());
+        copy.setDeleted(record.getDeleted());
+        copy.setData(record.getData());
+        copy.setcTime(record.getcTime());
+        copy.setmTime(record.getmTime());
+        copy.setcTimeHuman(record.getcTimeHuman());
+        copy.setmTimeHuman(record.getmTimeHuman());
+        copy.setParentId(record.getParentId());
+        copy.setReferenceId(record.getReferenceId());
+        copy.setKalturaId(record.getKalturaId());
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        return "RecordCache(maxBytes=" + maxBytes + ", maxRecordBytes=" + maxRecordBytes +
+               ", validateMTime=" + validateMTime + ")";
+    }
+}
@@ -0,0 +1,118 @@
+package dk.kb.storage.facade;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.storage.webservice.exception.ServiceUnavailableServiceException;
+import dk.kb.util.webservice.exception.InternalServiceException;
+
+/**
+ * Bounds the number of storage actions running at the same time. Used when storage actions run on virtual threads,
+ * where the number of threads is no longer bounded by the thread pool of the servlet container. Threads waiting for
+ * a permit are parked cheaply and served in order, instead of piling up in the database connection pool.
+ * <p>
+ * A thread that already holds a permit does not need another one for nested storage actions, so nested actions
+ * cannot deadlock on the limiter.
+ */
+public class StorageActionLimiter {
+
+    private static final Logger log = LoggerFactory.getLogger(StorageActionLimiter.class);
+
+    private final int maxConcurrent;
+    private final long maxWaitMillis;
+    private final Semaphore permits;
+    private final ThreadLocal<Integer> depth = ThreadLocal.withInitial(() -> 0);
+
+    private final AtomicInteger active = new AtomicInteger(0);
+    private final AtomicInteger peakActive = new AtomicInteger(0);
+
+    /**
+     * @param maxConcurrent the maximum number of storage actions running at the same time, normally the size of the
+     *                      connection pool.
+     * @param maxWaitMillis the maximum number of milliseconds to wait for a permit. -1 means wait indefinitely.
+     */
+    public StorageActionLimiter(int maxConcurrent, long maxWaitMillis) {
+        this.maxConcurrent = maxConcurrent;
+        this.maxWaitMillis = maxWaitMillis;
+        this.permits = new Semaphore(maxConcurrent, true);
+        log.info("Created {}", this);
+    }
+
+    /**
+     * Wait for a permit to perform a storage action. Must be followed by {@link #release()} in a finally block.
+     * @param actionID a debug-oriented ID for the action.
+     * @throws ServiceUnavailableServiceException if no permit was available within the maximum wait time.
+     */
+    public void acquire(String actionID) {
+        int currentDepth = depth.get();
+        if (currentDepth > 0) {
+            depth.set(currentDepth + 1);
+            return;
+        }
+        try {
+            boolean acquired;
+            if (maxWaitMillis < 0) {
+                permits.acquire();
+                acquired = true;
+            } else {
+                acquired = permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+            }
+            if (!acquired) {
+                String message = "No database capacity available within " + maxWaitMillis + " ms for action '" +
+                                 actionID + "'. " + maxConcurrent + " storage actions are running";
+                log.warn(message);
+                throw new ServiceUnavailableServiceException(message);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalServiceException("Interrupted while waiting to perform action '" + actionID + "'", e);
+        }
+        depth.set(1);
+        peakActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+    }
+
+    /**
+     * Release the permit acquired with {@link #acquire(String)}.
+     */
+    public void release() {
+        int currentDepth = depth.get();
+        if (currentDepth > 1) {
+            depth.set(currentDepth - 1);
+            return;
+        }
+        depth.remove();
+        active.decrementAndGet();
+        permits.release();
+    }
+
+    /**
+     * @return the number of storage actions running now.
+     */
+    public int getActive() {
+        return active.get();
+    }
+
+    /**
+     * @return the highest number of storage actions that have been running at the same time.
+     */
+    public int getPeakActive() {
+        return peakActive.get();
+    }
+
+    /**
+     * @return the number of threads waiting for a permit.
+     */
+    public int getWaiting() {
+        return permits.getQueueLength();
+    }
+
+    @Override
+    public String toString() {
+        return "StorageActionLimiter(maxConcurrent=" + maxConcurrent + ", maxWaitMillis=" + maxWaitMillis +
+               ", active=" + active.get() + ", waiting=" + permits.getQueueLength() + ")";
+    }
+}
@@ -0,0 +1,111 @@
+package dk.kb.storage.storage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps track of the requests for connections from the connection pool: The number of requests currently waiting
+ * for a connection, the number of timeouts and a histogram of the time spent waiting for connections.
+ * <p>
+ * The connection pool itself only knows the number of active and idle connections, so this is needed for seeing
+ * why requests are slow under burst load.
+ */
+public class ConnectionPoolMetrics {
+
+    /**
+     * Upper bounds in milliseconds for the buckets of the borrow wait time histogram. The last bucket counts the rest.
+     */
+    static final long[] BUCKET_BOUNDS_MILLIS = new long[]{1, 5, 10, 50, 100, 500, 1000, 5000, 10000};
+
+    private final AtomicInteger waiters = new AtomicInteger(0);
+    private final AtomicLong borrows = new AtomicLong(0);
+    private final AtomicLong timeouts = new AtomicLong(0);
+    private final AtomicLong maxWaitNanos = new AtomicLong(0);
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS_MILLIS.length + 1);
+
+    /**
+     * Call before requesting a connection from the pool.
+     * @return the start time for the request, to be given to {@link #borrowed(long)} or {@link #timeout(long)}.
+     */
+    public long waiting() {
+        waiters.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Call when a connection has been received from the pool.
+     * @param start the value returned by {@link #waiting()}.
+     */
+    public void borrowed(long start) {
+        done(start);
+        borrows.incrementAndGet();
+    }
+
+    /**
+     * Call when a request for a connection has failed, e.g. because of timeout.
+     * @param start the value returned by {@link #waiting()}.
+     */
+    public void timeout(long start) {
+        done(start);
+        timeouts.incrementAndGet();
+    }
+
+    private void done(long start) {
+        long waitNanos = System.nanoTime() - start;
+        waiters.decrementAndGet();
+        maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+        long waitMillis = waitNanos / 1000000;
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_MILLIS.length && waitMillis >= BUCKET_BOUNDS_MILLIS[bucket]) {
+            bucket++;
+        }
+        buckets.incrementAndGet(bucket);
+    }
+
+    /**
+     * @return the number of requests currently waiting for a connection.
+     */
+    public int getWaiters() {
+        return waiters.get();
+    }
+
+    /**
+     * @return the number of connections handed out by the pool.
+     */
+    public long getBorrows() {
+        return borrows.get();
+    }
+
+    /**
+     * @return the number of requests for connections that failed.
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * @return the longest time in milliseconds a request has waited for a connection.
+     */
+    public long getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1000000;
+    }
+
+    /**
+     * The histogram for the time requests have waited for connections. The key is the exclusive upper bound in
+     * milliseconds for the bucket, e.g. {@code <5ms}, and the value is the number of requests in the bucket.
+     * The last bucket, with key {@code >=10000ms}, counts the rest.
+     * @return the wait time histogram in increasing order.
+     */
+    public Map<String, Long> getWaitHistogram() {
+        Map<String, Long> histogram = new LinkedHashMap<>();
+        for (int i = 0 ; i < BUCKET_BOUNDS_MILLIS.length ; i++) {
+            histogram.put("<" + BUCKET_BOUNDS_MILLIS[i] + "ms", buckets.get(i));
+        }
+        histogram.put(">=" + BUCKET_BOUNDS_MILLIS[BUCKET_BOUNDS_MILLIS.length-1] + "ms",
+                      buckets.get(BUCKET_BOUNDS_MILLIS.length));
+        return histogram;
+    }
+}
@@ -0,0 +1,16 @@
+package dk.kb.storage.storage;
+
+import java.sql.SQLException;
+
+/**
+ * Thrown when no connection could be borrowed from the connection pool within the configured maximum wait time
+ * {@code db.pool.maxWaitMillis}. This means the service is overloaded, not that the database is broken.
+ */
+public class ConnectionPoolTimeoutException extends SQLException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ConnectionPoolTimeoutException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,196 @@
+package dk.kb.storage.storage;
+
+import dk.kb.storage.util.MTimeAllocator;
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Locale;
+
+/**
+ * {@link MTimeAllocator} for running multiple ds-storage instances against the same database.
+ * <p>
+ * The last allocated mTime is kept in the single row table {@code ds_mtime_allocation}. Each instance fetches blocks
+ * of mTimes by moving the last allocated mTime forward in its own short transaction, so the row lock is only held
+ * for the allocation and not for the write using the mTimes. A block starts at the current time (millis with 3
+ * added digits) or right after the last allocated mTime, whatever is largest, so the mTimes follow the clock as for
+ * {@link dk.kb.storage.util.UniqueTimestampGenerator}.
+ * <p>
+ * mTimes are handed out from the current block until it is used or it is older than the maximum block age.
+ * Unused mTimes in a discarded block are never used. As blocks are used in parallel by the instances, an instance
+ * can write a record with an mTime below mTimes that other instances have already written. The maximum block age
+ * bounds how far behind the clock a new mTime can be, which gives the {@link #getHarvestHorizon() harvest horizon}:
+ * Records with mTimes newer than the current time minus the maximum block age and the harvest margin are not
+ * delivered by harvesting yet, so harvesters paging by mTime never skip past a record that is written later.
+ * The harvest margin covers the time from allocation of an mTime to commit of the write and differences between
+ * the clocks of the instances.
+ * <p>
+ * Allocation uses a dedicated connection pool, so allocation never waits for a connection held by a writer.
+ */
+public class DatabaseMTimeAllocator implements MTimeAllocator {
+    private static final Logger log = LoggerFactory.getLogger(DatabaseMTimeAllocator.class);
+
+    private static final String ALLOCATION_TABLE = "ds_mtime_allocation";
+    private static final String ID_COLUMN = "id";
+    private static final String LAST_MTIME_COLUMN = "last_mtime";
+    private static final int ALLOCATION_ROW_ID = 1;
+
+    //UPDATE ds_mtime_allocation SET last_mtime = GREATEST(last_mtime + 1, ?) + ? - 1 WHERE id = 1
+    private static final String allocateStatement = "UPDATE " + ALLOCATION_TABLE + " SET " +
+            LAST_MTIME_COLUMN + " = GREATEST(" + LAST_MTIME_COLUMN + " + 1, ?) + ? - 1" +
+            " WHERE " + ID_COLUMN + " = " + ALLOCATION_ROW_ID;
+    private static final String lastMTimeStatement = "SELECT " + LAST_MTIME_COLUMN + " FROM " + ALLOCATION_TABLE +
+            " WHERE " + ID_COLUMN + " = " + ALLOCATION_ROW_ID;
+    private static final String createRowStatement = "INSERT INTO " + ALLOCATION_TABLE +
+            " (" + ID_COLUMN + ", " + LAST_MTIME_COLUMN + ") VALUES (" + ALLOCATION_ROW_ID + ", 0)";
+
+    private final BasicDataSource dataSource;
+    private final int blockSize;
+    private final long maxBlockAgeMillis;
+    private final long harvestMarginMillis;
+
+    // The current block is [nextFree, blockEnd]. Guarded by this
+    private long nextFree = 0;
+    private long blockEnd = -1;
+    private long blockCreated = 0;
+
+    /**
+     * @param driverName        JDBC driver.
+     * @param driverUrl         JDBC URL for the database holding ds_records.
+     * @param userName          database user.
+     * @param password          database password.
+     * @param blockSize         the number of mTimes to fetch from the database in each round trip.
+     * @param maxBlockAgeMillis the maximum time in milliseconds a block is used after it has been fetched.
+     * @param harvestMarginMillis the time in milliseconds that the harvest horizon is held back in addition to
+     *                            maxBlockAgeMillis, to allow for writes to be committed.
+     */
+    public DatabaseMTimeAllocator(String driverName, String driverUrl, String userName, String password,
+                                  int blockSize, long maxBlockAgeMillis, long harvestMarginMillis) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize must be at least 1 but was " + blockSize);
+        }
+        this.blockSize = blockSize;
+        this.maxBlockAgeMillis = maxBlockAgeMillis;
+        this.harvestMarginMillis = harvestMarginMillis;
+
+        dataSource = new BasicDataSource();
+        dataSource.setDriverClassName(driverName);
+        dataSource.setUsername(userName);
+        dataSource.setPassword(password);
+        dataSource.setUrl(driverUrl);
+        dataSource.setDefaultReadOnly(false);
+        dataSource.setDefaultAutoCommit(false);
+        dataSource.setMaxTotal(2);
+        dataSource.setMaxIdle(2);
+        log.info("Created {}", this);
+    }
+
+    @Override
+    public long next() {
+        return reserve(1);
+    }
+
+    @Override
+    public synchronized long reserve(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("At least 1 mTime must be reserved but count was " + count);
+        }
+        if (blockEnd - nextFree + 1 < count || System.currentTimeMillis() - blockCreated > maxBlockAgeMillis) {
+            fetchBlock(Math.max(blockSize, count));
+        }
+        long first = nextFree;
+        nextFree += count;
+        return first;
+    }
+
+    /**
+     * A block fetched at time {@code t} only holds mTimes from {@code t} and later and is used until
+     * {@code t + maxBlockAgeMillis}, so no instance hands out mTimes older than {@code now - maxBlockAgeMillis}.
+     * @return the current time minus the maximum block age and the harvest margin as an mTime.
+     */
+    @Override
+    public long getHarvestHorizon() {
+        return (System.currentTimeMillis() - maxBlockAgeMillis - harvestMarginMillis)*1000 - 1;
+    }
+
+    /**
+     * Fetch a new block of mTimes from the database. The remaining mTimes of the current block are discarded.
+     */
+    private void fetchBlock(int size) {
+        long now = System.currentTimeMillis();
+        try (Connection connection = dataSource.getConnection()) {
+            try {
+                long last = allocate(connection, now*1000, size);
+                connection.commit();
+                nextFree = last - size + 1;
+                blockEnd = last;
+                blockCreated = now;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            String message = "Unable to allocate " + size + " mTimes from the database";
+            log.error(message, e);
+            throw new IllegalStateException(message, e);
+        }
+    }
+
+    /**
+     * Move the last allocated mTime forward and return the new last allocated mTime.
+     * Creates the allocation row if it does not exist.
+     */
+    private long allocate(Connection connection, long nowStamp, int size) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(allocateStatement)) {
+            stmt.setLong(1, nowStamp);
+            stmt.setLong(2, size);
+            if (stmt.executeUpdate() == 0) {
+                createAllocationRow();
+                stmt.setLong(1, nowStamp);
+                stmt.setLong(2, size);
+                stmt.executeUpdate();
+            }
+        }
+        try (PreparedStatement stmt = connection.prepareStatement(lastMTimeStatement);
+             ResultSet rs = stmt.executeQuery()) {
+            if (!rs.next()) {
+                throw new SQLException("No row in " + ALLOCATION_TABLE + " after allocation");
+            }
+            return rs.getLong(LAST_MTIME_COLUMN);
+        }
+    }
+
+    /**
+     * Create the allocation row in a separate transaction. Another instance creating it at the same time is ok.
+     */
+    private void createAllocationRow() throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement stmt = connection.prepareStatement(createRowStatement)) {
+            stmt.executeUpdate();
+            connection.commit();
+            log.info("Created the mTime allocation row in {}", ALLOCATION_TABLE);
+        } catch (SQLException e) {
+            log.debug("Unable to create the mTime allocation row. Assuming it was created by another instance", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            dataSource.close();
+        } catch (SQLException e) {
+            log.warn("Exception closing the connection pool for mTime allocation", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "DatabaseMTimeAllocator(url='%s', blockSize=%d, maxBlockAgeMillis=%d, " +
+                             "harvestMarginMillis=%d)",
+                             dataSource.getUrl(), blockSize, maxBlockAgeMillis, harvestMarginMillis);
+    }
+}
@@ -8,23 +8,34 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import dk.kb.storage.config.ServiceConfig;
+import dk.kb.storage.model.v1.DatabasePoolStatusDto;
 import dk.kb.storage.model.v1.DsRecordDto;
 import dk.kb.storage.model.v1.DsRecordMinimalDto;
 import dk.kb.storage.model.v1.OriginCountDto;
 import dk.kb.storage.model.v1.RecordTypeDto;
 import dk.kb.storage.model.v1.RecordsCountDto;
 import dk.kb.storage.model.v1.TranscriptionDto;
-import dk.kb.storage.util.UniqueTimestampGenerator;
+import dk.kb.storage.util.MTimeAllocator;
+import dk.kb.storage.util.MinimalRecordsBinary;
 
 
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 
 
@@ -36,32 +47,92 @@ public class DsStorage implements AutoCloseable {
 
     private static final Logger log = LoggerFactory.getLogger(DsStorage.class);
 
-    private static SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ssZ",Locale.getDefault());
+    private static final DateTimeFormatter dateFormat =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ssZ", Locale.getDefault()).withZone(ZoneId.systemDefault());
+
+    // Consecutive records are often modified in the same second, so each thread remembers the last formatted second
+    private static final ThreadLocal<HumanDateCache> lastHumanDate = ThreadLocal.withInitial(HumanDateCache::new);
     
     
     private static final String TRANSCRIPTIONS_TABLE = "transcriptions";
     private static final String RECORDS_TABLE = "ds_records";
-    private static final String ORGID_COLUMN = "orgid";
-    private static final String ID_COLUMN = "id";
-    private static final String IDERROR_COLUMN = "id_error";
-    private static final String ORIGIN_COLUMN = "origin";
-    private static final String RECORDTYPE_COLUMN = "recordtype";
-    private static final String DELETED_COLUMN = "deleted";
-    private static final String DATA_COLUMN = "data";
-    private static final String CTIME_COLUMN = "ctime";
-    private static final String MTIME_COLUMN = "mtime";
-    private static final String PARENT_ID_COLUMN = "parentid";
-    private static final String RECORDS_REFERENCE_ID_COLUMN = "referenceid";
-    private static final String RECORDS_KALTURA_ID_COLUMN = "kalturaid";       
+    // Columns for ds_records are package private as they are used by RecordRowMapper
+    static final String ORGID_COLUMN = "orgid";
+    static final String ID_COLUMN = "id";
+    static final String IDERROR_COLUMN = "id_error";
+    static final String ORIGIN_COLUMN = "origin";
+    static final String RECORDTYPE_COLUMN = "recordtype";
+    static final String DELETED_COLUMN = "deleted";
+    static final String DATA_COLUMN = "data";
+    static final String CTIME_COLUMN = "ctime";
+    static final String MTIME_COLUMN = "mtime";
+    static final String PARENT_ID_COLUMN = "parentid";
+    static final String RECORDS_REFERENCE_ID_COLUMN = "referenceid";
+    static final String RECORDS_KALTURA_ID_COLUMN = "kalturaid";       
+    // Written together with data. Null for origins without precomputeJSON, see ServiceConfig.isPrecomputedJSON
+    static final String DATA_JSON_COLUMN = "data_json";
     private static final String FILE_ID_COLUMN = "fileid";
     private static final String FILE_NAME_COLUMN = "filename";
     private static final String TRANSCRIPTION_TEXT_COLUMN = "transcription";
     private static final String TRANSCRIPTION_LINES_COLUMN = "transcription_lines";
     
     private static String createRecordStatement = "INSERT INTO " + RECORDS_TABLE +
-            " (" + ID_COLUMN + ", " + ORIGIN_COLUMN + ", " +ORGID_COLUMN + ","+ RECORDTYPE_COLUMN +"," + IDERROR_COLUMN +","+ DELETED_COLUMN + ", " + CTIME_COLUMN + ", " + MTIME_COLUMN + ", " + DATA_COLUMN + ", " + PARENT_ID_COLUMN +  " , " + RECORDS_REFERENCE_ID_COLUMN +" , "+RECORDS_KALTURA_ID_COLUMN+")"+
-            " VALUES (?,?,?,?,?,?,?,?,?,?,?,?)";    
+            " (" + ID_COLUMN + ", " + ORIGIN_COLUMN + ", " +ORGID_COLUMN + ","+ RECORDTYPE_COLUMN +"," + IDERROR_COLUMN +","+ DELETED_COLUMN + ", " + CTIME_COLUMN + ", " + MTIME_COLUMN + ", " + DATA_COLUMN + ", " + PARENT_ID_COLUMN +  " , " + RECORDS_REFERENCE_ID_COLUMN +" , "+RECORDS_KALTURA_ID_COLUMN+", " + DATA_JSON_COLUMN + ")"+
+            " VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?)";    
        
+    // The kalturaId is kept if the record is updated with the same referenceId and no kalturaId. Else it is cleared.
+    // Must match DsStorageFacade.keepOrClearKalturaId
+    private static final String upsertKalturaIdExpression = "CASE WHEN %1$s." + RECORDS_KALTURA_ID_COLUMN + " IS NULL" +
+            " AND %1$s." + RECORDS_REFERENCE_ID_COLUMN + " IS NOT NULL" +
+            " AND %1$s." + RECORDS_REFERENCE_ID_COLUMN + " = %2$s." + RECORDS_REFERENCE_ID_COLUMN +
+            " THEN %2$s." + RECORDS_KALTURA_ID_COLUMN + " ELSE NULL END";
+
+    // Same parameters as createRecordStatement. cTime, origin, orgid and id_error are not changed for existing records
+    private static final String upsertRecordStatement = createRecordStatement +
+            " ON CONFLICT (" + ID_COLUMN + ") DO UPDATE SET " +
+            RECORDTYPE_COLUMN + " = EXCLUDED." + RECORDTYPE_COLUMN + ", " +
+            DATA_COLUMN + " = EXCLUDED." + DATA_COLUMN + ", " +
+            DATA_JSON_COLUMN + " = EXCLUDED." + DATA_JSON_COLUMN + ", " +
+            MTIME_COLUMN + " = EXCLUDED." + MTIME_COLUMN + ", " +
+            DELETED_COLUMN + " = 0, " +
+            RECORDS_REFERENCE_ID_COLUMN + " = EXCLUDED." + RECORDS_REFERENCE_ID_COLUMN + ", " +
+            RECORDS_KALTURA_ID_COLUMN + " = " + String.format(Locale.ROOT, upsertKalturaIdExpression, "EXCLUDED", RECORDS_TABLE) + ", " +
+            PARENT_ID_COLUMN + " = EXCLUDED." + PARENT_ID_COLUMN;
+
+    // H2 does not support ON CONFLICT DO UPDATE. Same parameters and semantics as upsertRecordStatement
+    private static final String upsertRecordH2Statement = "MERGE INTO " + RECORDS_TABLE + " t USING (SELECT " +
+            "CAST(? AS VARCHAR(255)) AS " + ID_COLUMN + ", " +
+            "CAST(? AS VARCHAR(31)) AS " + ORIGIN_COLUMN + ", " +
+            "CAST(? AS VARCHAR(255)) AS " + ORGID_COLUMN + ", " +
+            "CAST(? AS VARCHAR(31)) AS " + RECORDTYPE_COLUMN + ", " +
+            "CAST(? AS INTEGER) AS " + IDERROR_COLUMN + ", " +
+            "CAST(? AS INTEGER) AS " + DELETED_COLUMN + ", " +
+            "CAST(? AS BIGINT) AS " + CTIME_COLUMN + ", " +
+            "CAST(? AS BIGINT) AS " + MTIME_COLUMN + ", " +
+            "CAST(? AS TEXT) AS " + DATA_COLUMN + ", " +
+            "CAST(? AS VARCHAR(255)) AS " + PARENT_ID_COLUMN + ", " +
+            "CAST(? AS VARCHAR(255)) AS " + RECORDS_REFERENCE_ID_COLUMN + ", " +
+            "CAST(? AS VARCHAR(255)) AS " + RECORDS_KALTURA_ID_COLUMN + ", " +
+            "CAST(? AS TEXT) AS " + DATA_JSON_COLUMN + ") s" +
+            " ON t." + ID_COLUMN + " = s." + ID_COLUMN +
+            " WHEN MATCHED THEN UPDATE SET " +
+            RECORDTYPE_COLUMN + " = s." + RECORDTYPE_COLUMN + ", " +
+            DATA_COLUMN + " = s." + DATA_COLUMN + ", " +
+            DATA_JSON_COLUMN + " = s." + DATA_JSON_COLUMN + ", " +
+            MTIME_COLUMN + " = s." + MTIME_COLUMN + ", " +
+            DELETED_COLUMN + " = 0, " +
+            RECORDS_REFERENCE_ID_COLUMN + " = s." + RECORDS_REFERENCE_ID_COLUMN + ", " +
+            RECORDS_KALTURA_ID_COLUMN + " = " + String.format(Locale.ROOT, upsertKalturaIdExpression, "s", "t") + ", " +
+            PARENT_ID_COLUMN + " = s." + PARENT_ID_COLUMN +
+            " WHEN NOT MATCHED THEN INSERT (" + ID_COLUMN + ", " + ORIGIN_COLUMN + ", " + ORGID_COLUMN + ", " +
+            RECORDTYPE_COLUMN + ", " + IDERROR_COLUMN + ", " + DELETED_COLUMN + ", " + CTIME_COLUMN + ", " +
+            MTIME_COLUMN + ", " + DATA_COLUMN + ", " + PARENT_ID_COLUMN + ", " + RECORDS_REFERENCE_ID_COLUMN + ", " +
+            RECORDS_KALTURA_ID_COLUMN + ", " + DATA_JSON_COLUMN + ")" +
+            " VALUES (s." + ID_COLUMN + ", s." + ORIGIN_COLUMN + ", s." + ORGID_COLUMN + ", s." + RECORDTYPE_COLUMN +
+            ", s." + IDERROR_COLUMN + ", s." + DELETED_COLUMN + ", s." + CTIME_COLUMN + ", s." + MTIME_COLUMN +
+            ", s." + DATA_COLUMN + ", s." + PARENT_ID_COLUMN + ", s." + RECORDS_REFERENCE_ID_COLUMN +
+            ", s." + RECORDS_KALTURA_ID_COLUMN + ", s." + DATA_JSON_COLUMN + ")";
+
     private static String updateRecordStatement = "UPDATE " + RECORDS_TABLE + " SET  "+          
             RECORDTYPE_COLUMN + " = ?  ,"+
             DATA_COLUMN + " = ? , "+                         
@@ -69,10 +140,10 @@ public class DsStorage implements AutoCloseable {
             DELETED_COLUMN + " = 0 , "+
             RECORDS_REFERENCE_ID_COLUMN + " = ? , "+
             RECORDS_KALTURA_ID_COLUMN + " = ? , "+
-            PARENT_ID_COLUMN + " = ?  "+            
+            PARENT_ID_COLUMN + " = ? , "+
+            DATA_JSON_COLUMN + " = ?  "+
             "WHERE "+
             ID_COLUMN + "= ?";
-    
 
     private static String updateKalturaIdStatement = "UPDATE " + RECORDS_TABLE + " SET  "+ 
             RECORDS_KALTURA_ID_COLUMN + " = ? ,"+
@@ -112,11 +183,73 @@ public class DsStorage implements AutoCloseable {
             RECORDS_REFERENCE_ID_COLUMN  + "= ?";
         
     
+    // Ordered by cTime so the children are always listed in creation order. Must match childrenIdsForParentsStatement
     private static String childrenIdsStatement = "SELECT " + ID_COLUMN +" FROM " + RECORDS_TABLE +
             " WHERE "
-            + PARENT_ID_COLUMN + "= ?";
+            + PARENT_ID_COLUMN + "= ?" +
+            " ORDER BY " + CTIME_COLUMN + " ASC";
+
+    //SELECT parentid, id FROM ds_records WHERE parentid = ANY(?) ORDER BY ctime ASC
+    private static String childrenIdsForParentsStatement = "SELECT " + PARENT_ID_COLUMN + ", " + ID_COLUMN +
+            " FROM " + RECORDS_TABLE +
+            " WHERE " + PARENT_ID_COLUMN + " = ANY(?)" +
+            " ORDER BY " + CTIME_COLUMN + " ASC";
 
-    private static String recordByIdStatement = "SELECT * FROM " + RECORDS_TABLE + " WHERE ID= ?";
+    private static String recordByIdStatement = "SELECT " + RecordRowMapper.ALL.getColumns() + " FROM " + RECORDS_TABLE + " WHERE ID= ?";
+
+    //SELECT id, origin, parentid FROM ds_records WHERE id = ?
+    private static String recordRelationByIdStatement = "SELECT " + ID_COLUMN + ", " + ORIGIN_COLUMN + ", " + PARENT_ID_COLUMN +
+            " FROM " + RECORDS_TABLE + " WHERE " + ID_COLUMN + " = ?";
+
+    /**
+     * The maximum number of parents followed by {@link #loadParentChain(String)} and the maximum number of levels
+     * below the top record loaded by {@link #loadSubtree(String, int)}. Stops endless recursion for cycles.
+     */
+    public static final int PARENT_CHAIN_MAX_DEPTH = 1000;
+
+    // WITH RECURSIVE parent_chain(id, origin, parentid, depth) AS (
+    //   SELECT id, origin, parentid, 0 FROM ds_records WHERE id = ?
+    //   UNION ALL
+    //   SELECT r.id, r.origin, r.parentid, c.depth + 1 FROM ds_records r JOIN parent_chain c ON r.id = c.parentid
+    //   WHERE c.depth < 1000)
+    // SELECT id, origin, parentid FROM parent_chain ORDER BY depth
+    private static String parentChainStatement = "WITH RECURSIVE parent_chain(" +
+            ID_COLUMN + ", " + ORIGIN_COLUMN + ", " + PARENT_ID_COLUMN + ", depth) AS (" +
+            " SELECT " + ID_COLUMN + ", " + ORIGIN_COLUMN + ", " + PARENT_ID_COLUMN + ", 0" +
+            " FROM " + RECORDS_TABLE + " WHERE " + ID_COLUMN + " = ?" +
+            " UNION ALL" +
+            " SELECT r." + ID_COLUMN + ", r." + ORIGIN_COLUMN + ", r." + PARENT_ID_COLUMN + ", c.depth + 1" +
+            " FROM " + RECORDS_TABLE + " r JOIN parent_chain c ON r." + ID_COLUMN + " = c." + PARENT_ID_COLUMN +
+            " WHERE c.depth < " + PARENT_CHAIN_MAX_DEPTH + ")" +
+            " SELECT " + ID_COLUMN + ", " + ORIGIN_COLUMN + ", " + PARENT_ID_COLUMN +
+            " FROM parent_chain ORDER BY depth";
+
+    // WITH RECURSIVE subtree(id, depth) AS (
+    //   SELECT id, 0 FROM ds_records WHERE id = ?
+    //   UNION ALL
+    //   SELECT r.id, s.depth + 1 FROM ds_records r JOIN subtree s ON r.parentid = s.id WHERE s.depth < 1000)
+    // SELECT <all columns> FROM ds_records WHERE id IN (SELECT id FROM subtree LIMIT ?) ORDER BY ctime ASC
+    // The limit is inside the subquery, so the recursion can stop when enough records have been found
+    private static String subtreeStatement = "WITH RECURSIVE subtree(" + ID_COLUMN + ", depth) AS (" +
+            " SELECT " + ID_COLUMN + ", 0 FROM " + RECORDS_TABLE + " WHERE " + ID_COLUMN + " = ?" +
+            " UNION ALL" +
+            " SELECT r." + ID_COLUMN + ", s.depth + 1" +
+            " FROM " + RECORDS_TABLE + " r JOIN subtree s ON r." + PARENT_ID_COLUMN + " = s." + ID_COLUMN +
+            " WHERE s.depth < " + PARENT_CHAIN_MAX_DEPTH + ")" +
+            " SELECT " + RecordRowMapper.ALL.getColumns() + " FROM " + RECORDS_TABLE +
+            " WHERE " + ID_COLUMN + " IN (SELECT " + ID_COLUMN + " FROM subtree LIMIT ?)" +
+            " ORDER BY " + CTIME_COLUMN + " ASC";
+
+    private static String recordsByIdsStatement = "SELECT " + RecordRowMapper.ALL.getColumns() + " FROM " + RECORDS_TABLE + " WHERE " + ID_COLUMN + " = ANY(?)";
+
+    //SELECT id, mtime, referenceid, kalturaid FROM ds_records WHERE id = ANY(?)
+    private static String minimalRecordsByIdsStatement = "SELECT " + ID_COLUMN + ", " + MTIME_COLUMN + ", " +
+            RECORDS_REFERENCE_ID_COLUMN + ", " + RECORDS_KALTURA_ID_COLUMN +
+            " FROM " + RECORDS_TABLE + " WHERE " + ID_COLUMN + " = ANY(?)";
+
+    //SELECT id, mtime FROM ds_records WHERE id = ANY(?)
+    private static String mTimesByIdsStatement = "SELECT " + ID_COLUMN + ", " + MTIME_COLUMN +
+            " FROM " + RECORDS_TABLE + " WHERE " + ID_COLUMN + " = ANY(?)";
 
     
     private static String transcriptionByFileIdStatement = "SELECT * FROM " + TRANSCRIPTIONS_TABLE+ " WHERE "+FILE_ID_COLUMN +" = ?";
@@ -137,7 +270,7 @@ public class DsStorage implements AutoCloseable {
             " ORDER BY " + MTIME_COLUMN + " DESC";
 
     
-    //SELECT id,mTime,referenceId,kalturaId FROM ds_records WHERE origin= 'ds.tv' and mTime > 0 ORDER BY mtime ASC LIMIT 50
+    //SELECT id,mTime,referenceId,kalturaId FROM ds_records WHERE origin= 'ds.tv' and mTime > 0 AND mtime <= 1637237120476001 ORDER BY mtime ASC LIMIT 50
     private static final String referenceIdsStatement =
             "SELECT " + MTIME_COLUMN + ", "
                       + ID_COLUMN +","
@@ -147,67 +280,79 @@ public class DsStorage implements AutoCloseable {
                     + " FROM " + RECORDS_TABLE +
             " WHERE " + ORIGIN_COLUMN + "= ?" +
             " AND " + MTIME_COLUMN +" > ?" +
+            " AND " + MTIME_COLUMN + " <= ?" +
             " ORDER BY " + MTIME_COLUMN + " ASC" +
             " LIMIT ?";
      
     
-    // TODO: Optimise this
-    // The current implementation creates a temporary table
-    // Alternative 1: Make a plain select and step through to the end
-    // Alternative 2: First count the number of "hits", then use that as OFFSET
-    private static final String maxMtimeAfterWithLimitStatement =
-            "SELECT MAX (" + MTIME_COLUMN + ") AS max_mtime, " +
-            "       COUNT (*) AS limit_count " +
-            "FROM " +
-            "( SELECT " + MTIME_COLUMN +
-            "  FROM " + RECORDS_TABLE +
-            "  WHERE " + ORIGIN_COLUMN + "= ?" +
-            "  AND " + MTIME_COLUMN + " > ?" +
-            "  ORDER BY " + MTIME_COLUMN + " ASC" +
-            "  LIMIT ?) AS max_mtime_sub";
-
-    // TODO: Optimise this after maxMtimeAfterWithLimitStatement has been optimised
-    private static final String maxMtimeAfterWithLimitTypeStatement =
-            "SELECT MAX (" + MTIME_COLUMN + ") AS max_mtime, " +
-            "       COUNT (*) AS limit_count " +
-            "FROM " +
-            "( SELECT " + MTIME_COLUMN +
-            "  FROM " + RECORDS_TABLE +
-            "  WHERE " + ORIGIN_COLUMN + "= ?" +
-            "  AND " + RECORDTYPE_COLUMN + "= ?" +
-            "  AND " + MTIME_COLUMN + " > ?" +
-            "  ORDER BY " + MTIME_COLUMN + " ASC" +
-            "  LIMIT ?) AS max_mtime_sub";
-
-    //SELECT * FROM  ds_records  WHERE origin= 'test_base' AND mtime  > 1637237120476001 ORDER BY mtime ASC LIMIT 100
-    private static final String recordsModifiedAfterStatement =
-            "SELECT * FROM " + RECORDS_TABLE +
-            " WHERE " +ORIGIN_COLUMN +"= ?" +
-            " AND "+MTIME_COLUMN+" > ?" +
-            " ORDER BY "+MTIME_COLUMN+ " ASC LIMIT ?";
+    // Jump directly to the last record of a page and check whether there is a record after it
+    // SELECT mtime FROM ds_records WHERE origin= 'test_base' AND mtime > 1637237120476001 AND mtime <= 1637237130476001 ORDER BY mtime ASC LIMIT 2 OFFSET 999
+    private static final String mtimeAtOffsetStatement =
+            "SELECT " + MTIME_COLUMN + " FROM " + RECORDS_TABLE +
+            " WHERE " + ORIGIN_COLUMN + "= ?" +
+            " AND " + MTIME_COLUMN + " > ?" +
+            " AND " + MTIME_COLUMN + " <= ?" +
+            " ORDER BY " + MTIME_COLUMN + " ASC" +
+            " LIMIT 2 OFFSET ?";
 
-    //SELECT ID FROM  ds_records  WHERE origin= 'test_base' AND recordtype = 'MANIFESTATION' AND mtime  > 1637237120476001 ORDER BY mtime ASC LIMIT 100
+    // SELECT mtime FROM ds_records WHERE origin= 'test_base' AND recordtype='record type' AND mtime > 1637237120476001 AND mtime <= 1637237130476001 ORDER BY mtime ASC LIMIT 2 OFFSET 999
+    private static final String mtimeAtOffsetTypeStatement =
+            "SELECT " + MTIME_COLUMN + " FROM " + RECORDS_TABLE +
+            " WHERE " + ORIGIN_COLUMN + "= ?" +
+            " AND " + RECORDTYPE_COLUMN + "= ?" +
+            " AND " + MTIME_COLUMN + " > ?" +
+            " AND " + MTIME_COLUMN + " <= ?" +
+            " ORDER BY " + MTIME_COLUMN + " ASC" +
+            " LIMIT 2 OFFSET ?";
+
+    // SELECT MAX(mtime) AS max_mtime, COUNT(*) AS limit_count FROM ds_records WHERE origin= 'test_base' AND mtime > 1637237120476001 AND mtime <= 1637237130476001
+    private static final String maxMtimeAndCountAfterStatement =
+            "SELECT MAX(" + MTIME_COLUMN + ") AS max_mtime, COUNT(*) AS limit_count" +
+            " FROM " + RECORDS_TABLE +
+            " WHERE " + ORIGIN_COLUMN + "= ?" +
+            " AND " + MTIME_COLUMN + " > ?" +
+            " AND " + MTIME_COLUMN + " <= ?";
+
+    // SELECT MAX(mtime) AS max_mtime, COUNT(*) AS limit_count FROM ds_records WHERE origin= 'test_base' AND recordtype='record type' AND mtime > 1637237120476001 AND mtime <= 1637237130476001
+    private static final String maxMtimeAndCountAfterTypeStatement =
+            "SELECT MAX(" + MTIME_COLUMN + ") AS max_mtime, COUNT(*) AS limit_count" +
+            " FROM " + RECORDS_TABLE +
+            " WHERE " + ORIGIN_COLUMN + "= ?" +
+            " AND " + RECORDTYPE_COLUMN + "= ?" +
+            " AND " + MTIME_COLUMN + " > ?" +
+            " AND " + MTIME_COLUMN + " <= ?";
+
+    //SELECT id, origin, ... FROM  ds_records  WHERE origin= 'test_base' AND mtime  > 1637237120476001 AND mtime <= 1637237130476001 ORDER BY mtime ASC LIMIT 100
+    private static final String recordsModifiedAfterStatement = buildRecordsModifiedAfterStatement(RecordRowMapper.ALL, true);
+
+    //SELECT id, origin, ... FROM  ds_records  WHERE origin= 'test_base' AND mtime  > 1637237120476001 AND mtime <= 1637237130476001 ORDER BY mtime ASC
+    private static final String recordsModifiedAfterNoLimitStatement = buildRecordsModifiedAfterStatement(RecordRowMapper.ALL, false);
+
+    //SELECT ID FROM  ds_records  WHERE origin= 'test_base' AND recordtype = 'MANIFESTATION' AND mtime  > 1637237120476001 AND mtime <= 1637237130476001 ORDER BY mtime ASC LIMIT 100
      private static String recordsIDByRecordTypeModifiedAfterStatement =
              "SELECT "+ ID_COLUMN+ " FROM " + RECORDS_TABLE +
              " WHERE " +ORIGIN_COLUMN +"= ?" +
              " AND "+RECORDTYPE_COLUMN+" = ?" +
              " AND "+MTIME_COLUMN+" > ?" +
+             " AND "+MTIME_COLUMN+" <= ?" +
              " ORDER BY "+MTIME_COLUMN+ " ASC LIMIT ?";
     
     
-    //SELECT * FROM  ds_records  WHERE origin= 'test_origin' AND mtime  > 1637237120476001 AND PARENTID IS NOT NULL ORDER BY mtime ASC LIMIT 100
+    //SELECT id, origin, ... FROM  ds_records  WHERE origin= 'test_origin' AND mtime  > 1637237120476001 AND mtime <= 1637237130476001 AND PARENTID IS NOT NULL ORDER BY mtime ASC LIMIT 100
     private static String recordsModifiedAfterChildrenOnlyStatement =
-            "SELECT * FROM " + RECORDS_TABLE +
+            "SELECT " + RecordRowMapper.ALL.getColumns() + " FROM " + RECORDS_TABLE +
             " WHERE +"+ORIGIN_COLUMN +"= ?" +
             " AND "+MTIME_COLUMN+" > ?" +
+            " AND "+MTIME_COLUMN+" <= ?" +
             " AND "+PARENT_ID_COLUMN+" IS NOT NULL"+
             " ORDER BY "+MTIME_COLUMN+ " ASC LIMIT ?";
 
-    //SELECT * FROM  ds_records  WHERE origin= 'test_origin' AND mtime  > 1637237120476001 AND parentId IS NULL ORDER BY mtime ASC LIMIT 100    
+    //SELECT id, origin, ... FROM  ds_records  WHERE origin= 'test_origin' AND mtime  > 1637237120476001 AND mtime <= 1637237130476001 AND parentId IS NULL ORDER BY mtime ASC LIMIT 100    
     private static String recordsModifiedAfterParentsOnlyStatement =
-            "SELECT * FROM " + RECORDS_TABLE +
+            "SELECT " + RecordRowMapper.ALL.getColumns() + " FROM " + RECORDS_TABLE +
             " WHERE +"+ORIGIN_COLUMN +"= ?" +
             " AND "+MTIME_COLUMN+" > ?" +
+            " AND "+MTIME_COLUMN+" <= ?" +
             " AND "+PARENT_ID_COLUMN+" IS NULL"+
             " ORDER BY "+MTIME_COLUMN+ " ASC LIMIT ?";
 
@@ -228,54 +373,331 @@ public class DsStorage implements AutoCloseable {
     private static String deleteTranscriptionByFileIdStatement = "DELETE FROM " + TRANSCRIPTIONS_TABLE + " WHERE "+FILE_ID_COLUMN+" = ?";
     private static String deleteMarkedForDeleteStatement = "DELETE FROM " + RECORDS_TABLE + " WHERE "+ORIGIN_COLUMN +" = ? AND "+DELETED_COLUMN +" = 1" ;   
     private static String recordIdExistsStatement = "SELECT COUNT(*) AS COUNT FROM " + RECORDS_TABLE+ " WHERE "+ID_COLUMN +" = ?";
-    private static String countRecordsInOriginStatement = "SELECT COUNT(*) FROM " + RECORDS_TABLE +  " WHERE " + ORIGIN_COLUMN + " = ? AND " + MTIME_COLUMN + " > ?";
+    private static String countRecordsInOriginStatement = "SELECT COUNT(*) FROM " + RECORDS_TABLE +  " WHERE " + ORIGIN_COLUMN + " = ? AND " + MTIME_COLUMN + " > ? AND " + MTIME_COLUMN + " <= ?";
 
 
+    private static final String H2_DRIVER = "org.h2.Driver";
+    private static final String POSTGRESQL_DRIVER = "org.postgresql.Driver";
+
     private static BasicDataSource dataSource;
 
+    // Waiting requests and wait times for connections from dataSource. Shown in /monitor/status
+    private static ConnectionPoolMetrics poolMetrics = new ConnectionPoolMetrics();
+
+    // Optional pool for read-only access, e.g. to a hot standby replica. Null if not configured
+    private static volatile BasicDataSource readDataSource = null;
+    private static volatile ConnectionPoolMetrics readPoolMetrics = new ConnectionPoolMetrics();
+    // Falls back to the primary database when the replica lags too much behind
+    private static volatile ReplicaLagGuard readLagGuard = null;
+
+    // Allocates mTimes for all writes and gives the horizon for harvesting. See initializeMTimeAllocator
+    private static volatile MTimeAllocator mTimeAllocator = MTimeAllocator.JVM;
+
+    // H2 is used for unit tests and small setups. It needs MERGE instead of INSERT ... ON CONFLICT DO UPDATE
+    private static boolean h2Dialect = false;
+
     // statistics shown on monitor.jsp page
     public static Date INITDATE = null;
 
     protected Connection connection;
+    private final boolean readOnly;
+    private final boolean usesReadReplica;
 
     public static void initialize(String driverName, String driverUrl, String userName, String password) {
-        
+        initialize(driverName, driverUrl, userName, password, ServiceConfig.isDBStatementCacheEnabled());
+    }
+
+    /**
+     * Set up the connection pool.
+     * @param poolPreparedStatements if true, prepared statements are pooled for each connection, sized by
+     *                               {@link ServiceConfig#getDBStatementCacheSize()}.
+     *                               Normally {@link ServiceConfig#isDBStatementCacheEnabled()}.
+     */
+    static void initialize(String driverName, String driverUrl, String userName, String password,
+                           boolean poolPreparedStatements) {
+        h2Dialect = H2_DRIVER.equals(driverName);
         int connectionPoolSize = ServiceConfig.getConnectionPoolSize();
-        
-        dataSource = new BasicDataSource();
-        dataSource.setDriverClassName(driverName);
-        dataSource.setUsername(userName);
-        dataSource.setPassword(password);
-        dataSource.setUrl(driverUrl);
-
-        dataSource.setDefaultReadOnly(false);
-        dataSource.setDefaultAutoCommit(false);
-
-
-
-        //TODO maybe set some datasource options.
-        // enable detection and logging of connection leaks
-        /*
-         * dataSource.setRemoveAbandonedOnBorrow(
-         * AlmaPickupNumbersPropertiesHolder.PICKUPNUMBERS_DATABASE_TIME_BEFORE_RECLAIM
-         * > 0); dataSource.setRemoveAbandonedOnMaintenance(
-         * AlmaPickupNumbersPropertiesHolder.PICKUPNUMBERS_DATABASE_TIME_BEFORE_RECLAIM
-         * > 0); dataSource.setRemoveAbandonedTimeout(AlmaPickupNumbersPropertiesHolder.
-         * PICKUPNUMBERS_DATABASE_TIME_BEFORE_RECLAIM); //1 hour
-         * dataSource.setLogAbandoned(AlmaPickupNumbersPropertiesHolder.
-         * PICKUPNUMBERS_DATABASE_TIME_BEFORE_RECLAIM > 0);
-         * dataSource.setMaxWaitMillis(AlmaPickupNumbersPropertiesHolder.
-         * PICKUPNUMBERS_DATABASE_POOL_CONNECT_TIMEOUT);
-         */
-        //Idle settings defaults (min/max) has good values.     
-        dataSource.setMaxOpenPreparedStatements(connectionPoolSize);
+
+        dataSource = createDataSource(driverName, driverUrl, userName, password, connectionPoolSize, false,
+                                      poolPreparedStatements);
+        poolMetrics = new ConnectionPoolMetrics();
         INITDATE = new Date();
 
-        log.info("DsStorage initialized with driverName='{}', driverURL='{}', connectionPoolSize='{}' ", driverName, driverUrl,connectionPoolSize);
+        initializeMTimeAllocator(driverName, driverUrl, userName, password);
+
+        log.info("DsStorage initialized with driverName='{}', driverURL='{}', connectionPoolSize='{}', " +
+                 "maxWaitMillis={}, poolPreparedStatements={}, maxOpenPreparedStatements={}, mTimeAllocator='{}' ",
+                 driverName, driverUrl,connectionPoolSize, dataSource.getMaxWaitMillis(),
+                 poolPreparedStatements, dataSource.getMaxOpenPreparedStatements(), mTimeAllocator);
+
+        String replicaUrl = ServiceConfig.getDBReadReplicaUrl();
+        if (replicaUrl != null && !replicaUrl.isBlank()) {
+            initializeReadReplica(ServiceConfig.getDBReadReplicaDriver(), replicaUrl,
+                                  ServiceConfig.getDBReadReplicaUserName(), ServiceConfig.getDBReadReplicaPassword());
+        }
+    }
+
+    /**
+     * Set up a separate connection pool for read-only access, e.g. to a PostgreSQL hot standby replica of the primary
+     * database. Read-only storages, see {@link #DsStorage(boolean)}, use this pool instead of the primary pool.
+     * Normally called from {@link #initialize} with the values from {@code db.readReplica}.
+     * <p>
+     * Must be called after {@link #initialize}. An existing read replica pool is closed.
+     */
+    public static void initializeReadReplica(String driverName, String driverUrl, String userName, String password) {
+        String lagQuery = ServiceConfig.getDBReadReplicaLagQuery();
+        if (lagQuery == null || lagQuery.isBlank()) {
+            lagQuery = ReplicaLagGuard.POSTGRESQL_LAG_QUERY;
+        }
+        initializeReadReplica(driverName, driverUrl, userName, password, new ReplicaLagGuard(
+                lagQuery, ServiceConfig.getDBReadReplicaMaxLagSeconds(),
+                ServiceConfig.getDBReadReplicaLagCheckIntervalMillis()));
+    }
+
+    /**
+     * Set up a separate connection pool for read-only access.
+     * @param lagGuard read-only storages use the primary database when this guard considers the replica too stale.
+     * @see #initializeReadReplica(String, String, String, String)
+     */
+    static void initializeReadReplica(String driverName, String driverUrl, String userName, String password,
+                                      ReplicaLagGuard lagGuard) {
+        closeReadReplica();
+        int connectionPoolSize = ServiceConfig.getDBReadReplicaConnectionPoolSize();
+        readPoolMetrics = new ConnectionPoolMetrics();
+        readLagGuard = lagGuard;
+        readDataSource = createDataSource(driverName, driverUrl, userName, password, connectionPoolSize, true,
+                                          ServiceConfig.isDBStatementCacheEnabled());
+        log.info("DsStorage read replica initialized with driverName='{}', driverURL='{}', connectionPoolSize='{}', {}",
+                 driverName, driverUrl, connectionPoolSize, lagGuard);
+    }
+
+    /**
+     * Close the pool for the read replica, if any. Read-only storages will use the primary database afterwards.
+     */
+    public static void closeReadReplica() {
+        BasicDataSource replica = readDataSource;
+        readDataSource = null;
+        if (replica != null) {
+            try {
+                replica.close();
+            } catch (SQLException e) {
+                log.error("Closing the read replica pool failed", e);
+            }
+        }
+    }
+
+    /**
+     * @return true if a separate pool for read-only access has been set up with {@link #initializeReadReplica}.
+     */
+    public static boolean hasReadReplica() {
+        return readDataSource != null;
     }
 
+    /**
+     * Create a connection pool configured from {@code db.pool} and {@code db.statementCache}.
+     * @param readOnly if true, connections are read-only and in autocommit mode by default.
+     */
+    private static BasicDataSource createDataSource(String driverName, String driverUrl, String userName, String password,
+                                                    int connectionPoolSize, boolean readOnly, boolean poolPreparedStatements) {
+        BasicDataSource source = new BasicDataSource();
+        source.setDriverClassName(driverName);
+        source.setUsername(userName);
+        source.setPassword(password);
+        source.setUrl(driverUrl);
+
+        source.setDefaultReadOnly(readOnly);
+        source.setDefaultAutoCommit(readOnly);
+
+        source.setMaxTotal(connectionPoolSize);
+        source.setMaxIdle(Math.min(connectionPoolSize, ServiceConfig.getDBPoolMaxIdle()));
+        source.setMinIdle(ServiceConfig.getDBPoolMinIdle());
+        // Requests waiting longer than this for a connection fail with ConnectionPoolTimeoutException
+        source.setMaxWaitMillis(ServiceConfig.getDBPoolMaxWaitMillis());
+        String validationQuery = ServiceConfig.getDBPoolValidationQuery();
+        if (validationQuery != null && !validationQuery.isBlank()) {
+            source.setValidationQuery(validationQuery);
+        }
+        source.setTestOnBorrow(ServiceConfig.isDBPoolTestOnBorrow());
+        source.setTestWhileIdle(ServiceConfig.isDBPoolTestWhileIdle());
+        source.setTimeBetweenEvictionRunsMillis(ServiceConfig.getDBPoolTimeBetweenEvictionRunsMillis());
+        source.setMinEvictableIdleTimeMillis(ServiceConfig.getDBPoolMinEvictableIdleTimeMillis());
+        // Detection and logging of connection leaks
+        int removeAbandonedTimeout = ServiceConfig.getDBPoolRemoveAbandonedTimeoutSeconds();
+        if (removeAbandonedTimeout > 0) {
+            source.setRemoveAbandonedOnBorrow(true);
+            source.setRemoveAbandonedOnMaintenance(true);
+            source.setRemoveAbandonedTimeout(removeAbandonedTimeout);
+            source.setLogAbandoned(true);
+        }
+
+        // DsStorage prepares and closes the statements for every call. With pooling, closing a statement returns it
+        // to the pool for the connection, so the next DsStorage using the connection gets it without a new prepare.
+        source.setPoolPreparedStatements(poolPreparedStatements);
+        source.setMaxOpenPreparedStatements(ServiceConfig.getDBStatementCacheSize());
+        if (POSTGRESQL_DRIVER.equals(driverName)) {
+            // Switch to server side prepared statements after this number of executions on a connection
+            source.addConnectionProperty("prepareThreshold", Integer.toString(ServiceConfig.getDBPrepareThreshold()));
+        }
+        return source;
+    }
+
+    /**
+     * Records with mTimes above the horizon are not delivered by the queries for harvesting and paging by mTime,
+     * as records with lower mTimes may still be written by other instances.
+     * @return the highest mTime that harvesting by mTime can deliver. See {@link MTimeAllocator#getHarvestHorizon()}.
+     */
+    private static long getHarvestHorizon() {
+        return mTimeAllocator.getHarvestHorizon();
+    }
+
+    /**
+     * Replace the allocator for mTimes. Used by unit tests to simulate more than one ds-storage instance writing to
+     * the same database.
+     * @return the previous allocator. It is not closed.
+     */
+    static MTimeAllocator replaceMTimeAllocator(MTimeAllocator allocator) {
+        MTimeAllocator previous = mTimeAllocator;
+        mTimeAllocator = allocator;
+        return previous;
+    }
+
+    /**
+     * Set up the allocator for mTimes from the configuration {@code db.mTimeAllocator.type}.
+     * {@code jvm} (default) only guarantees unique mTimes within this JVM. {@code database} allocates mTimes from the
+     * database and must be used if more than one ds-storage instance writes to the same database.
+     */
+    private static void initializeMTimeAllocator(String driverName, String driverUrl, String userName, String password) {
+        mTimeAllocator.close();
+        String type = ServiceConfig.getMTimeAllocatorType();
+        switch (type.toLowerCase(Locale.ROOT)) {
+            case "jvm":
+                mTimeAllocator = MTimeAllocator.JVM;
+                break;
+            case "database":
+                mTimeAllocator = new DatabaseMTimeAllocator(
+                        driverName, driverUrl, userName, password,
+                        ServiceConfig.getMTimeAllocatorBlockSize(), ServiceConfig.getMTimeAllocatorMaxBlockAgeMillis(),
+                        ServiceConfig.getMTimeAllocatorHarvestMarginMillis());
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown db.mTimeAllocator.type '" + type + "'. Valid values are 'jvm' and 'database'");
+        }
+    }
+
+    /**
+     * Borrow a connection from the primary pool for reading and writing.
+     * @throws ConnectionPoolTimeoutException if no connection was available within {@code db.pool.maxWaitMillis}.
+     * @throws SQLException if a connection to the database could not be established.
+     */
     public DsStorage() throws SQLException {
-        connection = dataSource.getConnection();
+        this(false);
+    }
+
+    /**
+     * Borrow a connection from the pool.
+     * <p>
+     * A read-only storage uses the read replica if one has been set up with {@link #initializeReadReplica} and its
+     * replication lag is within {@code db.readReplica.maxLagSeconds}, else the primary database. The connection is read-only and in autocommit mode, so there is no transaction to commit or
+     * roll back. It must only be used for reading.
+     * @param readOnly if true, the storage is read-only.
+     * @throws ConnectionPoolTimeoutException if no connection was available within {@code db.pool.maxWaitMillis}.
+     * @throws SQLException if a connection to the database could not be established.
+     */
+    public DsStorage(boolean readOnly) throws SQLException {
+        BasicDataSource replica = readDataSource;
+        ConnectionPoolMetrics replicaMetrics = readPoolMetrics;
+        ReplicaLagGuard lagGuard = readLagGuard;
+        if (readOnly && replica != null && !lagGuard.isUsable(replica)) {
+            replica = null; // Too stale. Use the primary
+        }
+        if (readOnly && replica != null) {
+            connection = borrowConnection(replica, replicaMetrics);
+        } else {
+            connection = borrowConnection(dataSource, poolMetrics);
+        }
+        this.readOnly = readOnly;
+        this.usesReadReplica = readOnly && replica != null;
+        if (readOnly && !usesReadReplica) {
+            try {
+                connection.setAutoCommit(true);
+                connection.setReadOnly(true);
+            } catch (SQLException e) {
+                close();
+                throw e;
+            }
+        }
+    }
+
+    private static Connection borrowConnection(BasicDataSource source, ConnectionPoolMetrics metrics) throws SQLException {
+        long start = metrics.waiting();
+        Connection borrowed;
+        try {
+            borrowed = source.getConnection();
+        } catch (SQLException e) {
+            metrics.timeout(start);
+            if (e.getCause() instanceof NoSuchElementException) { // Thrown by the pool when maxWait is exceeded
+                String message = "No database connection available within " + source.getMaxWaitMillis() +
+                                 "ms. Active connections: " + source.getNumActive() + "/" + source.getMaxTotal() +
+                                 ", waiting requests: " + metrics.getWaiters();
+                log.warn(message);
+                throw new ConnectionPoolTimeoutException(message, e);
+            }
+            throw e;
+        }
+        metrics.borrowed(start);
+        return borrowed;
+    }
+
+    /**
+     * @return true if this storage is read-only. See {@link #DsStorage(boolean)}.
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * @return true if this storage reads from the read replica instead of the primary database.
+     */
+    public boolean isUsingReadReplica() {
+        return usesReadReplica;
+    }
+
+    /**
+     * @return metrics for the connection pool: active and idle connections, waiting requests and borrow wait times.
+     *         Null if the storage has not been initialized.
+     */
+    public static DatabasePoolStatusDto getPoolStatus() {
+        return getPoolStatus(dataSource, poolMetrics);
+    }
+
+    /**
+     * @return metrics for the read replica connection pool. Null if there is no read replica.
+     * @see #getPoolStatus()
+     */
+    public static DatabasePoolStatusDto getReadReplicaPoolStatus() {
+        DatabasePoolStatusDto status = getPoolStatus(readDataSource, readPoolMetrics);
+        ReplicaLagGuard lagGuard = readLagGuard;
+        if (status != null && lagGuard != null) {
+            status.replicationLagSeconds(lagGuard.getLastLagSeconds())
+                  .inUse(lagGuard.isLastUsable());
+        }
+        return status;
+    }
+
+    private static DatabasePoolStatusDto getPoolStatus(BasicDataSource source, ConnectionPoolMetrics metrics) {
+        if (source == null) {
+            return null;
+        }
+        return new DatabasePoolStatusDto()
+                .active(source.getNumActive())
+                .idle(source.getNumIdle())
+                .maxTotal(source.getMaxTotal())
+                .waiters(metrics.getWaiters())
+                .borrows(metrics.getBorrows())
+                .timeouts(metrics.getTimeouts())
+                .maxWaitMillis(source.getMaxWaitMillis())
+                .longestWaitMillis(metrics.getMaxWaitMillis())
+                .borrowWaitHistogram(metrics.getWaitHistogram());
     }
     
     /*
@@ -289,12 +711,95 @@ public class DsStorage implements AutoCloseable {
                 if (!rs.next()) {
                     return null;// Or throw exception?
                 }
-                DsRecordDto  record = createRecordFromRS(rs);                            
+                DsRecordDto  record = RecordRowMapper.ALL.map(rs);                            
                 return record;
             }        
         }
     }
     
+    /**
+     * Load only id, origin and parentId for a record. All other fields are null. Used for following the
+     * parent/child relations without reading the data for the record.
+     *  Return null if record does not exist
+     */
+    public DsRecordDto loadRecordRelation(String id) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(recordRelationByIdStatement)) {
+            stmt.setString(1, id);
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                DsRecordDto record = new DsRecordDto();
+                record.setId(rs.getString(ID_COLUMN));
+                record.setOrigin(rs.getString(ORIGIN_COLUMN));
+                record.setParentId(rs.getString(PARENT_ID_COLUMN));
+                return record;
+            }
+        }
+    }
+
+    /**
+     * Load id, origin and parentId for a record and all its parents, grandparents etc. with a single recursive query.
+     * The chain stops at a record without parent, at a parentId that does not exist or after
+     * {@link #PARENT_CHAIN_MAX_DEPTH} parents. For a parent-child cycle, the records in the cycle are repeated until
+     * the maximum depth.
+     *
+     * @param id the id of the record to start from.
+     * @return the record followed by its parents in order. Empty if the record does not exist.
+     */
+    public List<DsRecordDto> loadParentChain(String id) throws SQLException {
+        List<DsRecordDto> chain = new ArrayList<>();
+        try (PreparedStatement stmt = connection.prepareStatement(parentChainStatement)) {
+            stmt.setString(1, id);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    DsRecordDto record = new DsRecordDto();
+                    record.setId(rs.getString(1));
+                    record.setOrigin(rs.getString(2));
+                    record.setParentId(rs.getString(3));
+                    chain.add(record);
+                }
+            }
+        }
+        catch (SQLException e) {
+            String message = "SQL Exception in loadParentChain for id:" + id;
+            log.error(message);
+            throw new SQLException(message, e);
+        }
+        return chain;
+    }
+
+    /**
+     * Load a record and all records below it (children, grandchildren etc.) with a single recursive query.
+     * ChildrenIds are not set. The parent/child relations can be built in memory from the parentIds.
+     * At most {@link #PARENT_CHAIN_MAX_DEPTH} levels below the record are loaded.
+     *
+     * @param id the id of the top record.
+     * @param maxRecords the maximum number of records to load.
+     * @return the records ordered by cTime, so children are in the same order as {@link #getChildrenIds(String)}.
+     *         Empty if the record does not exist. If there are more than maxRecords records, maxRecords arbitrary
+     *         records from the tree are returned.
+     */
+    public List<DsRecordDto> loadSubtree(String id, int maxRecords) throws SQLException {
+        List<DsRecordDto> records = new ArrayList<>();
+        try (PreparedStatement stmt = connection.prepareStatement(subtreeStatement)) {
+            stmt.setString(1, id);
+            stmt.setInt(2, maxRecords);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    records.add(RecordRowMapper.ALL.map(rs));
+                }
+            }
+        }
+        catch (SQLException e) {
+            String message = "SQL Exception in loadSubtree for id:" + id;
+            log.error(message);
+            throw new SQLException(message, e);
+        }
+        return records;
+    }
+
     /**
      * Load a record and also load children ids
      *  Return null if record does not exist
@@ -307,7 +812,7 @@ public class DsStorage implements AutoCloseable {
                 if (!rs.next()) {
                     return null;
                 }
-                DsRecordDto  record = createRecordFromRS(rs);
+                DsRecordDto  record = RecordRowMapper.ALL.map(rs);
 
                 //load children                
                 record.setChildrenIds(getChildrenIds(id));                
@@ -317,6 +822,118 @@ public class DsStorage implements AutoCloseable {
     }
     
 
+    /**
+     * Load the records with the given ids in a single query. Will not load childrenIds.
+     * Ids that does not exist are not present in the result.
+     *
+     * @param ids the ids of the records to load.
+     * @return map from id to record, ordered as the given ids.
+     */
+    public Map<String, DsRecordDto> loadRecords(Collection<String> ids) throws SQLException {
+        Map<String, DsRecordDto> loaded = new HashMap<>();
+        if (!ids.isEmpty()) {
+            try (PreparedStatement stmt = connection.prepareStatement(recordsByIdsStatement)) {
+                stmt.setArray(1, connection.createArrayOf("VARCHAR", ids.toArray()));
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        DsRecordDto record = RecordRowMapper.ALL.map(rs);
+                        loaded.put(record.getId(), record);
+                    }
+                }
+            }
+            catch (SQLException e) {
+                String message = "SQL Exception in loadRecords for " + ids.size() + " ids";
+                log.error(message);
+                throw new SQLException(message, e);
+            }
+        }
+        Map<String, DsRecordDto> records = new LinkedHashMap<>();
+        for (String id: ids) {
+            DsRecordDto record = loaded.get(id);
+            if (record != null) {
+                records.put(id, record);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Load id, mTime, referenceId and kalturaId for the records with the given ids in a single query.
+     * This is used to resolve existence and the current referenceId for records before they are updated,
+     * without loading the data for the records.
+     *
+     * @param ids the ids of the records to look up.
+     * @return map from id to minimal record for the ids that exist.
+     */
+    public Map<String, DsRecordMinimalDto> loadMinimalRecords(Collection<String> ids) throws SQLException {
+        Map<String, DsRecordMinimalDto> records = new HashMap<>();
+        if (ids.isEmpty()) {
+            return records;
+        }
+        try (PreparedStatement stmt = connection.prepareStatement(minimalRecordsByIdsStatement)) {
+            stmt.setArray(1, connection.createArrayOf("VARCHAR", ids.toArray()));
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    DsRecordMinimalDto record = createRecordReferenceIdFromRS(rs);
+                    records.put(record.getId(), record);
+                }
+            }
+        }
+        catch (SQLException e) {
+            String message = "SQL Exception in loadMinimalRecords for " + ids.size() + " ids";
+            log.error(message);
+            throw new SQLException(message, e);
+        }
+        return records;
+    }
+
+    /**
+     * Load the mTime for the records with the given ids in a single query. Used for checking if cached records are
+     * still up to date without loading the data for the records.
+     *
+     * @param ids the ids of the records to look up.
+     * @return map from id to mTime for the ids that exist.
+     */
+    public Map<String, Long> loadMTimes(Collection<String> ids) throws SQLException {
+        Map<String, Long> mTimes = new HashMap<>();
+        if (ids.isEmpty()) {
+            return mTimes;
+        }
+        try (PreparedStatement stmt = connection.prepareStatement(mTimesByIdsStatement)) {
+            stmt.setArray(1, connection.createArrayOf("VARCHAR", ids.toArray()));
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    mTimes.put(rs.getString(ID_COLUMN), rs.getLong(MTIME_COLUMN));
+                }
+            }
+        }
+        catch (SQLException e) {
+            String message = "SQL Exception in loadMTimes for " + ids.size() + " ids";
+            log.error(message);
+            throw new SQLException(message, e);
+        }
+        return mTimes;
+    }
+
+    /**
+     * Load the records with the given ids and their children ids, using one query for the records and one query for
+     * all the children ids.
+     * Ids that does not exist are not present in the result.
+     *
+     * @param ids the ids of the records to load.
+     * @return the records with childrenIds in the same order as the given ids.
+     */
+    public ArrayList<DsRecordDto> loadRecordsWithChildIds(Collection<String> ids) throws SQLException {
+        Map<String, DsRecordDto> records = loadRecords(ids);
+        Map<String, List<String>> childrenIds = getChildrenIds(records.keySet());
+        ArrayList<DsRecordDto> result = new ArrayList<>(records.size());
+        for (DsRecordDto record : records.values()) {
+            record.setChildrenIds(childrenIds.get(record.getId()));
+            result.add(record);
+        }
+        return result;
+    }
+
     public boolean recordExists(String id) throws SQLException {
         try (PreparedStatement stmt = connection.prepareStatement(recordIdExistsStatement)) {
             stmt.setString(1, id);
@@ -346,6 +963,37 @@ public class DsStorage implements AutoCloseable {
     }
     
     
+    /**
+     * Load the children ids for all the given parents in a single query.
+     * The children ids for each parent are in the same order as {@link #getChildrenIds(String)}.
+     *
+     * @param parentIds the ids of the parents.
+     * @return map from parent id to children ids. All given parent ids are present, with an empty list if the parent
+     *         has no children.
+     */
+    public Map<String, List<String>> getChildrenIds(Collection<String> parentIds) throws SQLException {
+        Map<String, List<String>> childIds = new HashMap<>();
+        parentIds.forEach(parentId -> childIds.put(parentId, new ArrayList<>()));
+        if (parentIds.isEmpty()) {
+            return childIds;
+        }
+        try (PreparedStatement stmt = connection.prepareStatement(childrenIdsForParentsStatement)) {
+            stmt.setArray(1, connection.createArrayOf("VARCHAR", parentIds.toArray()));
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    childIds.computeIfAbsent(rs.getString(PARENT_ID_COLUMN), parentId -> new ArrayList<>())
+                            .add(rs.getString(ID_COLUMN));
+                }
+            }
+        }
+        catch (SQLException e) {
+            String message = "SQL Exception in getChildrenIds for " + parentIds.size() + " parents";
+            log.error(message);
+            throw new SQLException(message, e);
+        }
+        return childIds;
+    }
+
     /**
      * Normally we only want 1 record returned. But some records use same stream(file reference) by mistake in data. 
      * 
@@ -401,12 +1049,23 @@ public class DsStorage implements AutoCloseable {
      * @param stmt the already prepared statement.
      */
     private void prepareStatementAndGetRecords(String origin, long mTime, int batchSize, ArrayList<DsRecordDto> records, PreparedStatement stmt) throws SQLException {
+        prepareStatementAndGetRecords(origin, mTime, batchSize, records, stmt, RecordRowMapper.ALL);
+    }
+
+    /**
+     * Prepare the SQL statement, execute the SQL query and convert the result set into DS Records that are added to the records array.
+     * @param mapper converts the rows to records. Must match the columns selected by the statement.
+     * @see #prepareStatementAndGetRecords(String, long, int, ArrayList, PreparedStatement)
+     */
+    private void prepareStatementAndGetRecords(String origin, long mTime, int batchSize, ArrayList<DsRecordDto> records,
+                                               PreparedStatement stmt, RecordRowMapper mapper) throws SQLException {
         stmt.setString(1, origin);
         stmt.setLong(2, mTime);
-        stmt.setLong(3, batchSize);
+        stmt.setLong(3, getHarvestHorizon());
+        stmt.setLong(4, batchSize);
         try (ResultSet rs = stmt.executeQuery()) {
             while (rs.next()) {
-                DsRecordDto  record = createRecordFromRS(rs);
+                DsRecordDto  record = mapper.map(rs);
                 records.add(record);
             }
         }
@@ -435,7 +1094,8 @@ public class DsStorage implements AutoCloseable {
 
             stmt.setString(1, origin);
             stmt.setLong(2, mTime);
-            stmt.setLong(3, batchSize);
+            stmt.setLong(3, getHarvestHorizon());
+            stmt.setLong(4, batchSize);
                         
             try (ResultSet rs = stmt.executeQuery()) {
                 while (rs.next()) {
@@ -451,6 +1111,44 @@ public class DsStorage implements AutoCloseable {
         return records; 
     }
     
+    /**
+     * Write the same records as {@link #getReferenceIds(String, long, int)} directly from the {@code ResultSet} to
+     * the binary writer, without creating {@link DsRecordMinimalDto}s.
+     *
+     * @param origin The origin to fetch records from
+     * @param mTime only fetch records with mTime larger that this
+     * @param batchSize Number of maximum records to write
+     * @param writer receives the records in mTime order.
+     * @return the number of written records.
+     */
+    public long writeReferenceIds(String origin, long mTime, int batchSize, MinimalRecordsBinary.Writer writer)
+            throws SQLException, IOException {
+        if (batchSize <1 || batchSize > 100000) { //No doom switch
+            throw new InvalidArgumentServiceException("Batchsize must be in range 1 to 100000");
+        }
+        long count = 0;
+        try (PreparedStatement stmt = connection.prepareStatement(referenceIdsStatement)) {
+            stmt.setString(1, origin);
+            stmt.setLong(2, mTime);
+            stmt.setLong(3, getHarvestHorizon());
+            stmt.setLong(4, batchSize);
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    writer.write(rs.getString(ID_COLUMN), rs.getLong(MTIME_COLUMN),
+                                 rs.getString(RECORDS_REFERENCE_ID_COLUMN), rs.getString(RECORDS_KALTURA_ID_COLUMN));
+                    count++;
+                }
+            }
+        }
+        catch (SQLException e) {
+            String message = "SQL error writeReferenceIds for origin '" + origin + "' after mTime " + mTime;
+            log.error(message);
+            throw new SQLException(message, e);
+        }
+        return count;
+    }
+
     /**
      * Extract max {@code record.mTime} in {@code origin}.
      * @param origin only records from the {@code origin} will be inspected.
@@ -500,48 +1198,10 @@ public class DsStorage implements AutoCloseable {
      * @param maxRecords only this number of records will be inspected. {@code -1} means no limit.
      * @return pair of (maximum {@code record.mTime} or null if no match, true if there exists at
      *         least 1 record with {@code record.mTime} higher than the maximum within the constraints).
+     * @see #getPagingInfo(String, RecordTypeDto, long, long)
      */
     public Pair<Long, Boolean> getMaxMtimeAfter(String origin, long mTime, long maxRecords) throws SQLException {
-        // No maxRecords is simple: Just check the last record.mTime > mTime
-        if (maxRecords == -1) {
-            long maxMtime = getMaxMtime(origin);
-            return new Pair<>(maxMtime == 0L || maxMtime <= mTime ? null : maxMtime,
-                              false);
-        }
-
-        // Determine max record.mTime and count the number of records within the limits
-        Long maxMTime = null;
-        Long totalCount = null;
-        try (PreparedStatement stmt = connection.prepareStatement(maxMtimeAfterWithLimitStatement)) {
-            stmt.setString(1, origin);
-            stmt.setLong(2, mTime);
-            stmt.setLong(3, maxRecords);
-            try (ResultSet rs = stmt.executeQuery()) {
-                if (rs.next()) {
-                    maxMTime = rs.getLong("max_mtime");
-                    totalCount = rs.getLong("limit_count");
-                }
-            }
-        } catch(Exception e) {
-            String message = "SQL Exception in getMaxMtimeAfter(origin='" + origin + "', mTime=" + mTime +
-                    ", maxRecords=" + maxRecords + ")";
-            log.error(message);
-            throw new SQLException(message, e);
-        }
-
-        if (maxMTime == null) { // No match (and no subsequent records)
-            return new Pair<>(null, false);
-        }
-
-        if (totalCount <maxRecords) { // Exhaustive match (no subsequent records)
-            return new Pair<>(maxMTime, false);
-        }
-        
-        // Check whether there are extra records available (extra call, but a light one)
-        long absoluteMaxMtime = getMaxMtime(origin);
-        return maxMTime < absoluteMaxMtime ?
-                new Pair<>(maxMTime, true) : // Subsequent records available
-                new Pair<>(maxMTime, false); // No subsequent records
+        return getPagingInfo(origin, null, mTime, maxRecords).getContinuation();
     }
 
     /**
@@ -555,50 +1215,95 @@ public class DsStorage implements AutoCloseable {
      * @param maxRecords only this number of records will be inspected. {@code -1} means no limit.
      * @return pair of (maximum {@code record.mTime} or null if no match, true if there exists at
      *         least 1 record with {@code record.mTime} higher than the maximum within the constraints).
+     * @see #getPagingInfo(String, RecordTypeDto, long, long)
      */
     public Pair<Long, Boolean> getMaxMtimeAfter(String origin, RecordTypeDto recordType, long mTime, long maxRecords)
             throws SQLException {
-        // No maxRecords is simple: Just check the last record.mTime > mTime
+        return getPagingInfo(origin, recordType, mTime, maxRecords).getContinuation();
+    }
+
+    /**
+     * Calculate the values for the paging headers of an export of records where {@code record.mTime > mTime},
+     * ordered by {@code record.mTime} and limited to {@code maxRecords}.
+     * <p>
+     * If the page is full, the mTime of the last record in the page and the existence of a following record are
+     * resolved with a single index lookup at offset {@code maxRecords-1}. Only if the page is not full, the remaining
+     * records are counted, so the page range is never scanned more than once.
+     *
+     * @param origin only records from the {@code origin} will be inspected.
+     * @param recordType only records with the given type will be inspected. If null, all records are inspected.
+     * @param mTime only records with modification time larger than {@code mTime} will be inspected.
+     * @param maxRecords the size of the page. {@code -1} means no limit.
+     * @return the mTime of the last record in the page, whether there are more records and the number of records
+     *         in the page. The last mTime is 0 for an empty page with a limit and null for an empty page without
+     *         limit.
+     * @throws InvalidArgumentServiceException if maxRecords is less than -1.
+     */
+    public PagingInfo getPagingInfo(String origin, RecordTypeDto recordType, long mTime, long maxRecords) throws SQLException {
         if (maxRecords == -1) {
-            long maxMtime = getMaxMtime(origin, recordType);
-            return new Pair<>(maxMtime == 0L || maxMtime <= mTime ? null : maxMtime,
-                              false);
+            Pair<Long, Long> maxAndCount = getMaxMtimeAndCountAfter(origin, recordType, mTime);
+            long maxMTime = maxAndCount.getLeft();
+            return new PagingInfo(maxMTime == 0L ? null : maxMTime, false, maxAndCount.getRight());
+        }
+        if (maxRecords < -1) {
+            throw new InvalidArgumentServiceException("maxRecords must be -1 (no limit) or at least 0, but was " + maxRecords);
         }
 
-        // Determine max record.mTime and count the number of records within the limits
-        Long maxMTime = null;
-        Long totalCount = null;
-        try (PreparedStatement stmt = connection.prepareStatement(maxMtimeAfterWithLimitTypeStatement)) {
-            stmt.setString(1, origin);
-            stmt.setString(2, recordType.getValue());
-            stmt.setLong(3, mTime);
-            stmt.setLong(4, maxRecords);
+        try (PreparedStatement stmt = connection.prepareStatement(
+                recordType == null ? mtimeAtOffsetStatement : mtimeAtOffsetTypeStatement)) {
+            int index = 1;
+            stmt.setString(index++, origin);
+            if (recordType != null) {
+                stmt.setString(index++, recordType.getValue());
+            }
+            stmt.setLong(index++, mTime);
+            stmt.setLong(index++, getHarvestHorizon());
+            // An empty page only needs to know whether there is a first record
+            stmt.setLong(index, Math.max(0, maxRecords-1));
             try (ResultSet rs = stmt.executeQuery()) {
-                if (rs.next()) {
-                    maxMTime = rs.getLong("max_mtime");
-                    totalCount = rs.getLong("limit_count");
+                if (maxRecords == 0) {
+                    return new PagingInfo(0L, rs.next(), 0);
+                }
+                if (rs.next()) { // Full page
+                    long lastMTime = rs.getLong(MTIME_COLUMN);
+                    return new PagingInfo(lastMTime, rs.next(), maxRecords);
                 }
             }
-        } catch(Exception e) {
-            String message = "SQL Exception in getMaxMtimeAfter(origin='" + origin + "', recordType='" + recordType +
+        } catch(SQLException e) {
+            String message = "SQL Exception in getPagingInfo(origin='" + origin + "', recordType='" + recordType +
                              "', mTime=" + mTime + ", maxRecords=" + maxRecords + ")";
             log.error(message);
             throw new SQLException(message, e);
         }
 
-        if (maxMTime == null) { // No match (and no subsequent records)
-            return new Pair<>(null, false);
-        }
+        // Fewer than maxRecords records left: They all fit in the page
+        Pair<Long, Long> maxAndCount = getMaxMtimeAndCountAfter(origin, recordType, mTime);
+        return new PagingInfo(maxAndCount.getLeft(), false, maxAndCount.getRight());
+    }
 
-        if (totalCount <maxRecords) { // Exhaustive match (no subsequent records)
-            return new Pair<>(maxMTime, false);
+    /**
+     * @return pair of (max mTime or 0 if there are no records, number of records) for the records after the given mTime.
+     */
+    private Pair<Long, Long> getMaxMtimeAndCountAfter(String origin, RecordTypeDto recordType, long mTime) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(
+                recordType == null ? maxMtimeAndCountAfterStatement : maxMtimeAndCountAfterTypeStatement)) {
+            int index = 1;
+            stmt.setString(index++, origin);
+            if (recordType != null) {
+                stmt.setString(index++, recordType.getValue());
+            }
+            stmt.setLong(index++, mTime);
+            stmt.setLong(index, getHarvestHorizon());
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next(); // Aggregates always have a row
+                return new Pair<>(rs.getLong("max_mtime"), rs.getLong("limit_count"));
+            }
+        } catch(SQLException e) {
+            String message = "SQL Exception in getMaxMtimeAndCountAfter(origin='" + origin + "', recordType='" +
+                             recordType + "', mTime=" + mTime + ")";
+            log.error(message);
+            throw new SQLException(message, e);
         }
-
-        // Check whether there are extra records available (extra call, but a light one)
-        long absoluteMaxMtime = getMaxMtime(origin, recordType);
-        return maxMTime < absoluteMaxMtime ?
-                new Pair<>(maxMTime, true) : // Subsequent records available
-                new Pair<>(maxMTime, false); // No subsequent records
     }
 
     /**
@@ -609,14 +1314,27 @@ public class DsStorage implements AutoCloseable {
      *
      */
     public ArrayList<DsRecordDto > getRecordsModifiedAfter(String origin, long mTime, int batchSize) throws Exception {
+        return getRecordsModifiedAfter(origin, mTime, batchSize, RecordRowMapper.ALL);
+    }
+
+    /**
+     * Will only extract with records strictly larger than mTime!
+     * Will be sorted by mTime. Latest is last
+     * <p>
+     * Only the columns for the fields in the mapper are selected. Fields that are not mapped are null.
+     *
+     * @param mapper the fields to load for the records. Use {@link RecordRowMapper#ALL} for all fields.
+     */
+    public ArrayList<DsRecordDto > getRecordsModifiedAfter(String origin, long mTime, int batchSize, RecordRowMapper mapper) throws Exception {
 
         if (batchSize <1 || batchSize > 10000) { //No doom switch
             throw new Exception("Batchsize must be in range 1 to 10000");
         }
         ArrayList<DsRecordDto> records = new ArrayList<>();
-        try (PreparedStatement stmt = connection.prepareStatement(recordsModifiedAfterStatement)) {
+        String sql = mapper.isAll() ? recordsModifiedAfterStatement : buildRecordsModifiedAfterStatement(mapper, true);
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
 
-            prepareStatementAndGetRecords(origin, mTime, batchSize, records, stmt);
+            prepareStatementAndGetRecords(origin, mTime, batchSize, records, stmt, mapper);
         }
         catch(Exception e) {
             String message = "SQL Exception in getRecordsModifiedAfter";
@@ -627,7 +1345,100 @@ public class DsStorage implements AutoCloseable {
         return records;
     }
 
-    
+    /**
+     * Stream records with {@code record.mTime > mTime} from the given origin to the consumer, sorted by mTime.
+     * <p>
+     * All records are delivered from a single query. The rows are fetched from the database in chunks of
+     * {@link ServiceConfig#getDBFetchSize()} records, using a server side cursor on PostgreSQL, and each record is
+     * passed to the consumer as soon as it has been read. The connection must not be in autocommit mode, as
+     * PostgreSQL will otherwise fetch the full result set before the first row is delivered.
+     *
+     * @param origin the origin to fetch records from.
+     * @param mTime only records with mTime larger than this will be delivered.
+     * @param maxRecords the maximum number of records to deliver. {@code -1} means no limit.
+     * @param consumer receives the records in mTime order.
+     * @return the number of records delivered to the consumer.
+     */
+    public long streamRecordsModifiedAfter(String origin, long mTime, long maxRecords, RecordConsumer<DsRecordDto> consumer) throws Exception {
+        return streamRecordsModifiedAfter(origin, mTime, maxRecords, RecordRowMapper.ALL, consumer);
+    }
+
+    /**
+     * Stream records with {@code record.mTime > mTime} from the given origin to the consumer, sorted by mTime.
+     * Only the columns for the fields in the mapper are selected. Fields that are not mapped are null.
+     *
+     * @param mapper the fields to load for the records. Use {@link RecordRowMapper#ALL} for all fields.
+     * @see #streamRecordsModifiedAfter(String, long, long, RecordConsumer)
+     */
+    public long streamRecordsModifiedAfter(String origin, long mTime, long maxRecords, RecordRowMapper mapper,
+                                           RecordConsumer<DsRecordDto> consumer) throws Exception {
+        return streamRowsModifiedAfter("streamRecordsModifiedAfter", origin, mTime, maxRecords, mapper,
+                                       rs -> consumer.accept(mapper.map(rs)));
+    }
+
+    /**
+     * Write records with {@code record.mTime > mTime} from the given origin directly from the result set to the
+     * writer, sorted by mTime. No {@link DsRecordDto} or {@code String} for the data is created for the records.
+     * The rows are fetched as described for {@link #streamRecordsModifiedAfter(String, long, long, RecordConsumer)}.
+     *
+     * @param origin the origin to fetch records from.
+     * @param mTime only records with mTime larger than this will be written.
+     * @param maxRecords the maximum number of records to write. {@code -1} means no limit.
+     * @param mapper the fields to write for the records. Use {@link RecordRowMapper#ALL} for all fields.
+     * @param writer receives the records in mTime order.
+     * @return the number of records written.
+     */
+    public long writeRecordsModifiedAfter(String origin, long mTime, long maxRecords, RecordRowMapper mapper,
+                                          RecordJSONWriter writer) throws Exception {
+        return streamRowsModifiedAfter("writeRecordsModifiedAfter", origin, mTime, maxRecords, mapper,
+                                       rs -> writer.write(rs, mapper));
+    }
+
+    /**
+     * Pass the rows for records with {@code record.mTime > mTime} from the given origin to the consumer using a
+     * single query with a server side cursor. The result set is positioned at the row when the consumer is called.
+     */
+    private long streamRowsModifiedAfter(String caller, String origin, long mTime, long maxRecords,
+                                         RecordRowMapper mapper, RecordConsumer<ResultSet> consumer) throws Exception {
+        String sql = mapper.isAll() ?
+                (maxRecords == -1 ? recordsModifiedAfterNoLimitStatement : recordsModifiedAfterStatement) :
+                buildRecordsModifiedAfterStatement(mapper, maxRecords != -1);
+        long delivered = 0;
+        // Read-only storages are in autocommit mode. The cursor needs a transaction, which is ended when autocommit
+        // is enabled again
+        boolean autoCommit = connection.getAutoCommit();
+        if (autoCommit) {
+            connection.setAutoCommit(false);
+        }
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setFetchSize(ServiceConfig.getDBFetchSize());
+            stmt.setString(1, origin);
+            stmt.setLong(2, mTime);
+            stmt.setLong(3, getHarvestHorizon());
+            if (maxRecords != -1) {
+                stmt.setLong(4, maxRecords);
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    consumer.accept(rs);
+                    delivered++;
+                }
+            }
+        }
+        catch(SQLException e) {
+            String message = "SQL Exception in " + caller + "(origin='" + origin + "', mTime=" + mTime +
+                    ", maxRecords=" + maxRecords + ", " + mapper + ") after " + delivered + " records";
+            log.error(message);
+            throw new SQLException(message, e);
+        }
+        finally {
+            if (autoCommit) {
+                connection.setAutoCommit(true);
+            }
+        }
+        return delivered;
+    }
+
 
     /**
      * Will only extract ID. 
@@ -646,7 +1457,8 @@ public class DsStorage implements AutoCloseable {
             stmt.setString(1, origin);
             stmt.setString(2, recordType.getValue());
             stmt.setLong(3, mTime);
-            stmt.setLong(4, batchSize);
+            stmt.setLong(4, getHarvestHorizon());
+            stmt.setLong(5, batchSize);
             try (ResultSet rs = stmt.executeQuery()) {
                 while (rs.next()) {                    
                     recordsIds.add(rs.getString(ID_COLUMN));
@@ -725,6 +1537,7 @@ public class DsStorage implements AutoCloseable {
         try (PreparedStatement statement = connection.prepareStatement(countRecordsInOriginStatement)){
             statement.setString(1, origin);
             statement.setLong(2, Objects.requireNonNullElse(mTime, 0L));
+            statement.setLong(3, getHarvestHorizon());
 
             try (ResultSet rs = statement.executeQuery()) {
                 if (rs.next()){
@@ -738,41 +1551,100 @@ public class DsStorage implements AutoCloseable {
 
     public void createNewRecord(DsRecordDto record) throws Exception {
 
-        // Sanity check
-        if (record.getId() == null) {
-            throw new Exception("Id must not be null"); // TODO exception enum types, messages?
+        checkRecordForWrite(record);
+        long nowStamp = mTimeAllocator.next();
+        //log.debug("Creating new record: " + record.getId());
+
+        try (PreparedStatement stmt = connection.prepareStatement(createRecordStatement)) {
+            setCreateRecordParameters(stmt, record, nowStamp);
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            String message = "SQL Exception in createNewRecord with id:" + record.getId() + " error:" + e.getMessage();
+            log.error(message);
+            throw new SQLException(message, e);
         }
-        if (record.getId().equals(record.getParentId())) {
-            throw new Exception("Record with id has itself as parent:" + record.getId());
+
+    }
+
+    /**
+     * Create a new record or update the existing record with the same id in a single statement.
+     * <p>
+     * When updating, the kalturaId is kept if the record has no kalturaId and the same referenceId as the stored
+     * record. Else the kalturaId is cleared. cTime, origin, orgid and id_error are only set when the record is created.
+     *
+     * @param record the record to create or update.
+     */
+    public void upsertRecord(DsRecordDto record) throws Exception {
+
+        checkRecordForWrite(record);
+        long nowStamp = mTimeAllocator.next();
+
+        try (PreparedStatement stmt = connection.prepareStatement(h2Dialect ? upsertRecordH2Statement : upsertRecordStatement)) {
+            setCreateRecordParameters(stmt, record, nowStamp);
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            String message = "SQL Exception in upsertRecord with id:" + record.getId() + " error:" + e.getMessage();
+            log.error(message);
+            throw new SQLException(message, e);
         }
+    }
 
-        if (record.getIdError() == null) {
-            record.setIdError(false); // can not make default to work in open API.            
+    /**
+     * Create new records with a single batched insert. Each record gets its own mTime.
+     *
+     * @param records the records to create. None of them must exist in storage.
+     */
+    public void createNewRecords(List<DsRecordDto> records) throws Exception {
+        if (records.isEmpty()) {
+            return;
+        }
+        for (DsRecordDto record : records) {
+            checkRecordForWrite(record);
         }
-        long nowStamp = UniqueTimestampGenerator.next();
-        //log.debug("Creating new record: " + record.getId());
 
         try (PreparedStatement stmt = connection.prepareStatement(createRecordStatement)) {
-            stmt.setString(1, record.getId());
-            stmt.setString(2, record.getOrigin());
-            stmt.setString(3, record.getOrgid());                        
-            stmt.setString(4, record.getRecordType().getValue());
-            stmt.setInt(5, boolToInt(record.getIdError()));                
-            stmt.setInt(6, 0);
-            stmt.setLong(7, nowStamp);
-            stmt.setLong(8, nowStamp);
-            stmt.setString(9, record.getData());
-            stmt.setString(10, record.getParentId());
-            stmt.setString(11, record.getReferenceId());
-            stmt.setString(12, record.getKalturaId()); //This value is probably null. It will be updated by a batch job later. 
-            stmt.executeUpdate();
-
+            long firstStamp = mTimeAllocator.reserve(records.size());
+            for (int i = 0; i < records.size(); i++) {
+                setCreateRecordParameters(stmt, records.get(i), firstStamp + i);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
         } catch (SQLException e) {
-            String message = "SQL Exception in createNewRecord with id:" + record.getId() + " error:" + e.getMessage();
+            String message = "SQL Exception in createNewRecords for " + records.size() + " records error:" + e.getMessage();
             log.error(message);
             throw new SQLException(message, e);
         }
+    }
+
+    /**
+     * Sanity check of a record before it is created or updated.
+     */
+    private static void checkRecordForWrite(DsRecordDto record) throws Exception {
+        if (record.getId() == null) {
+            throw new Exception("Id must not be null"); // TODO exception enum types, messages?
+        }
+        if (record.getId().equals(record.getParentId())) {
+            throw new Exception("Record with id has itself as parent:" + record.getId());
+        }
+    }
 
+    private static void setCreateRecordParameters(PreparedStatement stmt, DsRecordDto record, long nowStamp) throws SQLException {
+        if (record.getIdError() == null) {
+            record.setIdError(false); // can not make default to work in open API.            
+        }
+        stmt.setString(1, record.getId());
+        stmt.setString(2, record.getOrigin());
+        stmt.setString(3, record.getOrgid());                        
+        stmt.setString(4, record.getRecordType().getValue());
+        stmt.setInt(5, boolToInt(record.getIdError()));                
+        stmt.setInt(6, 0);
+        stmt.setLong(7, nowStamp);
+        stmt.setLong(8, nowStamp);
+        stmt.setString(9, record.getData());
+        stmt.setString(10, record.getParentId());
+        stmt.setString(11, record.getReferenceId());
+        stmt.setString(12, record.getKalturaId()); //This value is probably null. It will be updated by a batch job later. 
+        stmt.setString(13, getDataJSON(record));
     }
 
     /**
@@ -782,7 +1654,7 @@ public class DsStorage implements AutoCloseable {
     public void createNewTranscription(TranscriptionDto transcription) throws Exception {
 
 
-        long nowStamp = UniqueTimestampGenerator.next();
+        long nowStamp = mTimeAllocator.next();
 
         try (PreparedStatement stmt = connection.prepareStatement(createTranscriptionStatement)) {
             stmt.setString(1, transcription.getFileId());
@@ -811,7 +1683,7 @@ public class DsStorage implements AutoCloseable {
             throw new Exception("Id must not be null"); // TODO exception enum types, messages?
         }
 
-        long nowStamp = UniqueTimestampGenerator.next();
+        long nowStamp = mTimeAllocator.next();
         //log.debug("Creating new record: " + record.getId());
 
         try (PreparedStatement stmt = connection.prepareStatement(updateMTimeForRecordStatement)) {  
@@ -829,6 +1701,40 @@ public class DsStorage implements AutoCloseable {
     }
     
     
+    /**
+     * Update the modified time for all the given records with a single batched update. The records get consecutive
+     * mTimes from a block reserved with {@link MTimeAllocator#reserve(int)}, in the order of the ids.
+     *
+     * @param recordIds the ids of the records to update.
+     * @return the ids of the records that did not exist.
+     */
+    public List<String> updateMTimeForRecords(List<String> recordIds) throws Exception {
+        List<String> missing = new ArrayList<>();
+        if (recordIds.isEmpty()) {
+            return missing;
+        }
+        long firstStamp = mTimeAllocator.reserve(recordIds.size());
+
+        try (PreparedStatement stmt = connection.prepareStatement(updateMTimeForRecordStatement)) {
+            for (int i = 0; i < recordIds.size(); i++) {
+                stmt.setLong(1, firstStamp + i);
+                stmt.setString(2, recordIds.get(i));
+                stmt.addBatch();
+            }
+            int[] updated = stmt.executeBatch();
+            for (int i = 0; i < updated.length; i++) {
+                if (updated[i] == 0) {
+                    missing.add(recordIds.get(i));
+                }
+            }
+            return missing;
+        } catch (SQLException e) {
+            String message = "SQL Exception in updateMTimeForRecords for " + recordIds.size() + " records error:" + e.getMessage();
+            log.error(message);
+            throw new SQLException(message, e);
+        }
+    }
+
     /**
      * Update the modified time for records with the fileId. It is not given that such a record exist.
      * @param fileId of record(s) to update.
@@ -839,7 +1745,7 @@ public class DsStorage implements AutoCloseable {
         if (fileId == null) {
             throw new Exception("FileId must not be null"); 
         }
-        long nowStamp = UniqueTimestampGenerator.next();
+        long nowStamp = mTimeAllocator.next();
         
         try (PreparedStatement stmt = connection.prepareStatement(updateMTimeForRecordByFileIdStatement)) {  
             stmt.setLong(1, nowStamp);      
@@ -862,7 +1768,7 @@ public class DsStorage implements AutoCloseable {
             throw new Exception("Id must not be null"); // TODO exception enum types, messages?
         }
 
-        long nowStamp = UniqueTimestampGenerator.next();
+        long nowStamp = mTimeAllocator.next();
         //log.debug("Creating new record: " + record.getId());
 
         try (PreparedStatement stmt = connection.prepareStatement(markRecordForDeleteStatement)) {     
@@ -952,25 +1858,12 @@ public class DsStorage implements AutoCloseable {
 
     public void updateRecord(DsRecordDto record) throws Exception {
 
-        // Sanity check
-        if (record.getId() == null) {
-            throw new Exception("Id must not be null"); // TODO exception enum types, messages?
-        }
-        if (record.getId().equals(record.getParentId())) {
-            throw new Exception("Record with id has itself as parent:" + record.getId());
-        }
-
-        long nowStamp = UniqueTimestampGenerator.next();
+        checkRecordForWrite(record);
+        long nowStamp = mTimeAllocator.next();
         //log.debug("Creating new record: " + record.getId());
                       
         try (PreparedStatement stmt = connection.prepareStatement(updateRecordStatement)) {
-            stmt.setString(1, record.getRecordType().getValue());
-            stmt.setString(2, record.getData());
-            stmt.setLong(3, nowStamp);          
-            stmt.setString(4, record.getReferenceId());
-            stmt.setString(5, record.getKalturaId());
-            stmt.setString(6, record.getParentId());            
-            stmt.setString(7, record.getId());
+            setUpdateRecordParameters(stmt, record, nowStamp);
             stmt.executeUpdate();
         } catch (SQLException e) {
             String message = "SQL Exception in updateRecord with id:" + record.getId() + " error:" + e.getMessage();
@@ -979,6 +1872,56 @@ public class DsStorage implements AutoCloseable {
         }
     }
 
+    /**
+     * Update existing records with a single batched update. Each record gets its own mTime.
+     *
+     * @param records the records to update. All of them must exist in storage.
+     */
+    public void updateRecords(List<DsRecordDto> records) throws Exception {
+        if (records.isEmpty()) {
+            return;
+        }
+        for (DsRecordDto record : records) {
+            checkRecordForWrite(record);
+        }
+
+        try (PreparedStatement stmt = connection.prepareStatement(updateRecordStatement)) {
+            long firstStamp = mTimeAllocator.reserve(records.size());
+            for (int i = 0; i < records.size(); i++) {
+                setUpdateRecordParameters(stmt, records.get(i), firstStamp + i);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        } catch (SQLException e) {
+            String message = "SQL Exception in updateRecords for " + records.size() + " records error:" + e.getMessage();
+            log.error(message);
+            throw new SQLException(message, e);
+        }
+    }
+
+    /**
+     * The value for the {@link #DATA_JSON_COLUMN}, which is written in the same statement as the data so they never
+     * differ. It is null for records in origins without precomputed JSON, so outdated JSON is never left behind if
+     * precomputed JSON is disabled for an origin.
+     *
+     * @param record a record that is about to be created or updated.
+     * @return the precomputed JSON for the data of the record or null.
+     */
+    private static String getDataJSON(DsRecordDto record) {
+        return ServiceConfig.isPrecomputedJSON(record.getOrigin()) ? RecordRowMapper.toDataJSON(record.getData()) : null;
+    }
+
+    private static void setUpdateRecordParameters(PreparedStatement stmt, DsRecordDto record, long nowStamp) throws SQLException {
+        stmt.setString(1, record.getRecordType().getValue());
+        stmt.setString(2, record.getData());
+        stmt.setLong(3, nowStamp);          
+        stmt.setString(4, record.getReferenceId());
+        stmt.setString(5, record.getKalturaId());
+        stmt.setString(6, record.getParentId());            
+        stmt.setString(7, getDataJSON(record));
+        stmt.setString(8, record.getId());
+    }
+
 
     public void updateKalturaIdForRecords(String referenceId, String kalturaId) throws Exception {
       
@@ -989,7 +1932,7 @@ public class DsStorage implements AutoCloseable {
         
               
         for (String id:recordIds) {        
-            long nowStamp = UniqueTimestampGenerator.next();
+            long nowStamp = mTimeAllocator.next();
             try (PreparedStatement stmt = connection.prepareStatement(updateKalturaIdStatement)) {        
               stmt.setString(1, kalturaId);
               stmt.setLong(2, nowStamp);
@@ -1005,7 +1948,7 @@ public class DsStorage implements AutoCloseable {
     
     public void updateReferenceIdForRecord(String recordId, String referenceId) throws Exception {
         
-        long nowStamp = UniqueTimestampGenerator.next();      
+        long nowStamp = mTimeAllocator.next();      
         try (PreparedStatement stmt = connection.prepareStatement(updateReferenceIdStatement)) {
             stmt.setString(1, referenceId);
             stmt.setLong(2, nowStamp);
@@ -1019,43 +1962,19 @@ public class DsStorage implements AutoCloseable {
 
     }
     
-    private static DsRecordDto createRecordFromRS(ResultSet rs) throws SQLException {
-
-        String id = rs.getString(ID_COLUMN);
-        String origin = rs.getString(ORIGIN_COLUMN);
-        boolean idError = rs.getInt(IDERROR_COLUMN) == 1;
-        String orgid = rs.getString(ORGID_COLUMN);
-        String recordType = rs.getString(RECORDTYPE_COLUMN);
-        boolean deleted = rs.getInt(DELETED_COLUMN) == 1;                       
-        String data = rs.getString(DATA_COLUMN);
-        long cTime = rs.getLong(CTIME_COLUMN);
-        long mTime = rs.getLong(MTIME_COLUMN);
-        String parentId = rs.getString(PARENT_ID_COLUMN);
-        String referenceId = rs.getString(RECORDS_REFERENCE_ID_COLUMN);
-        String kalturaId = rs.getString(RECORDS_KALTURA_ID_COLUMN);
-        
-        DsRecordDto record = new DsRecordDto();
-        record.setId(id);
-        record.setOrigin(origin);
-        record.setOrgid(orgid);
-        record.setRecordType(RecordTypeDto.valueOf(recordType));
-        record.setIdError(idError);
-        record.setData(data);
-        record.setParentId(parentId);
-        record.setcTime(cTime);
-        record.setmTime(mTime);
-        record.setDeleted(deleted);
-        record.setReferenceId(referenceId);
-        record.setKalturaId(kalturaId);
-
-        //Set the two dates as human-readable.
-        record.setcTimeHuman(convertToHumanDate(cTime));
-        record.setmTimeHuman(convertToHumanDate(mTime));
-        
-        return record;
+    /**
+     * Build the SQL for selecting records modified after a given mTime with the columns from the mapper.
+     * Parameters are origin, mTime, the harvest horizon and, if limit is true, the maximum number of records.
+     */
+    private static String buildRecordsModifiedAfterStatement(RecordRowMapper mapper, boolean limit) {
+        return "SELECT " + mapper.getColumns() + " FROM " + RECORDS_TABLE +
+               " WHERE " + ORIGIN_COLUMN + "= ?" +
+               " AND " + MTIME_COLUMN + " > ?" +
+               " AND " + MTIME_COLUMN + " <= ?" +
+               " ORDER BY " + MTIME_COLUMN + " ASC" +
+               (limit ? " LIMIT ?" : "");
     }
 
-    
     private static DsRecordMinimalDto createRecordReferenceIdFromRS(ResultSet rs) throws SQLException {
         String id = rs.getString(ID_COLUMN);                              
         long mTime = rs.getLong(MTIME_COLUMN);
@@ -1132,11 +2051,25 @@ public class DsStorage implements AutoCloseable {
     }
     
    /*
-   * Method is synchronized because simple dateformat is not thread safe. Faster to reuse synchronized than to construct new every time.
+   * The formatter is immutable and thread safe. The last formatted second is cached per thread.
    */
-    private static synchronized String convertToHumanDate(long millis_time_1000) {
-     return dateFormat.format(new Date(millis_time_1000/1000));
-        
+    static String convertToHumanDate(long millis_time_1000) {
+        long millis = millis_time_1000/1000;
+        long second = Math.floorDiv(millis, 1000);
+        HumanDateCache last = lastHumanDate.get();
+        if (last.second != second || last.formatted == null) {
+            last.formatted = dateFormat.format(Instant.ofEpochMilli(millis));
+            last.second = second;
+        }
+        return last.formatted;
+    }
+
+    /**
+     * The last formatted second for a thread. See {@link #convertToHumanDate(long)}.
+     */
+    private static final class HumanDateCache {
+        private long second;
+        private String formatted = null;
     }
     
     /*
@@ -1169,15 +2102,32 @@ public class DsStorage implements AutoCloseable {
         }
     }
 
+    /**
+     * Receiver of records when streaming from the storage.
+     * @param <T> the type of records delivered.
+     */
+    @FunctionalInterface
+    public interface RecordConsumer<T> {
+        /**
+         * Called for each record in the order they are read from the database.
+         * @param record the record with the fields selected for the stream.
+         * @throws Exception if the record could not be processed. This aborts the streaming.
+         */
+        void accept(T record) throws Exception;
+    }
+
     // This is called from InitializationContextListener by the Web-container
     // when server is shutdown,
     // Just to be sure the DB lock file is free.
     public static void shutdown() {
         log.info("Shutdown ds-storage");
         try {
+            closeReadReplica();
             if (dataSource != null) {
                 dataSource.close();
             }
+            mTimeAllocator.close();
+            mTimeAllocator = MTimeAllocator.JVM;
         } catch (Exception e) {
             // ignore errors during shutdown, we cant do anything about it anyway
             log.error("shutdown failed", e);
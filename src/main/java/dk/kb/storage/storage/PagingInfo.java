@@ -0,0 +1,59 @@
+package dk.kb.storage.storage;
+
+import dk.kb.util.Pair;
+
+/**
+ * The values needed for the paging headers of an export: The continuation token (the mTime of the last record in
+ * the page), whether more records are available after the page and the number of records in the page.
+ */
+public class PagingInfo {
+
+    private final Long lastMTime;
+    private final boolean hasMore;
+    private final long recordCount;
+
+    /**
+     * @param lastMTime the mTime of the last record in the page. Null if there are no records.
+     * @param hasMore true if there are records after the page.
+     * @param recordCount the number of records in the page.
+     */
+    public PagingInfo(Long lastMTime, boolean hasMore, long recordCount) {
+        this.lastMTime = lastMTime;
+        this.hasMore = hasMore;
+        this.recordCount = recordCount;
+    }
+
+    /**
+     * @return the mTime of the last record in the page. Null if there are no records.
+     */
+    public Long getLastMTime() {
+        return lastMTime;
+    }
+
+    /**
+     * @return true if there are records with mTime higher than {@link #getLastMTime()}.
+     */
+    public boolean hasMore() {
+        return hasMore;
+    }
+
+    /**
+     * @return the number of records in the page.
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @return pair of (continuation token, has more) as used by
+     *         {@link dk.kb.util.webservice.stream.ContinuationUtil#setHeaders}.
+     */
+    public Pair<Long, Boolean> getContinuation() {
+        return new Pair<>(lastMTime, hasMore);
+    }
+
+    @Override
+    public String toString() {
+        return "PagingInfo(lastMTime=" + lastMTime + ", hasMore=" + hasMore + ", recordCount=" + recordCount + ")";
+    }
+}
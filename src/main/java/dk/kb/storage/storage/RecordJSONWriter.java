@@ -0,0 +1,90 @@
+package dk.kb.storage.storage;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Writes records directly from the rows of a {@link ResultSet} to an output stream as a JSON array or as NDJSON with
+ * one record per line. This is the passthrough alternative to writing {@link dk.kb.storage.model.v1.DsRecordDto}s
+ * with an {@code ExportWriter}: The {@code data} of the records is escaped from the JDBC character stream into the
+ * output buffer, so the memory used for a record does not depend on the size of its data.
+ * <p>
+ * See {@link RecordRowMapper#writeJSON(ResultSet, JsonGenerator)} for the JSON representation.
+ */
+public class RecordJSONWriter implements Closeable {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final JsonGenerator generator;
+    private final boolean lines;
+    private long count = 0L;
+    private long lastMTime = 0L;
+
+    /**
+     * Create a writer. For JSON the start of the array is written immediately.
+     * @param output destination for the records. It is closed when the writer is closed.
+     * @param lines  if true, the records are written as NDJSON. If false, as a JSON array.
+     */
+    public RecordJSONWriter(OutputStream output, boolean lines) throws IOException {
+        generator = JSON_FACTORY.createGenerator(output, JsonEncoding.UTF8);
+        this.lines = lines;
+        if (lines) {
+            // The newline after each record separates them
+            generator.setRootValueSeparator(null);
+        } else {
+            generator.writeStartArray();
+        }
+    }
+
+    /**
+     * Write the current row of the result set as a record.
+     * @param rs     result set positioned at a row. The columns must be selected as given by the mapper and the
+     *               result set must contain {@link DsStorage#MTIME_COLUMN}.
+     * @param mapper the fields to write.
+     */
+    public void write(ResultSet rs, RecordRowMapper mapper) throws SQLException, IOException {
+        mapper.writeJSON(rs, generator);
+        if (lines) {
+            generator.writeRaw('\n');
+        }
+        lastMTime = rs.getLong(DsStorage.MTIME_COLUMN);
+        count++;
+    }
+
+    /**
+     * @return the number of written records.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the mTime of the last written record or 0 if no records have been written.
+     */
+    public long getLastMTime() {
+        return lastMTime;
+    }
+
+    /**
+     * Flush buffered records to the output.
+     */
+    public void flush() throws IOException {
+        generator.flush();
+    }
+
+    /**
+     * Close the JSON array if relevant and close the output.
+     */
+    @Override
+    public void close() throws IOException {
+        // Closes the array as well as a record left open by a failed write
+        generator.close();
+    }
+}
@@ -0,0 +1,352 @@
+package dk.kb.storage.storage;
+
+import dk.kb.storage.model.v1.DsRecordDto;
+import dk.kb.storage.model.v1.RecordTypeDto;
+import dk.kb.util.webservice.exception.InvalidArgumentServiceException;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Converts rows from the records table to {@link DsRecordDto}s or writes them directly as JSON.
+ * <p>
+ * The mapper holds an explicit list of the columns to select. The columns are read by index in the order given by
+ * {@link #getColumns()}, so the SQL statement must select exactly those columns, e.g.
+ * {@code "SELECT " + mapper.getColumns() + " FROM ds_records ..."}.
+ * <p>
+ * {@link #ALL} maps all columns. Use {@link #forFields(String)} to create a mapper for a subset of the fields, e.g.
+ * without {@code data} for clients that only need the metadata for the records. Fields that are not selected are
+ * null in the returned records. {@link #withPrecomputedJSON()} creates a mapper that uses the JSON for the data
+ * stored at ingest for origins with {@code precomputeJSON} enabled.
+ */
+public class RecordRowMapper {
+
+    /**
+     * The fields of a record that can be selected. The order is the order of the columns in the SQL statements and
+     * of the fields written by {@link #writeJSON(ResultSet, JsonGenerator)}, which is the order of the JSON properties
+     * of {@link DsRecordDto}. {@code cTimeHuman} and {@code mTimeHuman} are written after {@code mTime}.
+     */
+    private enum Field {
+        ID("id", DsStorage.ID_COLUMN, (rs, index, record) -> record.setId(rs.getString(index)),
+           (rs, index, json) -> writeStringField(json, "id", rs.getString(index))),
+        ORGID("orgid", DsStorage.ORGID_COLUMN, (rs, index, record) -> record.setOrgid(rs.getString(index)),
+              (rs, index, json) -> writeStringField(json, "orgid", rs.getString(index))),
+        IDERROR("id_error", DsStorage.IDERROR_COLUMN, (rs, index, record) -> record.setIdError(rs.getInt(index) == 1),
+                (rs, index, json) -> json.writeBooleanField("id_error", rs.getInt(index) == 1)),
+        ORIGIN("origin", DsStorage.ORIGIN_COLUMN, (rs, index, record) -> record.setOrigin(rs.getString(index)),
+               (rs, index, json) -> writeStringField(json, "origin", rs.getString(index))),
+        RECORDTYPE("recordType", DsStorage.RECORDTYPE_COLUMN,
+                   (rs, index, record) -> record.setRecordType(RecordTypeDto.valueOf(rs.getString(index))),
+                   (rs, index, json) -> writeStringField(
+                           json, "recordType", RecordTypeDto.valueOf(rs.getString(index)).toString())),
+        DELETED("deleted", DsStorage.DELETED_COLUMN, (rs, index, record) -> record.setDeleted(rs.getInt(index) == 1),
+                (rs, index, json) -> json.writeBooleanField("deleted", rs.getInt(index) == 1)),
+        DATA("data", DsStorage.DATA_COLUMN, (rs, index, record) -> record.setData(rs.getString(index)),
+             (rs, index, json) -> {
+                 // Escaped directly from the character stream in chunks, without creating a String for the data
+                 try (Reader data = rs.getCharacterStream(index)) {
+                     if (data != null) {
+                         json.writeFieldName("data");
+                         json.writeString(data, -1);
+                     }
+                 }
+             }),
+        CTIME("cTime", DsStorage.CTIME_COLUMN, (rs, index, record) -> {
+            long cTime = rs.getLong(index);
+            record.setcTime(cTime);
+            record.setcTimeHuman(DsStorage.convertToHumanDate(cTime));
+        }, (rs, index, json) -> json.writeNumberField("cTime", rs.getLong(index))),
+        MTIME("mTime", DsStorage.MTIME_COLUMN, (rs, index, record) -> {
+            long mTime = rs.getLong(index);
+            record.setmTime(mTime);
+            record.setmTimeHuman(DsStorage.convertToHumanDate(mTime));
+        }, (rs, index, json) -> json.writeNumberField("mTime", rs.getLong(index))),
+        PARENTID("parentId", DsStorage.PARENT_ID_COLUMN, (rs, index, record) -> record.setParentId(rs.getString(index)),
+                 (rs, index, json) -> writeStringField(json, "parentId", rs.getString(index))),
+        REFERENCEID("referenceId", DsStorage.RECORDS_REFERENCE_ID_COLUMN,
+                    (rs, index, record) -> record.setReferenceId(rs.getString(index)),
+                    (rs, index, json) -> writeStringField(json, "referenceId", rs.getString(index))),
+        KALTURAID("kalturaId", DsStorage.RECORDS_KALTURA_ID_COLUMN,
+                  (rs, index, record) -> record.setKalturaId(rs.getString(index)),
+                  (rs, index, json) -> writeStringField(json, "kalturaId", rs.getString(index)));
+
+        private final String fieldName;
+        private final String column;
+        private final ColumnReader reader;
+        private final ColumnJSONWriter jsonWriter;
+
+        Field(String fieldName, String column, ColumnReader reader, ColumnJSONWriter jsonWriter) {
+            this.fieldName = fieldName;
+            this.column = column;
+            this.reader = reader;
+            this.jsonWriter = jsonWriter;
+        }
+    }
+
+    @FunctionalInterface
+    private interface ColumnReader {
+        void read(ResultSet rs, int index, DsRecordDto record) throws SQLException;
+    }
+
+    @FunctionalInterface
+    private interface ColumnJSONWriter {
+        void write(ResultSet rs, int index, JsonGenerator json) throws SQLException, IOException;
+    }
+
+    /**
+     * Maps all columns for the records.
+     */
+    public static final RecordRowMapper ALL = new RecordRowMapper(EnumSet.allOf(Field.class));
+
+    /**
+     * The names of the fields that can be given to {@link #forFields(String)}.
+     */
+    public static final List<String> FIELD_NAMES =
+            Arrays.stream(Field.values()).map(field -> field.fieldName).collect(Collectors.toList());
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    // Only one of data and data_json is selected for a row, so the data is not read twice
+    private static final String PRECOMPUTED_DATA_EXPRESSION = "CASE WHEN " + DsStorage.DATA_JSON_COLUMN +
+            " IS NULL THEN " + DsStorage.DATA_COLUMN + " END AS " + DsStorage.DATA_COLUMN;
+
+    private final Field[] fields;
+    private final String columns;
+    private final boolean precomputedJSON;
+    // 1-based column indexes for the human readable times or 0 if the field is not mapped
+    private final int cTimeIndex;
+    private final int mTimeIndex;
+
+    private RecordRowMapper(Set<Field> fields) {
+        this(fields, false);
+    }
+
+    private RecordRowMapper(Set<Field> fields, boolean precomputedJSON) {
+        this.fields = fields.toArray(new Field[0]);
+        this.precomputedJSON = precomputedJSON;
+        List<Field> fieldList = Arrays.asList(this.fields);
+        this.cTimeIndex = fieldList.indexOf(Field.CTIME) + 1;
+        this.mTimeIndex = fieldList.indexOf(Field.MTIME) + 1;
+        this.columns = fields.stream()
+                .map(field -> precomputedJSON && field == Field.DATA ? PRECOMPUTED_DATA_EXPRESSION : field.column)
+                .collect(Collectors.joining(", ")) +
+                (precomputedJSON ? ", " + DsStorage.DATA_JSON_COLUMN : "");
+    }
+
+    /**
+     * Create a mapper for the given fields. {@code id} and {@code mTime} are always included as they are needed for
+     * identifying the records and for paging.
+     *
+     * @param fields comma separated list of field names as used in the JSON representation of the records,
+     *               e.g. {@code id,mTime,parentId}. Matching is case-insensitive. If null or empty, all fields are
+     *               mapped.
+     * @return a mapper for the given fields.
+     * @throws InvalidArgumentServiceException if one of the fields is unknown.
+     */
+    public static RecordRowMapper forFields(String fields) {
+        if (fields == null || fields.isBlank()) {
+            return ALL;
+        }
+        Set<Field> selected = EnumSet.of(Field.ID, Field.MTIME);
+        for (String fieldName: fields.split(",")) {
+            fieldName = fieldName.trim();
+            if (fieldName.isEmpty()) {
+                continue;
+            }
+            selected.add(getField(fieldName));
+        }
+        return selected.size() == Field.values().length ? ALL : new RecordRowMapper(selected);
+    }
+
+    /**
+     * Create a mapper for the same fields, which also selects the column {@code data_json} with the precomputed JSON
+     * for the data of the records. If it is present, it is written as it is by
+     * {@link #writeJSON(ResultSet, JsonGenerator)}. Else the data is read from the {@code data} column.
+     * <p>
+     * The {@code data_json} column must exist in the database, see {@code create_ds_storage.ddl}.
+     *
+     * @return a mapper using the precomputed JSON for the data or this mapper if it does not map the data.
+     */
+    public RecordRowMapper withPrecomputedJSON() {
+        if (precomputedJSON || !Arrays.asList(fields).contains(Field.DATA)) {
+            return this;
+        }
+        return new RecordRowMapper(EnumSet.copyOf(Arrays.asList(fields)), true);
+    }
+
+    private static Field getField(String fieldName) {
+        for (Field field: Field.values()) {
+            if (field.fieldName.toLowerCase(Locale.ROOT).equals(fieldName.toLowerCase(Locale.ROOT))) {
+                return field;
+            }
+        }
+        throw new InvalidArgumentServiceException(
+                "Unknown field '" + fieldName + "'. Valid fields are " + FIELD_NAMES);
+    }
+
+    /**
+     * @return comma separated list of the columns to select, in the order they are read by {@link #map(ResultSet)}.
+     */
+    public String getColumns() {
+        return columns;
+    }
+
+    /**
+     * @return true if all fields for the records are mapped from the plain columns, so the statements for all
+     *         columns can be used.
+     */
+    public boolean isAll() {
+        return fields.length == Field.values().length && !precomputedJSON;
+    }
+
+    /**
+     * @return true if the mapper selects the precomputed JSON for the data, see {@link #withPrecomputedJSON()}.
+     */
+    public boolean isPrecomputedJSON() {
+        return precomputedJSON;
+    }
+
+    /**
+     * @return the names of the mapped fields.
+     */
+    public List<String> getFieldNames() {
+        List<String> names = new ArrayList<>(fields.length);
+        for (Field field: fields) {
+            names.add(field.fieldName);
+        }
+        return names;
+    }
+
+    /**
+     * Create a record from the current row of the result set. The columns must be selected in the order given by
+     * {@link #getColumns()}.
+     *
+     * @param rs result set positioned at a row.
+     * @return a record with the mapped fields set.
+     */
+    public DsRecordDto map(ResultSet rs) throws SQLException {
+        DsRecordDto record = new DsRecordDto();
+        for (int i = 0 ; i < fields.length ; i++) {
+            fields[i].reader.read(rs, i+1, record);
+        }
+        if (precomputedJSON && record.getData() == null) {
+            record.setData(fromDataJSON(rs.getString(fields.length+1)));
+        }
+        return record;
+    }
+
+    /**
+     * Write the current row of the result set as a JSON object with the same fields in the same order as the JSON
+     * representation of the {@link DsRecordDto} from {@link #map(ResultSet)}. Null values are left out. The {@code data} column is
+     * read with {@link ResultSet#getCharacterStream(int)} and escaped in chunks, so no {@code String} or
+     * {@code DsRecordDto} is created for the record.
+     *
+     * @param rs   result set positioned at a row.
+     * @param json receives the record as a JSON object.
+     */
+    public void writeJSON(ResultSet rs, JsonGenerator json) throws SQLException, IOException {
+        json.writeStartObject();
+        for (int i = 0 ; i < fields.length ; i++) {
+            if (precomputedJSON && fields[i] == Field.DATA && writePrecomputedData(rs, fields.length+1, json)) {
+                continue;
+            }
+            fields[i].jsonWriter.write(rs, i+1, json);
+            if (fields[i] == Field.MTIME) {
+                writeHumanTimes(rs, json);
+            }
+        }
+        json.writeEndObject();
+    }
+
+    /**
+     * Write {@code cTimeHuman} and {@code mTimeHuman} for the mapped times. They follow {@code mTime} in the JSON
+     * representation of {@link DsRecordDto}.
+     */
+    private void writeHumanTimes(ResultSet rs, JsonGenerator json) throws SQLException, IOException {
+        if (cTimeIndex > 0) {
+            json.writeStringField("cTimeHuman", DsStorage.convertToHumanDate(rs.getLong(cTimeIndex)));
+        }
+        if (mTimeIndex > 0) {
+            json.writeStringField("mTimeHuman", DsStorage.convertToHumanDate(rs.getLong(mTimeIndex)));
+        }
+    }
+
+    /**
+     * Copy the precomputed JSON for the data to the generator without escaping it again.
+     * @return false if there is no precomputed JSON for the record.
+     */
+    private static boolean writePrecomputedData(ResultSet rs, int index, JsonGenerator json)
+            throws SQLException, IOException {
+        try (Reader dataJSON = rs.getCharacterStream(index)) {
+            if (dataJSON == null) {
+                return false;
+            }
+            char[] buffer = new char[8192];
+            int read = dataJSON.read(buffer);
+            if (read == -1) {
+                return false;
+            }
+            json.writeFieldName("data");
+            // The first chunk starts the value, the rest continues it
+            json.writeRawValue(buffer, 0, read);
+            while ((read = dataJSON.read(buffer)) != -1) {
+                json.writeRaw(buffer, 0, read);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Create the precomputed JSON for the data of a record, as stored in the {@code data_json} column.
+     * @param data the data for a record. Can be null.
+     * @return the data as a quoted and escaped JSON string or null if data is null.
+     */
+    static String toDataJSON(String data) {
+        if (data == null) {
+            return null;
+        }
+        char[] escaped = JsonStringEncoder.getInstance().quoteAsString(data);
+        return new StringBuilder(escaped.length + 2).append('"').append(escaped).append('"').toString();
+    }
+
+    /**
+     * @param dataJSON precomputed JSON from {@link #toDataJSON(String)}. Can be null.
+     * @return the data or null if dataJSON is null.
+     */
+    static String fromDataJSON(String dataJSON) throws SQLException {
+        if (dataJSON == null) {
+            return null;
+        }
+        try (JsonParser parser = JSON_FACTORY.createParser(dataJSON)) {
+            parser.nextToken();
+            return parser.getText();
+        } catch (IOException e) {
+            throw new SQLException("Unable to parse precomputed JSON for data", e);
+        }
+    }
+
+    private static void writeStringField(JsonGenerator json, String fieldName, String value) throws IOException {
+        if (value != null) {
+            json.writeStringField(fieldName, value);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RecordRowMapper(" + getFieldNames() + (precomputedJSON ? ", precomputedJSON" : "") + ")";
+    }
+}
@@ -0,0 +1,107 @@
+package dk.kb.storage.storage;
+
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Decides whether the read replica is fresh enough to be used. The replication lag is measured with a query on the
+ * replica, at most once per check interval, and the replica is only used if the lag is at most the allowed maximum.
+ * If the lag cannot be measured, the replica is not used until the next check.
+ * <p>
+ * The default query for PostgreSQL hot standby returns 0 when all received WAL has been replayed, so an idle primary
+ * does not make the replica look stale.
+ */
+public class ReplicaLagGuard {
+
+    private static final Logger log = LoggerFactory.getLogger(ReplicaLagGuard.class);
+
+    /**
+     * Replication lag in seconds for a PostgreSQL hot standby.
+     */
+    public static final String POSTGRESQL_LAG_QUERY =
+            "SELECT CASE WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0" +
+            " ELSE EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) END";
+
+    private final String lagQuery;
+    private final double maxLagSeconds;
+    private final long checkIntervalMillis;
+
+    private volatile long nextCheck = 0;
+    private volatile boolean usable = false;
+    private volatile double lastLagSeconds = -1;
+
+    /**
+     * @param lagQuery query returning the replication lag in seconds as a single number.
+     * @param maxLagSeconds the replica is not used if the lag is larger than this. Negative means no limit, in which
+     *                      case the lag is never measured.
+     * @param checkIntervalMillis the minimum time between measurements of the lag.
+     */
+    public ReplicaLagGuard(String lagQuery, double maxLagSeconds, long checkIntervalMillis) {
+        this.lagQuery = lagQuery;
+        this.maxLagSeconds = maxLagSeconds;
+        this.checkIntervalMillis = checkIntervalMillis;
+    }
+
+    /**
+     * @param replica the pool for the read replica. Used for measuring the lag if the last measurement is too old.
+     * @return true if the replica is fresh enough to be used.
+     */
+    public boolean isUsable(BasicDataSource replica) {
+        if (maxLagSeconds < 0) {
+            return true;
+        }
+        if (System.currentTimeMillis() >= nextCheck) {
+            check(replica);
+        }
+        return usable;
+    }
+
+    private synchronized void check(BasicDataSource replica) {
+        if (System.currentTimeMillis() < nextCheck) { // Another thread has just checked
+            return;
+        }
+        boolean wasUsable = usable;
+        try (Connection connection = replica.getConnection();
+             PreparedStatement stmt = connection.prepareStatement(lagQuery);
+             ResultSet rs = stmt.executeQuery()) {
+            rs.next();
+            lastLagSeconds = rs.getDouble(1);
+            usable = lastLagSeconds <= maxLagSeconds;
+        } catch (SQLException e) {
+            log.warn("Unable to measure the replication lag for the read replica with '{}'", lagQuery, e);
+            lastLagSeconds = -1;
+            usable = false;
+        }
+        if (usable != wasUsable) {
+            log.info("Read replica {} with replication lag {} seconds (max {} seconds)",
+                     usable ? "is used" : "is not used", lastLagSeconds, maxLagSeconds);
+        }
+        nextCheck = System.currentTimeMillis() + checkIntervalMillis;
+    }
+
+    /**
+     * @return the last measured replication lag in seconds. -1 if not measured or the measurement failed.
+     */
+    public double getLastLagSeconds() {
+        return lastLagSeconds;
+    }
+
+    /**
+     * @return the result of the last check. Always true if there is no limit on the lag.
+     */
+    public boolean isLastUsable() {
+        return maxLagSeconds < 0 || usable;
+    }
+
+    @Override
+    public String toString() {
+        return "ReplicaLagGuard(maxLagSeconds=" + maxLagSeconds + ", checkIntervalMillis=" + checkIntervalMillis +
+               ", lastLagSeconds=" + lastLagSeconds + ", usable=" + isLastUsable() + ")";
+    }
+}
@@ -14,8 +14,10 @@
  */
 package dk.kb.storage.util;
 
+import dk.kb.storage.model.v1.DsRecordBulkResultDto;
 import dk.kb.storage.model.v1.DsRecordDto;
 import dk.kb.storage.model.v1.DsRecordMinimalDto;
+import dk.kb.storage.model.v1.DsRecordResultStatusDto;
 import dk.kb.storage.model.v1.OriginCountDto;
 import dk.kb.storage.model.v1.OriginDto;
 import dk.kb.storage.model.v1.RecordTypeDto;
@@ -32,11 +34,29 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-
+import java.util.Locale;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.core5.http.ClassicHttpResponse;
+import org.apache.hc.core5.http.Header;
 import org.apache.hc.core5.net.URIBuilder;
 
 /**
@@ -55,6 +75,11 @@ public class DsStorageClient {
 
     public static final String STORAGE_SERVER_URL_KEY = ".storage.url";
 
+    /**
+     * Default number of records sent in each request by {@link #createOrUpdateRecords(List)}.
+     */
+    public static final int BULK_CHUNK_SIZE_DEFAULT = 1000;
+
     /**
      * Creates a client for the remote ds-storage service.
      * <p>
@@ -169,6 +194,63 @@ public class DsStorageClient {
          }         
     }
 
+    /**
+     * Create or update multiple records. The records are sent in requests of {@link #BULK_CHUNK_SIZE_DEFAULT}
+     * records.
+     * @param records the records to create or update.
+     * @return the number of created, updated and failed records and the status for each record in the given order.
+     * @throws ServiceException if fails to make API call. Records in requests sent before the failing request
+     *                          have been created or updated.
+     * @see #createOrUpdateRecords(List, int)
+     */
+    public DsRecordBulkResultDto createOrUpdateRecords(List<DsRecordDto> records) throws ServiceException {
+        return createOrUpdateRecords(records, BULK_CHUNK_SIZE_DEFAULT);
+    }
+
+    /**
+     * Create or update multiple records. The records are sent in requests of chunkSize records and the results
+     * for the requests are merged.
+     * <p>
+     * A record that could not be created or updated does not fail the call, but is reported with status
+     * {@link DsRecordResultStatusDto#FAILED} in the result.
+     * @param records the records to create or update.
+     * @param chunkSize the maximum number of records sent in each request.
+     * @return the number of created, updated and failed records and the status for each record in the given order.
+     * @throws ServiceException if fails to make API call. Records in requests sent before the failing request
+     *                          have been created or updated.
+     */
+    public DsRecordBulkResultDto createOrUpdateRecords(List<DsRecordDto> records, int chunkSize) throws ServiceException {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be at least 1 but was " + chunkSize);
+        }
+        URI uri;
+        try {
+            uri = new URIBuilder(serviceURI)
+                    .appendPathSegments("records", "bulk")
+                    .build();
+        }
+        catch (URISyntaxException e) {
+            log.error("Invalid url:"+e.getMessage());
+            throw new InternalServiceException(CLIENT_URL_EXCEPTION);
+        }
+
+        DsRecordBulkResultDto total = new DsRecordBulkResultDto();
+        total.setCreated(0);
+        total.setUpdated(0);
+        total.setFailed(0);
+        total.setResults(new ArrayList<>(records.size()));
+        for (int start = 0; start < records.size(); start += chunkSize) {
+            List<DsRecordDto> chunk = new ArrayList<>(records.subList(start, Math.min(start + chunkSize, records.size())));
+            DsRecordBulkResultDto result =
+                    Service2ServiceRequest.httpCallWithOAuthToken(uri, "POST", new DsRecordBulkResultDto(), chunk);
+            total.setCreated(total.getCreated() + result.getCreated());
+            total.setUpdated(total.getUpdated() + result.getUpdated());
+            total.setFailed(total.getFailed() + result.getFailed());
+            total.getResults().addAll(result.getResults());
+        }
+        return total;
+    }
+
     /**
      * Mark a record with delete flag.
      * This will not delete the record in the database but only mark it as deleted. 
@@ -243,6 +325,9 @@ public class DsStorageClient {
      * The stream is unbounded by memory and gives access to the highest modification time (microseconds since
      * Epoch 1970) for any record that will be delivered by the stream.
      * <p>
+     * The records are requested as an uncompressed JSON array. Use {@link #getRecordsModifiedAfterPagingStream(String, Long, Long)} to get them
+     * as compressed NDJSON, which uses much less bandwidth.
+     * <p>
      * Important: Ensure that the returned stream is closed to avoid resource leaks.
      * @param origin     the origin for the records.
      * @param mTime      Exclusive start time for records to deliver:
@@ -253,7 +338,31 @@ public class DsStorageClient {
      */
     public ContinuationStream<DsRecordDto, Long> getRecordsModifiedAfterStream(String origin, Long mTime, Long maxRecords)
             throws IOException {
-        return getRecordsModifiedAfterJSON(origin, mTime, maxRecords)
+        return getRecordsModifiedAfterStream(origin, mTime, maxRecords, null);
+    }
+
+    /**
+     * Call the remote ds-storage {@link #getRecordsModifiedAfter} and return the response in the form of a Stream of
+     * records with only the given fields. Use this for clients that only need the metadata for the records, as the
+     * fields that are not requested are not read from the database on the server.
+     * See {@link #getRecordsModifiedAfterStream(String, Long, Long)} for details.
+     * <p>
+     * The records are requested as an uncompressed JSON array. Use {@link #getRecordsModifiedAfterPagingStream(String, Long, Long, String)} to get them
+     * as compressed NDJSON, which uses much less bandwidth.
+     * <p>
+     * Important: Ensure that the returned stream is closed to avoid resource leaks.
+     * @param origin     the origin for the records.
+     * @param mTime      Exclusive start time for records to deliver:
+     *                   Epoch time in microseconds (milliseconds times 1000).
+     * @param maxRecords the maximum number of records to deliver. -1 means no limit.
+     * @param fields     comma separated list of the fields to deliver, e.g. {@code id,mTime,parentId}.
+     *                   {@code id} and {@code mTime} are always delivered. If null, all fields are delivered.
+     * @return a stream of records from the remote ds-storage.
+     * @throws IOException if the connection to the remote ds-storage failed.
+     */
+    public ContinuationStream<DsRecordDto, Long> getRecordsModifiedAfterStream(
+            String origin, Long mTime, Long maxRecords, String fields) throws IOException {
+        return getRecordsModifiedAfterJSON(origin, mTime, maxRecords, fields)
                 .stream(DsRecordDto.class);
     }
 
@@ -264,6 +373,9 @@ public class DsStorageClient {
      * The stream is unbounded by memory and gives access to the highest modification time (microseconds since
      * Epoch 1970) for any record that will be delivered by the stream {@link ContinuationStream#getContinuationToken}.
      * <p>
+     * The records are requested as an uncompressed JSON array. Use {@link #getRecordsByRecordTypeModifiedAfterLocalTreePagingStream} to get them
+     * as compressed NDJSON, which uses much less bandwidth.
+     * <p>
      * Important: Ensure that the returned stream is closed to avoid resource leaks.
      * @param origin     the origin for the records.
      * @param recordType valid values {@code COLLECTION}, {@code DELIVERABLEUNIT}, {@code MANIFESTATION}.
@@ -293,14 +405,36 @@ public class DsStorageClient {
      */
     public ContinuationInputStream<Long> getRecordsModifiedAfterJSON(String origin, Long mTime, Long maxRecords)
             throws IOException {
+        return getRecordsModifiedAfterJSON(origin, mTime, maxRecords, null);
+    }
+
+    /**
+     * Call the remote ds-storage {@link #getRecordsModifiedAfter} and return the JSON response with only the given
+     * fields for the records unchanged as a wrapped bytestream.
+     * <p>
+     * Important: Ensure that the returned stream is closed to avoid resource leaks.
+     * @param origin     the origin for the records.
+     * @param mTime      exclusive start time for records to deliver:
+     *                   Epoch time in microseconds (milliseconds times 1000).
+     * @param maxRecords the maximum number of records to deliver. -1 means no limit.
+     * @param fields     comma separated list of the fields to deliver, e.g. {@code id,mTime,parentId}.
+     *                   {@code id} and {@code mTime} are always delivered. If null, all fields are delivered.
+     * @return a raw bytestream with the response from the remote ds-storage.
+     * @throws IOException if the connection to the remote ds-storage failed.
+     */
+    public ContinuationInputStream<Long> getRecordsModifiedAfterJSON(
+            String origin, Long mTime, Long maxRecords, String fields) throws IOException {
         URI uri;
         try {
-            uri = new URIBuilder(serviceURI)
+            URIBuilder builder = new URIBuilder(serviceURI)
                     .appendPathSegments("records")                                
                     .addParameter("origin", origin)
                     .addParameter("mTime", Long.toString(mTime == null ? 0L : mTime))
-                    .addParameter("maxRecords", Long.toString(maxRecords == null ? 10 : maxRecords))
-                    .build();
+                    .addParameter("maxRecords", Long.toString(maxRecords == null ? 10 : maxRecords));
+            if (fields != null) {
+                builder.addParameter("fields", fields);
+            }
+            uri = builder.build();
         }
         catch (URISyntaxException e) {
                 log.error("Invalid url:"+e.getMessage());
@@ -354,6 +488,9 @@ public class DsStorageClient {
      * The stream is unbounded by memory and gives access to the highest modification time (microseconds since
      * Epoch 1970) for any record that will be delivered by the stream.
      * <p>
+     * The records are requested as an uncompressed JSON array. Use {@link #getMinimalRecordsModifiedAfterPagingStream}
+     * to get them in the compact binary format, which uses much less bandwidth.
+     * <p>
      * Important: Ensure that the returned stream is closed to avoid resource leaks.
      * @param origin     the origin for the records.
      * @param mTimeFrom      Exclusive start time for records to deliver:
@@ -398,6 +535,130 @@ public class DsStorageClient {
     }
 
 
+    /**
+     * Call the remote ds-storage {@link #getRecordsModifiedAfter} and return the response in the form of a
+     * {@link PagingStream} of records.
+     * <p>
+     * The request announces that HTTP trailers are accepted, which allows the server to start streaming
+     * immediately and deliver the paging information after the records. If the server delivers the paging information
+     * as headers instead, the stream works the same way.
+     * <p>
+     * Important: Ensure that the returned stream is closed to avoid resource leaks.
+     * @param origin     the origin for the records.
+     * @param mTime      Exclusive start time for records to deliver:
+     *                   Epoch time in microseconds (milliseconds times 1000).
+     * @param maxRecords the maximum number of records to deliver. -1 means no limit.
+     * @return a stream of records from the remote ds-storage.
+     * @throws IOException if the connection to the remote ds-storage failed.
+     */
+    public PagingStream<DsRecordDto> getRecordsModifiedAfterPagingStream(String origin, Long mTime, Long maxRecords)
+            throws IOException {
+        return getRecordsModifiedAfterPagingStream(origin, mTime, maxRecords, null);
+    }
+
+    /**
+     * Call the remote ds-storage {@link #getRecordsModifiedAfter} and return the response with only the given fields
+     * for the records in the form of a {@link PagingStream}.
+     * See {@link #getRecordsModifiedAfterPagingStream(String, Long, Long)} for details.
+     * <p>
+     * Important: Ensure that the returned stream is closed to avoid resource leaks.
+     * @param origin     the origin for the records.
+     * @param mTime      Exclusive start time for records to deliver:
+     *                   Epoch time in microseconds (milliseconds times 1000).
+     * @param maxRecords the maximum number of records to deliver. -1 means no limit.
+     * @param fields     comma separated list of the fields to deliver, e.g. {@code id,mTime,parentId}.
+     *                   {@code id} and {@code mTime} are always delivered. If null, all fields are delivered.
+     * @return a stream of records from the remote ds-storage.
+     * @throws IOException if the connection to the remote ds-storage failed.
+     */
+    public PagingStream<DsRecordDto> getRecordsModifiedAfterPagingStream(
+            String origin, Long mTime, Long maxRecords, String fields) throws IOException {
+        URI uri;
+        try {
+            URIBuilder builder = new URIBuilder(serviceURI)
+                    .appendPathSegments("records")
+                    .addParameter("origin", origin)
+                    .addParameter("mTime", Long.toString(mTime == null ? 0L : mTime))
+                    .addParameter("maxRecords", Long.toString(maxRecords == null ? 10 : maxRecords));
+            if (fields != null) {
+                builder.addParameter("fields", fields);
+            }
+            uri = builder.build();
+        }
+        catch (URISyntaxException e) {
+                log.error("Invalid url:"+e.getMessage());
+                throw new InternalServiceException(CLIENT_URL_EXCEPTION);
+        }
+        return PagingStream.open(uri, DsRecordDto.class);
+    }
+
+    /**
+     * Call the remote ds-storage {@link #getRecordsByRecordTypeModifiedAfterLocalTreeJSON} and return the response
+     * in the form of a {@link PagingStream} of records.
+     * See {@link #getRecordsModifiedAfterPagingStream(String, Long, Long)} for details.
+     * <p>
+     * Important: Ensure that the returned stream is closed to avoid resource leaks.
+     * @param origin     the origin for the records.
+     * @param recordType valid values {@code COLLECTION}, {@code DELIVERABLEUNIT}, {@code MANIFESTATION}.
+     * @param mTime      Exclusive start time for records to deliver:
+     *                   Epoch time in microseconds (milliseconds times 1000).
+     * @param maxRecords the maximum number of records to deliver. -1 means no limit.
+     * @return a stream of records from the remote ds-storage.
+     * @throws IOException if the connection to the remote ds-storage failed.
+     */
+    public PagingStream<DsRecordDto> getRecordsByRecordTypeModifiedAfterLocalTreePagingStream(
+            String origin, RecordTypeDto recordType, Long mTime, Long maxRecords) throws IOException {
+        URI uri;
+        try {
+            uri = new URIBuilder(serviceURI)
+                    .appendPathSegments("records")
+                    .addParameter("origin", origin)
+                    .addParameter("recordType", recordType.toString())
+                    .addParameter("mTime", Long.toString(mTime == null ? 0L : mTime))
+                    .addParameter("maxRecords", Long.toString(maxRecords == null ? 10 : maxRecords))
+                    .build();
+        }
+        catch (URISyntaxException e) {
+                log.error("Invalid url:"+e.getMessage());
+                throw new InternalServiceException(CLIENT_URL_EXCEPTION);
+        }
+        return PagingStream.open(uri, DsRecordDto.class);
+    }
+
+    /**
+     * Call the remote ds-storage {@link #getMinimalRecords} and return the response in the form of a
+     * {@link PagingStream} of minimal records.
+     * See {@link #getRecordsModifiedAfterPagingStream(String, Long, Long)} for details.
+     * <p>
+     * The records are requested in the compact binary format {@link MinimalRecordsBinary} and decoded while they are
+     * read. JSON is used if the server does not support the binary format.
+     * <p>
+     * Important: Ensure that the returned stream is closed to avoid resource leaks.
+     * @param origin     the origin for the records.
+     * @param mTime      exclusive start time for records to deliver:
+     *                   Epoch time in microseconds (milliseconds times 1000).
+     * @param maxRecords the maximum number of records to deliver. -1 means no limit.
+     * @return a stream of minimal records from the remote ds-storage.
+     * @throws IOException if the connection to the remote ds-storage failed.
+     */
+    public PagingStream<DsRecordMinimalDto> getMinimalRecordsModifiedAfterPagingStream(
+            String origin, Long mTime, Long maxRecords) throws IOException {
+        URI uri;
+        try {
+            uri = new URIBuilder(serviceURI)
+                    .appendPathSegments("records","minimal")
+                    .addParameter("origin", origin)
+                    .addParameter("mTime", Long.toString(mTime == null ? 0L : mTime))
+                    .addParameter("maxRecords", Long.toString(maxRecords == null ? 10 : maxRecords))
+                    .build();
+        } catch (URISyntaxException e) {
+            log.error("Invalid url:"+e.getMessage());
+            throw new InternalServiceException(CLIENT_URL_EXCEPTION);
+        }
+        return PagingStream.open(uri, DsRecordMinimalDto.class, MinimalRecordsBinary.MIME_TYPE +
+                                 ", application/x-ndjson;q=0.9, application/json;q=0.8");
+    }
+
     /**
      * Update the referenceId for a record <br>
      * The referenceId is an id in the external system for the record. <br>
@@ -466,5 +727,204 @@ public class DsStorageClient {
             throw new InternalServiceException(CLIENT_URL_EXCEPTION);               
         }                      
     }
+
+    /**
+     * A stream of records from an export endpoint together with the paging information for the export.
+     * <p>
+     * The paging information (continuation token, has more and record count) is delivered by the server either as
+     * HTTP headers before the records or as HTTP trailers after the records. When delivered as trailers, the paging
+     * information is only available when all records from {@link #stream()} has been consumed.
+     * <p>
+     * The records are requested as NDJSON compressed with zstd or gzip, which the server delivers if supported and
+     * enabled. Plain JSON arrays and uncompressed responses are handled the same way.
+     * <p>
+     * Important: Ensure that the stream is closed to avoid resource leaks.
+     * @param <T> the type of the records.
+     */
+    public static class PagingStream<T> implements AutoCloseable {
+        private static final ObjectMapper mapper = new ObjectMapper()
+                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+        private final CloseableHttpClient httpClient;
+        private final ClassicHttpResponse response;
+        private final InputStream content;
+        private final Stream<T> stream;
+        private final boolean trailerBased;
+        private volatile boolean exhausted = false;
+        private Map<String, String> trailers = null;
+
+        @SuppressWarnings("unchecked")
+        private PagingStream(CloseableHttpClient httpClient, ClassicHttpResponse response, Class<T> type)
+                throws IOException {
+            this.httpClient = httpClient;
+            this.response = response;
+            this.trailerBased = response.getFirstHeader("Trailer") != null;
+            this.content = response.getEntity().getContent();
+            // The trailers are read from the raw content, so only the records are decoded
+            Header encoding = response.getFirstHeader("Content-Encoding");
+            ExportCompression compression = ExportCompression.fromContentEncoding(
+                    encoding == null ? null : encoding.getValue());
+            InputStream decoded = compression == null ? content : compression.decompress(content);
+            Header contentType = response.getFirstHeader("Content-Type");
+            Iterator<T> records;
+            if (contentType != null && contentType.getValue().startsWith(MinimalRecordsBinary.MIME_TYPE)) {
+                if (type != DsRecordMinimalDto.class) {
+                    throw new IOException("Got " + MinimalRecordsBinary.MIME_TYPE + " for records of type " + type);
+                }
+                records = (Iterator<T>) new MinimalRecordsBinary.Reader(decoded);
+            } else {
+                // Handles both a JSON array and NDJSON with one record per line
+                records = mapper.readerFor(type).readValues(decoded);
+            }
+            Iterator<T> iterator = new Iterator<T>() {
+                @Override
+                public boolean hasNext() {
+                    boolean hasNext = records.hasNext();
+                    if (!hasNext) {
+                        exhausted = true;
+                    }
+                    return hasNext;
+                }
+
+                @Override
+                public T next() {
+                    return records.next();
+                }
+            };
+            this.stream = StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED), false)
+                    .onClose(this::close);
+        }
+
+        /**
+         * Open a connection to the given export URI, announcing that trailers are accepted. NDJSON and compressed
+         * responses (zstd or gzip) are requested and decoded transparently.
+         * @param uri  the full URI for the export.
+         * @param type the type of the records in the export.
+         * @return a stream of the records.
+         * @throws IOException if the connection failed or the server responded with an error.
+         */
+        static <T> PagingStream<T> open(URI uri, Class<T> type) throws IOException {
+            return open(uri, type, "application/x-ndjson, application/json;q=0.9");
+        }
+
+        /**
+         * Open a connection to the given export URI, asking for the given formats in the Accept header.
+         * @param uri    the full URI for the export.
+         * @param type   the type of the records in the export.
+         * @param accept the value for the Accept header. The response is decoded according to its Content-Type.
+         * @return a stream of the records.
+         * @throws IOException if the connection failed or the server responded with an error.
+         */
+        static <T> PagingStream<T> open(URI uri, Class<T> type, String accept) throws IOException {
+            log.debug("Opening streaming connection with trailers to '{}'", uri);
+            // Content compression is handled here as the decompressing entity does not pass on trailers
+            CloseableHttpClient httpClient = HttpClients.custom().disableContentCompression().build();
+            HttpGet get = new HttpGet(uri);
+            get.setHeader("Accept", accept);
+            get.setHeader("Accept-Encoding", ExportCompression.getAcceptEncoding());
+            get.setHeader("TE", "trailers");
+            ClassicHttpResponse response = null;
+            try {
+                response = httpClient.executeOpen(null, get, null);
+                if (response.getCode() >= 400) {
+                    throw new IOException("Got HTTP " + response.getCode() + " " + response.getReasonPhrase() +
+                                          " for '" + uri + "'");
+                }
+                return new PagingStream<>(httpClient, response, type);
+            } catch (IOException | RuntimeException e) {
+                if (response != null) {
+                    response.close();
+                }
+                httpClient.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return the records. The stream can only be consumed once.
+         */
+        public Stream<T> stream() {
+            return stream;
+        }
+
+        /**
+         * @return true if the paging information is delivered as trailers after the records.
+         */
+        public boolean isTrailerBased() {
+            return trailerBased;
+        }
+
+        /**
+         * @return the mTime of the last record in the export, to be used as mTime for the next request.
+         *         Null if no records were delivered.
+         * @throws IllegalStateException if the paging information is delivered as trailers and the records
+         *                               has not been fully consumed.
+         */
+        public Long getContinuationToken() {
+            String token = getPagingValue("Paging-Continuation-Token");
+            return token == null ? null : Long.valueOf(token);
+        }
+
+        /**
+         * @return true if there are more records available after the continuation token.
+         * @throws IllegalStateException if the paging information is delivered as trailers and the records
+         *                               has not been fully consumed.
+         */
+        public Boolean hasMore() {
+            String hasMore = getPagingValue("Paging-Has-More");
+            return hasMore == null ? null : Boolean.valueOf(hasMore);
+        }
+
+        /**
+         * @return the number of records in the export.
+         * @throws IllegalStateException if the paging information is delivered as trailers and the records
+         *                               has not been fully consumed.
+         */
+        public Long getRecordCount() {
+            String count = getPagingValue("Paging-Record-Count");
+            return count == null ? null : Long.valueOf(count);
+        }
+
+        private synchronized String getPagingValue(String name) {
+            if (!trailerBased) {
+                Header header = response.getFirstHeader(name);
+                return header == null ? null : header.getValue();
+            }
+            if (trailers == null) {
+                if (!exhausted) {
+                    throw new IllegalStateException(
+                            "The paging information is delivered after the records and the records has not been fully read");
+                }
+                trailers = readTrailers();
+            }
+            return trailers.get(name.toLowerCase(Locale.ROOT));
+        }
+
+        private Map<String, String> readTrailers() {
+            Map<String, String> fields = new HashMap<>();
+            try {
+                // The trailers are parsed when the end of the chunked content has been reached
+                content.transferTo(OutputStream.nullOutputStream());
+                Supplier<List<? extends Header>> supplier = response.getEntity().getTrailers();
+                List<? extends Header> headers = supplier == null ? null : supplier.get();
+                if (headers != null) {
+                    headers.forEach(header -> fields.put(header.getName().toLowerCase(Locale.ROOT), header.getValue()));
+                }
+            } catch (IOException e) {
+                log.warn("Unable to read trailers from export response", e);
+            }
+            return fields;
+        }
+
+        @Override
+        public void close() {
+            try {
+                response.close();
+                httpClient.close();
+            } catch (IOException e) {
+                log.debug("Exception closing export response", e);
+            }
+        }
+    }
   
 }
@@ -0,0 +1,197 @@
+package dk.kb.storage.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+
+/**
+ * HTTP content encodings for compressing exports. Used by the service for negotiating and compressing the response
+ * and by {@link DsStorageClient} for requesting and decoding it.
+ * <p>
+ * zstd uses a native library. If it cannot be loaded on the platform, zstd is not available and is neither offered
+ * nor accepted.
+ */
+public enum ExportCompression {
+    GZIP("gzip"),
+    ZSTD("zstd");
+
+    private static final Logger log = LoggerFactory.getLogger(ExportCompression.class);
+
+    private static final int BUFFER_SIZE = 8192;
+    // Fast with a good ratio for XML. Higher levels cost more CPU than they save on the network
+    private static final int ZSTD_LEVEL = 3;
+
+    private final String encoding;
+    private Boolean available = null;
+
+    ExportCompression(String encoding) {
+        this.encoding = encoding;
+    }
+
+    /**
+     * @return the value for the {@code Content-Encoding} header.
+     */
+    public String getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * @return true if the compression can be used on this platform.
+     */
+    public synchronized boolean isAvailable() {
+        if (available == null) {
+            if (this == ZSTD) {
+                try {
+                    new ZstdOutputStream(OutputStream.nullOutputStream()).close();
+                    available = true;
+                } catch (Throwable e) { // UnsatisfiedLinkError if the native library cannot be loaded
+                    log.warn("zstd compression is not available on this platform: {}", e.toString());
+                    available = false;
+                }
+            } else {
+                available = true;
+            }
+        }
+        return available;
+    }
+
+    /**
+     * Wrap the output so everything written to the returned stream is compressed. Closing the returned stream
+     * finishes the compressed data and closes the output.
+     * @param output the destination for the compressed data.
+     * @return a stream compressing to the output.
+     */
+    public OutputStream compress(OutputStream output) throws IOException {
+        switch (this) {
+            case GZIP: return new GZIPOutputStream(output, BUFFER_SIZE);
+            case ZSTD: return new ZstdOutputStream(output, ZSTD_LEVEL);
+            default: throw new UnsupportedOperationException("Unknown compression " + this);
+        }
+    }
+
+    /**
+     * Wrap the input so the returned stream delivers the decompressed data.
+     * @param input compressed data.
+     * @return a stream delivering the decompressed data.
+     */
+    public InputStream decompress(InputStream input) throws IOException {
+        switch (this) {
+            case GZIP: return new GZIPInputStream(input, BUFFER_SIZE);
+            case ZSTD: return new ZstdInputStream(input);
+            default: throw new UnsupportedOperationException("Unknown compression " + this);
+        }
+    }
+
+    /**
+     * @param contentEncoding the value of a {@code Content-Encoding} header. Can be null.
+     * @return the compression for the encoding or null if the content is not compressed.
+     * @throws IOException if the encoding is not supported.
+     */
+    public static ExportCompression fromContentEncoding(String contentEncoding) throws IOException {
+        if (contentEncoding == null || contentEncoding.isBlank() ||
+            "identity".equalsIgnoreCase(contentEncoding.trim())) {
+            return null;
+        }
+        for (ExportCompression compression : values()) {
+            if (compression.encoding.equalsIgnoreCase(contentEncoding.trim())) {
+                return compression;
+            }
+        }
+        throw new IOException("Unsupported Content-Encoding '" + contentEncoding + "'");
+    }
+
+    /**
+     * Parse a comma separated list of encodings, e.g. {@code zstd,gzip}. Unknown and unavailable encodings are
+     * skipped with a warning.
+     * @param encodings comma separated encodings. Can be null or empty.
+     * @return the available compressions in the given order.
+     */
+    public static List<ExportCompression> parseList(String encodings) {
+        List<ExportCompression> compressions = new ArrayList<>();
+        if (encodings == null) {
+            return compressions;
+        }
+        for (String encoding : encodings.split(",")) {
+            if (encoding.isBlank()) {
+                continue;
+            }
+            ExportCompression compression = null;
+            for (ExportCompression candidate : values()) {
+                if (candidate.encoding.equalsIgnoreCase(encoding.trim())) {
+                    compression = candidate;
+                }
+            }
+            if (compression == null) {
+                log.warn("Unknown export content encoding '{}' ignored", encoding.trim());
+            } else if (compression.isAvailable()) {
+                compressions.add(compression);
+            }
+        }
+        return compressions;
+    }
+
+    /**
+     * Select the compression for a response from the {@code Accept-Encoding} header of the request. The first of the
+     * supported compressions that the client accepts with a quality above 0 is used, so the order of the supported
+     * compressions decides and not the quality values from the client.
+     * @param acceptEncoding the {@code Accept-Encoding} header from the request. Can be null.
+     * @param supported the compressions offered by the server in order of preference.
+     * @return the compression to use or null if the response should not be compressed.
+     */
+    public static ExportCompression negotiate(String acceptEncoding, List<ExportCompression> supported) {
+        if (acceptEncoding == null || acceptEncoding.isBlank() || supported.isEmpty()) {
+            return null;
+        }
+        Map<String, Double> qualities = new HashMap<>();
+        for (String part : acceptEncoding.split(",")) {
+            String[] tokens = part.split(";");
+            String coding = tokens[0].trim().toLowerCase(Locale.ROOT);
+            if (coding.isEmpty()) {
+                continue;
+            }
+            double quality = 1.0;
+            for (int i = 1 ; i < tokens.length ; i++) {
+                String parameter = tokens[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0.0;
+                    }
+                }
+            }
+            qualities.put(coding, quality);
+        }
+        double wildcard = qualities.getOrDefault("*", 0.0);
+        for (ExportCompression compression : supported) {
+            if (qualities.getOrDefault(compression.encoding, wildcard) > 0.0 && compression.isAvailable()) {
+                return compression;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the value for an {@code Accept-Encoding} header listing the available compressions, best first.
+     */
+    public static String getAcceptEncoding() {
+        return List.of(ZSTD, GZIP).stream()
+                .filter(ExportCompression::isAvailable)
+                .map(ExportCompression::getEncoding)
+                .collect(Collectors.joining(", "));
+    }
+}
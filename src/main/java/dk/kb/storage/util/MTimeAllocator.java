@@ -0,0 +1,67 @@
+package dk.kb.storage.util;
+
+/**
+ * Allocates unique mTimes for records and transcriptions. The format is the same as
+ * {@link UniqueTimestampGenerator}: System.currentTimeMillis() with 3 added digits.
+ * <p>
+ * All mTimes returned by an allocator must be strictly increasing and must never be returned twice, also
+ * when several ds-storage instances share the same database.
+ */
+public interface MTimeAllocator extends AutoCloseable {
+
+    /**
+     * @return a new unique mTime.
+     */
+    long next();
+
+    /**
+     * Reserve a block of consecutive mTimes. The mTimes {@code first} to {@code first+count-1}
+     * (both inclusive) are reserved for the caller.
+     *
+     * @param count the number of mTimes to reserve. Must be at least 1.
+     * @return the first of the reserved mTimes.
+     */
+    long reserve(int count);
+
+    /**
+     * The highest mTime that is safe to deliver when harvesting by mTime. mTimes at or below the horizon will not be
+     * handed out by any instance anymore, so a harvester that has paged past the horizon will not miss records that
+     * are written later. Records with higher mTimes are held back by the harvest and paging queries until the horizon
+     * has passed them.
+     * <p>
+     * The default implementation returns {@link Long#MAX_VALUE}, meaning that all records can be delivered.
+     *
+     * @return the highest mTime that can be delivered by harvesting.
+     */
+    default long getHarvestHorizon() {
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Release resources held by the allocator. The default implementation does nothing.
+     */
+    @Override
+    default void close() {
+    }
+
+    /**
+     * Allocator using {@link UniqueTimestampGenerator}. The mTimes are only unique within the JVM, so this can only
+     * be used when a single ds-storage instance writes to the database.
+     */
+    MTimeAllocator JVM = new MTimeAllocator() {
+        @Override
+        public long next() {
+            return UniqueTimestampGenerator.next();
+        }
+
+        @Override
+        public long reserve(int count) {
+            return UniqueTimestampGenerator.reserve(count);
+        }
+
+        @Override
+        public String toString() {
+            return "JVM MTimeAllocator";
+        }
+    };
+}
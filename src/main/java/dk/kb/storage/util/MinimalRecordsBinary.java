@@ -0,0 +1,285 @@
+package dk.kb.storage.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import dk.kb.storage.model.v1.DsRecordMinimalDto;
+
+/**
+ * Compact binary format for minimal records (id, mTime, referenceId, kalturaId), used by {@code /records/minimal}
+ * when the client asks for {@link #MIME_TYPE}. It is a fraction of the size of the JSON representation, as there are
+ * no field names and the values are encoded as follows:
+ * <pre>
+ * stream  = magic "DSMR", version byte (1), record*, end byte (0)
+ * record  = record byte (1), mTime delta, id, referenceId, kalturaId
+ * mTime delta = unsigned varint: mTime minus the mTime of the previous record. The first record has the full mTime
+ * id      = unsigned varint: number of leading bytes shared with the previous id,
+ *           unsigned varint: number of remaining bytes, the remaining UTF-8 bytes
+ * referenceId, kalturaId = unsigned varint: 0 for null, else length+1, followed by the UTF-8 bytes
+ * </pre>
+ * Unsigned varints use 7 bits per byte, least significant group first, with the high bit set on all but the last
+ * byte. Records are delivered in mTime order and ids within an origin share the origin prefix, so most records use
+ * a single byte for the mTime delta and only the unique part of the id is stored.
+ * <p>
+ * The missing end byte tells a reader that the stream was truncated, e.g. because the export failed on the server.
+ */
+public class MinimalRecordsBinary {
+
+    /**
+     * The media type for the binary format.
+     */
+    public static final String MIME_TYPE = "application/x-ds-minimal-records";
+
+    private static final byte[] MAGIC = {'D', 'S', 'M', 'R'};
+    private static final int VERSION = 1;
+    private static final int RECORD = 1;
+    private static final int END = 0;
+
+    /**
+     * Writes minimal records in the binary format. The values are passed directly, so the records can be written
+     * from a {@code ResultSet} without creating {@link DsRecordMinimalDto}s.
+     * <p>
+     * {@link #finish()} writes the end marker and must only be called when all records have been written.
+     */
+    public static class Writer implements Closeable {
+        private final OutputStream out;
+        private byte[] lastId = new byte[0];
+        private long lastMTime = 0L;
+        private long count = 0L;
+
+        /**
+         * Create a writer and write the header.
+         * @param output destination for the binary stream. It is closed when the writer is closed.
+         */
+        public Writer(OutputStream output) throws IOException {
+            out = new BufferedOutputStream(output);
+            out.write(MAGIC);
+            out.write(VERSION);
+        }
+
+        /**
+         * Write a minimal record. Records must be written in increasing mTime order.
+         * @param id          the record id.
+         * @param mTime       the mTime for the record. Must not be less than the mTime of the previous record.
+         * @param referenceId the referenceId. Can be null.
+         * @param kalturaId   the kalturaId. Can be null.
+         */
+        public void write(String id, long mTime, String referenceId, String kalturaId) throws IOException {
+            if (count > 0 && mTime < lastMTime) {
+                throw new IllegalArgumentException(
+                        "Records must be in mTime order, but got " + mTime + " after " + lastMTime + " for '" + id + "'");
+            }
+            out.write(RECORD);
+            writeVarLong(count == 0 ? mTime : mTime - lastMTime);
+
+            byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+            int shared = 0;
+            int maxShared = Math.min(idBytes.length, lastId.length);
+            while (shared < maxShared && idBytes[shared] == lastId[shared]) {
+                shared++;
+            }
+            writeVarLong(shared);
+            writeVarLong(idBytes.length - shared);
+            out.write(idBytes, shared, idBytes.length - shared);
+
+            writeNullableString(referenceId);
+            writeNullableString(kalturaId);
+
+            lastId = idBytes;
+            lastMTime = mTime;
+            count++;
+        }
+
+        /**
+         * Flush buffered records to the output.
+         */
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        /**
+         * @return the mTime of the last written record or 0 if no records have been written.
+         */
+        public long getLastMTime() {
+            return lastMTime;
+        }
+
+        /**
+         * @return the number of written records.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Write the end marker and flush. Must be called when all records have been written, but not if writing
+         * failed, so the reader can detect that the stream is incomplete.
+         */
+        public void finish() throws IOException {
+            out.write(END);
+            out.flush();
+        }
+
+        /**
+         * Close the output. Does not write the end marker, see {@link #finish()}.
+         */
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+        private void writeNullableString(String value) throws IOException {
+            if (value == null) {
+                writeVarLong(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length + 1L);
+            out.write(bytes);
+        }
+
+        private void writeVarLong(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+    }
+
+    /**
+     * Streaming reader for the binary format. Records are decoded one at a time, so memory usage does not depend on
+     * the number of records.
+     * <p>
+     * {@link #hasNext()} and {@link #next()} throw {@link UncheckedIOException} if the stream cannot be read or is
+     * truncated.
+     */
+    public static class Reader implements Iterator<DsRecordMinimalDto>, Closeable {
+        private final InputStream in;
+        private byte[] lastId = new byte[0];
+        private long lastMTime = 0L;
+        private long count = 0L;
+        private DsRecordMinimalDto next = null;
+        private boolean finished = false;
+
+        /**
+         * Create a reader and validate the header.
+         * @param input a binary stream in the format written by {@link Writer}. It is closed when the reader is
+         *              closed.
+         * @throws IOException if the header is not valid.
+         */
+        public Reader(InputStream input) throws IOException {
+            in = new BufferedInputStream(input);
+            byte[] magic = in.readNBytes(MAGIC.length);
+            if (!Arrays.equals(MAGIC, magic)) {
+                throw new IOException("Not a minimal records binary stream");
+            }
+            int version = in.read();
+            if (version != VERSION) {
+                throw new IOException("Unsupported minimal records binary version " + version);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !finished) {
+                try {
+                    next = readRecord();
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Unable to read minimal record #" + count, e);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public DsRecordMinimalDto next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            DsRecordMinimalDto record = next;
+            next = null;
+            return record;
+        }
+
+        private DsRecordMinimalDto readRecord() throws IOException {
+            int marker = in.read();
+            if (marker == END) {
+                finished = true;
+                return null;
+            }
+            if (marker != RECORD) {
+                throw marker == -1 ? new EOFException("The stream ended without end marker after " + count +
+                                                      " records") :
+                                     new IOException("Unknown record marker " + marker);
+            }
+            long mTime = count == 0 ? readVarLong() : lastMTime + readVarLong();
+
+            int shared = (int) readVarLong();
+            int remaining = (int) readVarLong();
+            if (shared > lastId.length) {
+                throw new IOException("Shared id prefix " + shared + " is longer than the previous id");
+            }
+            byte[] idBytes = new byte[shared + remaining];
+            System.arraycopy(lastId, 0, idBytes, 0, shared);
+            readFully(idBytes, shared, remaining);
+
+            DsRecordMinimalDto record = new DsRecordMinimalDto();
+            record.setId(new String(idBytes, StandardCharsets.UTF_8));
+            record.setmTime(mTime);
+            record.setReferenceId(readNullableString());
+            record.setKalturaId(readNullableString());
+
+            lastId = idBytes;
+            lastMTime = mTime;
+            count++;
+            return record;
+        }
+
+        private String readNullableString() throws IOException {
+            long length = readVarLong();
+            if (length == 0) {
+                return null;
+            }
+            byte[] bytes = new byte[(int) (length - 1)];
+            readFully(bytes, 0, bytes.length);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private void readFully(byte[] buffer, int offset, int length) throws IOException {
+            if (in.readNBytes(buffer, offset, length) != length) {
+                throw new EOFException("The stream ended in the middle of record #" + count);
+            }
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0 ; shift < 64 ; shift += 7) {
+                int b = in.read();
+                if (b == -1) {
+                    throw new EOFException("The stream ended in the middle of record #" + count);
+                }
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint in record #" + count);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
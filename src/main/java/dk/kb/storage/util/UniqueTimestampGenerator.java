@@ -1,7 +1,6 @@
 package dk.kb.storage.util;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Generate a new unique timestamp. The format is System.currentTimeMillis() with 3 added digits.
@@ -11,47 +10,80 @@ import org.slf4j.LoggerFactory;
  * To convert a timestamp to a date in millis just remove the last 0 digits.
  * <p>
  *
- * If the maximum of 999 is reached for the additional nanos, it will trigger a 1 millis sleep. But this will likely never happen.
- * Stress test of just this method could not generate more than 200 unique timestamps within the same millis.
- *
+ * The timestamps are strictly increasing. If more than 1000 timestamps are required within the same millis,
+ * the timestamps continue into the following millis instead of waiting for the clock. The timestamps will
+ * then be slightly ahead of the clock until the clock catches up. To keep the timestamps close to the clock,
+ * callers wait for the clock when the timestamps are more than {@link #MAX_DRIFT_MILLIS} ahead of it.
+ * <p>
+ * A contiguous block of timestamps can be reserved with {@link #reserve(int)} for batch operations.
+ * <p>
+ * The generator is lock free. Concurrent callers compete with compare-and-set on the last used timestamp
+ * instead of being serialised by a lock.
  */
 public class UniqueTimestampGenerator {
 
-	private static long lastUsedTimestamp=System.currentTimeMillis();
-	private static int lastUsedAdditionalNanos = 0;
+	/**
+	 * The maximum number of milliseconds that new timestamps can be ahead of the clock. If the last used timestamp
+	 * is further ahead, e.g. after a sustained high rate of timestamps or a large {@link #reserve(int)}, callers
+	 * wait for the clock to catch up.
+	 */
+	public static final long MAX_DRIFT_MILLIS = 100;
+
+	private static final AtomicLong lastUsed = new AtomicLong(0L);
 
-	private static final Logger log = LoggerFactory.getLogger(UniqueTimestampGenerator.class);
-		
     //Force use of the static method.
 	private UniqueTimestampGenerator() {      
 	}
 
-	synchronized static public long next() {
-		long sysTime = System.currentTimeMillis();
+	static public long next() {
+		return reserve(1);
+	}
 
-		if (lastUsedAdditionalNanos == 999) { //Will never happen in theory by hardware limitation. 
-			try { 
-				Thread.sleep(1L);
+	/**
+	 * Reserve a block of consecutive timestamps. The timestamps {@code first} to {@code first+count-1}
+	 * (both inclusive) are reserved for the caller and will not be returned by {@link #next()} or other reservations.
+	 *
+	 * <p>
+	 * If the first timestamp would be more than {@link #MAX_DRIFT_MILLIS} ahead of the clock, the call waits for the
+	 * clock. The block itself can extend further ahead, which makes later calls wait.
+	 *
+	 * @param count the number of timestamps to reserve. Must be at least 1.
+	 * @return the first of the reserved timestamps.
+	 */
+	static public long reserve(int count) {
+		if (count < 1) {
+			throw new IllegalArgumentException("At least 1 timestamp must be reserved but count was " + count);
+		}
+		while (true) {
+			long last = lastUsed.get();
+			long now = System.currentTimeMillis()*1000;
+			long beyondDrift = last+1 - now - MAX_DRIFT_MILLIS*1000;
+			if (beyondDrift > 0 && waitForClock(beyondDrift/1000+1)) {
+				continue;
 			}
-			catch(Exception e) {				
-				log.error("Error in generating timestamp: '{}'", e.getMessage());
+			long first = Math.max(now, last+1);
+			if (lastUsed.compareAndSet(last, first+count-1)) {
+				return first;
 			}
-			lastUsedAdditionalNanos=0;//Reset to next milis
-			sysTime = System.currentTimeMillis();
 		}
+	}
 
-		if (sysTime == lastUsedTimestamp) {
-			lastUsedAdditionalNanos++;        	        	
+	/**
+	 * Wait for the clock to advance the given number of milliseconds.
+	 * @return true if the wait was done, false if the thread was interrupted. In that case the interrupted flag is
+	 *         kept and the timestamp is allowed to be further ahead of the clock than {@link #MAX_DRIFT_MILLIS}.
+	 */
+	private static boolean waitForClock(long millis) {
+		if (Thread.currentThread().isInterrupted()) {
+			return false;
 		}
-		else {
-			lastUsedAdditionalNanos=0; //Reset nanos
+		try {
+			Thread.sleep(millis);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
 		}
-
-		long next = sysTime*1000+lastUsedAdditionalNanos;
-		lastUsedTimestamp=sysTime;			
-		return next;
 	}
 
 }
-
-
@@ -0,0 +1,87 @@
+package dk.kb.storage.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates virtual threads (JDK 21+) for blocking work such as JDBC calls, falling back to platform threads when the
+ * JVM does not support virtual threads.
+ * <p>
+ * The service is compiled for an older Java release than 21, so the virtual thread API is accessed by reflection.
+ */
+public class VirtualThreads {
+
+    private static final Logger log = LoggerFactory.getLogger(VirtualThreads.class);
+
+    // Thread.ofVirtual() and the Thread.Builder methods. Null if virtual threads are not supported
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_FACTORY;
+
+    static {
+        Method ofVirtual = null;
+        Method builderName = null;
+        Method builderFactory = null;
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            builderName = builderClass.getMethod("name", String.class, long.class);
+            builderFactory = builderClass.getMethod("factory");
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            log.debug("Virtual threads are not supported by Java {}", System.getProperty("java.version"));
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_FACTORY = builderFactory;
+    }
+
+    /**
+     * @return true if the JVM supports virtual threads.
+     */
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Create a factory for threads named {@code prefix0}, {@code prefix1} and so on.
+     * @param prefix the prefix for the names of the threads.
+     * @param virtual if true and the JVM supports it, the factory creates virtual threads. Else it creates daemon
+     *                platform threads.
+     * @return a factory for threads.
+     */
+    public static ThreadFactory newThreadFactory(String prefix, boolean virtual) {
+        if (virtual && isSupported()) {
+            try {
+                Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), prefix, 0L);
+                return (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+            } catch (ReflectiveOperationException e) {
+                log.warn("Unable to create virtual thread factory. Using platform threads", e);
+            }
+        }
+        AtomicLong counter = new AtomicLong(0);
+        return task -> {
+            Thread thread = new Thread(task, prefix + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * @param thread any thread.
+     * @return true if the thread is a virtual thread.
+     */
+    public static boolean isVirtual(Thread thread) {
+        if (!isSupported()) {
+            return false;
+        }
+        try {
+            return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package dk.kb.storage.webservice.exception;
+
+import dk.kb.util.webservice.exception.ServiceException;
+
+import javax.ws.rs.core.Response;
+
+/**
+ * The service is temporarily unable to handle the request, e.g. because all database connections are in use.
+ * The client should retry later.
+ * <p>
+ * Mapped to HTTP 503 Service Unavailable.
+ */
+public class ServiceUnavailableServiceException extends ServiceException {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Response.Status responseStatus = Response.Status.SERVICE_UNAVAILABLE;
+
+    public ServiceUnavailableServiceException() {
+        super(responseStatus);
+    }
+
+    public ServiceUnavailableServiceException(String message) {
+        super(message, responseStatus);
+    }
+
+    public ServiceUnavailableServiceException(String message, Throwable cause) {
+        super(message, cause, responseStatus);
+    }
+
+    public ServiceUnavailableServiceException(Throwable cause) {
+        super(cause, responseStatus);
+    }
+}
@@ -0,0 +1,101 @@
+package dk.kb.storage.api.v1.impl;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.core.HttpHeaders;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import dk.kb.storage.model.v1.RecordTypeDto;
+import dk.kb.storage.storage.DsStorageUnitTestUtil;
+import dk.kb.util.webservice.exception.InvalidArgumentServiceException;
+
+@ExtendWith(MockitoExtension.class)
+public class DsStorageApiServiceImplTest extends DsStorageUnitTestUtil {
+
+    @Mock
+    private HttpServletRequest httpServletRequest;
+
+    @Mock
+    private HttpServletResponse httpServletResponse;
+
+    @InjectMocks
+    private DsStorageApiServiceImpl api;
+
+    @BeforeEach
+    public void acceptTrailers() {
+        lenient().when(httpServletRequest.getHeader("TE")).thenReturn("trailers");
+    }
+
+    /*
+     * With TE: trailers the paging information is not calculated before streaming starts. An unknown origin must
+     * still be rejected up front instead of returning an empty export with status 200.
+     */
+    @Test
+    public void testUnknownOriginWithTrailers() {
+        assertThrows(InvalidArgumentServiceException.class,
+                     () -> api.getRecordsModifiedAfter("unknown.origin", null, 0L, 10L, null));
+        assertThrows(InvalidArgumentServiceException.class,
+                     () -> api.getRecordsModifiedAfter("unknown.origin", RecordTypeDto.MANIFESTATION, 0L, 10L, null));
+        assertThrows(InvalidArgumentServiceException.class,
+                     () -> api.getMinimalRecords("unknown.origin", 10, 0L));
+        assertThrows(InvalidArgumentServiceException.class,
+                     () -> api.getRecordsModifiedAfter("test.origin", null, 0L, -2L, null));
+        verify(httpServletResponse, never()).setTrailerFields(any());
+    }
+
+    @Test
+    public void testKnownOriginWithTrailers() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        api.getRecordsModifiedAfter("test.origin", null, 0L, 10L, null).write(out);
+        verify(httpServletResponse).setTrailerFields(any());
+        verify(httpServletResponse).setHeader(eq("Trailer"), any());
+        assertTrue(out.toString(StandardCharsets.UTF_8).startsWith("["), "The export should be a JSON array");
+    }
+
+    /*
+     * The error response for a rejected export is not compressed, so it must not be labelled as compressed.
+     */
+    @Test
+    public void testUnknownOriginWithCompression() {
+        lenient().when(httpServletRequest.getHeader(HttpHeaders.ACCEPT_ENCODING)).thenReturn("gzip");
+        assertThrows(InvalidArgumentServiceException.class,
+                     () -> api.getRecordsModifiedAfter("unknown.origin", null, 0L, 10L, null));
+        assertThrows(InvalidArgumentServiceException.class,
+                     () -> api.getRecordsModifiedAfter("unknown.origin", RecordTypeDto.MANIFESTATION, 0L, 10L, null));
+        assertThrows(InvalidArgumentServiceException.class,
+                     () -> api.getMinimalRecords("unknown.origin", 10, 0L));
+        verify(httpServletResponse, never()).setHeader(eq(HttpHeaders.CONTENT_ENCODING), any());
+    }
+
+    @Test
+    public void testKnownOriginWithCompression() throws Exception {
+        lenient().when(httpServletRequest.getHeader(HttpHeaders.ACCEPT_ENCODING)).thenReturn("gzip");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        api.getRecordsModifiedAfter("test.origin", null, 0L, 10L, null).write(out);
+        verify(httpServletResponse).setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            assertTrue(new String(in.readAllBytes(), StandardCharsets.UTF_8).startsWith("["),
+                       "The decompressed export should be a JSON array");
+        }
+    }
+}
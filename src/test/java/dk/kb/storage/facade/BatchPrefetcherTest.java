@@ -0,0 +1,68 @@
+package dk.kb.storage.facade;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+public class BatchPrefetcherTest {
+
+    @Test
+    public void testAllBatchesInOrder() {
+        AtomicInteger next = new AtomicInteger(0);
+        List<Integer> delivered = new ArrayList<>();
+        try (BatchPrefetcher<Integer> prefetcher = new BatchPrefetcher<>("test-prefetch", 2, () -> {
+            int batch = next.getAndIncrement();
+            return batch < 10 ? List.of(batch * 2, batch * 2 + 1) : Collections.emptyList();
+        })) {
+            List<Integer> batch;
+            while (!(batch = prefetcher.next()).isEmpty()) {
+                delivered.addAll(batch);
+            }
+            assertTrue(prefetcher.next().isEmpty(), "Calling next after the end must not block");
+        }
+        assertEquals(20, delivered.size());
+        for (int i = 0 ; i < 20 ; i++) {
+            assertEquals(i, delivered.get(i));
+        }
+    }
+
+    @Test
+    public void testFailureAfterBatches() {
+        AtomicInteger next = new AtomicInteger(0);
+        try (BatchPrefetcher<Integer> prefetcher = new BatchPrefetcher<>("test-prefetch", 5, () -> {
+            if (next.get() == 2) {
+                throw new IllegalStateException("Database is gone");
+            }
+            return List.of(next.getAndIncrement());
+        })) {
+            // The batches fetched before the failure are delivered first
+            assertEquals(List.of(0), prefetcher.next());
+            assertEquals(List.of(1), prefetcher.next());
+            assertThrows(IllegalStateException.class, prefetcher::next);
+        }
+    }
+
+    @Test
+    public void testFetchAheadIsBounded() throws Exception {
+        AtomicInteger fetched = new AtomicInteger(0);
+        try (BatchPrefetcher<Integer> prefetcher = new BatchPrefetcher<>("test-prefetch", 2,
+                                                                          () -> List.of(fetched.getAndIncrement()))) {
+            assertEquals(List.of(0), prefetcher.next());
+            Thread.sleep(200);
+            // 2 batches in the queue and 1 waiting to be added
+            assertTrue(fetched.get() <= 4, "Fetched " + fetched.get() + " batches with depth 2");
+        }
+        // The fetching thread stops when the prefetcher is closed
+        Thread.sleep(300);
+        int afterClose = fetched.get();
+        Thread.sleep(300);
+        assertEquals(afterClose, fetched.get());
+    }
+}
@@ -7,12 +7,20 @@ import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
+import java.util.List;
 
+
+import dk.kb.storage.model.v1.DsRecordBulkResultDto;
 import dk.kb.storage.model.v1.DsRecordDto;
+import dk.kb.storage.model.v1.DsRecordResultStatusDto;
 import dk.kb.storage.model.v1.RecordTypeDto;
+import dk.kb.storage.storage.DsStorage;
 import dk.kb.storage.storage.DsStorageUnitTestUtil;
+import dk.kb.storage.webservice.exception.ServiceUnavailableServiceException;
 import dk.kb.util.webservice.exception.InternalServiceException;
 
 public class DsStorageFacadeTest extends DsStorageUnitTestUtil{
@@ -147,6 +155,62 @@ public class DsStorageFacadeTest extends DsStorageUnitTestUtil{
         assertNull(updatedRecord.getKalturaId());            
     }
     
+    @Test
+    public void testCreateOrUpdateRecords() {
+        String origin="doms.radio";
+
+        DsRecordDto existing = createRecord(origin, origin+":existing", "referenceId_1");
+        existing.setKalturaId("kalturaId_1");
+        DsStorageFacade.createOrUpdateRecord(existing);
+
+        List<DsRecordDto> records = new ArrayList<>();
+        records.add(createRecord(origin, origin+":new1", null));
+        records.add(createRecord(origin, origin+":existing", "referenceId_1")); //Same referenceId, keep kalturaId
+        records.add(createRecord("unknown.origin", "unknown.origin:invalid", null));
+        records.add(createRecord(origin, origin+":new1", null)); //Same id twice. Second time is an update
+        records.add(createRecord(origin, origin+":new2", null));
+
+        DsRecordBulkResultDto result = DsStorageFacade.createOrUpdateRecords(records);
+        assertEquals(2, result.getCreated());
+        assertEquals(2, result.getUpdated());
+        assertEquals(1, result.getFailed());
+        assertEquals(5, result.getResults().size());
+        assertEquals(DsRecordResultStatusDto.CREATED, result.getResults().get(0).getStatus());
+        assertEquals(DsRecordResultStatusDto.UPDATED, result.getResults().get(1).getStatus());
+        assertEquals(DsRecordResultStatusDto.FAILED, result.getResults().get(2).getStatus());
+        assertNotNull(result.getResults().get(2).getMessage());
+        assertEquals(DsRecordResultStatusDto.UPDATED, result.getResults().get(3).getStatus());
+        assertEquals(DsRecordResultStatusDto.CREATED, result.getResults().get(4).getStatus());
+
+        assertEquals("kalturaId_1", DsStorageFacade.getRecord(origin+":existing", false).getKalturaId());
+        assertEquals("data for " + origin+":new2", DsStorageFacade.getRecord(origin+":new2", false).getData());
+    }
+
+    @Test
+    public void testCreateOrUpdateRecordsOverloaded() {
+        String origin="doms.radio";
+        List<DsRecordDto> records = List.of(createRecord(origin, origin+":overloaded", null));
+
+        // An overloaded storage is temporary, so the request must fail with 503 instead of marking the records failed
+        DsStorageFacade.setStorageActionLimiter(new StorageActionLimiter(0, 10));
+        try {
+            assertThrows(ServiceUnavailableServiceException.class, () -> DsStorageFacade.createOrUpdateRecords(records));
+        } finally {
+            DsStorageFacade.setVirtualThreads(null);
+        }
+        assertEquals(1, DsStorageFacade.createOrUpdateRecords(records).getCreated());
+    }
+
+    private DsRecordDto createRecord(String origin, String id, String referenceId) {
+        DsRecordDto record = new DsRecordDto();
+        record.setId(id);
+        record.setOrigin(origin);
+        record.setData("data for " + id);
+        record.setRecordType(RecordTypeDto.MANIFESTATION);
+        record.setReferenceId(referenceId);
+        return record;
+    }
+
     @Test
     public void testUnknownOrigin() {
         String id ="unknown.origin:id1";
@@ -453,6 +517,20 @@ public class DsStorageFacadeTest extends DsStorageUnitTestUtil{
         assertNull(child1_1.getParent().getChildren()); //Parent do not point back down.
         assertEquals(2, child1_1.getParent().getChildrenIds().size()); //But id's to children must be there
     }
+
+    @Test
+    public void testLocalRecordTreeUsesOneConnection() throws Exception {
+        createTestDepth2Tree("doms.aviser"); // See this method for visualization of the tree.
+
+        // The record, its parent and its children must all be loaded with the same connection, as the
+        // storage action limiter only counts the outer action
+        long borrowsBefore = DsStorage.getPoolStatus().getBorrows();
+        DsRecordDto child1 = DsStorageFacade.getRecord("doms.aviser:c1", true);
+        assertNotNull(child1.getParent());
+        assertEquals(2, child1.getChildren().size());
+        assertEquals(borrowsBefore + 1, DsStorage.getPoolStatus().getBorrows(),
+                "Loading a local record tree should borrow a single connection");
+    }
    
     private void createTestHierachyParentAndTwoChildren(String origin) {
         String parentId="parent";
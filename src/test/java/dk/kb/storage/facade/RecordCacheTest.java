@@ -0,0 +1,117 @@
+package dk.kb.storage.facade;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import dk.kb.storage.model.v1.DsRecordDto;
+import dk.kb.storage.model.v1.RecordCacheStatusDto;
+import dk.kb.storage.model.v1.RecordTypeDto;
+import dk.kb.storage.storage.DsStorageUnitTestUtil;
+
+public class RecordCacheTest extends DsStorageUnitTestUtil {
+
+    private static final String ORIGIN = "origin.strategy.none";
+
+    @AfterEach
+    public void resetCache() {
+        DsStorageFacade.setRecordCache(null);
+    }
+
+    @Test
+    public void testHitAndInvalidationOnWrite() {
+        DsStorageFacade.setRecordCache(new RecordCache(1000000, 1000000, false));
+        DsStorageFacade.createOrUpdateRecord(createRecord(ORIGIN + ":parent", null, "parent data"));
+        DsStorageFacade.createOrUpdateRecord(createRecord(ORIGIN + ":child", ORIGIN + ":parent", "child data"));
+
+        assertEquals("parent data", DsStorageFacade.getRecord(ORIGIN + ":parent", false).getData());
+        DsRecordDto parent = DsStorageFacade.getRecord(ORIGIN + ":parent", false);
+        assertEquals("parent data", parent.getData());
+        assertEquals(1, parent.getChildrenIds().size(), "Children ids are loaded for cached records");
+        RecordCacheStatusDto status = DsStorageFacade.getRecordCacheStatus();
+        assertEquals(1, status.getHits());
+        assertEquals(1, status.getMisses());
+
+        // Records from the cache are copies
+        parent.setData("changed by caller");
+        assertEquals("parent data", DsStorageFacade.getRecord(ORIGIN + ":parent", false).getData());
+
+        // A write through the facade invalidates the record
+        DsStorageFacade.createOrUpdateRecord(createRecord(ORIGIN + ":parent", null, "new parent data"));
+        assertEquals("new parent data", DsStorageFacade.getRecord(ORIGIN + ":parent", false).getData());
+
+        // A new child is visible for a cached parent
+        DsStorageFacade.getRecord(ORIGIN + ":parent", false);
+        DsStorageFacade.createOrUpdateRecord(createRecord(ORIGIN + ":child2", ORIGIN + ":parent", "child data"));
+        assertEquals(2, DsStorageFacade.getRecord(ORIGIN + ":parent", false).getChildrenIds().size());
+    }
+
+    @Test
+    public void testValidateMTime() throws Exception {
+        DsStorageFacade.setRecordCache(new RecordCache(1000000, 1000000, true));
+        DsStorageFacade.createOrUpdateRecord(createRecord(ORIGIN + ":record", null, "old data"));
+        assertEquals("old data", DsStorageFacade.getRecord(ORIGIN + ":record", false).getData());
+
+        // Changed directly in the storage, so the cache is not invalidated
+        storage.upsertRecord(createRecord(ORIGIN + ":record", null, "new data"));
+        storage.commit();
+
+        assertEquals("new data", DsStorageFacade.getRecord(ORIGIN + ":record", false).getData());
+        assertEquals(1, DsStorageFacade.getRecordCacheStatus().getStale());
+        assertEquals("new data", DsStorageFacade.getRecord(ORIGIN + ":record", false).getData());
+        assertEquals(1, DsStorageFacade.getRecordCacheStatus().getHits());
+    }
+
+    @Test
+    public void testLocalTreeUsesCache() {
+        DsStorageFacade.setRecordCache(new RecordCache(1000000, 1000000, true));
+        DsStorageFacade.createOrUpdateRecord(createRecord(ORIGIN + ":parent", null, "parent data"));
+        for (int i = 0 ; i < 3 ; i++) {
+            DsStorageFacade.createOrUpdateRecord(createRecord(ORIGIN + ":child" + i, ORIGIN + ":parent", "child data"));
+        }
+        for (int i = 0 ; i < 3 ; i++) {
+            DsRecordDto child = DsStorageFacade.getRecord(ORIGIN + ":child" + i, true);
+            assertNotNull(child.getParent());
+            assertEquals("parent data", child.getParent().getData());
+        }
+        // The parent is only loaded from the database for the first child
+        RecordCacheStatusDto status = DsStorageFacade.getRecordCacheStatus();
+        assertEquals(2, status.getHits());
+        assertEquals(4, status.getMisses());
+    }
+
+    @Test
+    public void testEviction() {
+        String data = "x".repeat(1000);
+        long recordBytes = RecordCache.ENTRY_OVERHEAD_BYTES + 2 * data.length();
+        DsStorageFacade.setRecordCache(new RecordCache(3 * recordBytes, 3 * recordBytes, false));
+        for (int i = 0 ; i < 5 ; i++) {
+            DsStorageFacade.createOrUpdateRecord(createRecord(ORIGIN + ":record" + i, null, data));
+            DsStorageFacade.getRecord(ORIGIN + ":record" + i, false);
+        }
+        RecordCacheStatusDto status = DsStorageFacade.getRecordCacheStatus();
+        assertEquals(3, status.getEntries());
+        assertEquals(2, status.getEvictions());
+        assertTrue(status.getBytes() <= status.getMaxBytes());
+
+        // The least recently used records were evicted
+        DsStorageFacade.getRecord(ORIGIN + ":record4", false);
+        DsStorageFacade.getRecord(ORIGIN + ":record0", false);
+        status = DsStorageFacade.getRecordCacheStatus();
+        assertEquals(1, status.getHits());
+        assertEquals(6, status.getMisses());
+    }
+
+    private DsRecordDto createRecord(String id, String parentId, String data) {
+        DsRecordDto record = new DsRecordDto();
+        record.setId(id);
+        record.setOrigin(ORIGIN);
+        record.setParentId(parentId);
+        record.setData(data);
+        record.setRecordType(RecordTypeDto.MANIFESTATION);
+        return record;
+    }
+}
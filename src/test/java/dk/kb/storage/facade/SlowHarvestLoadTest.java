@@ -0,0 +1,207 @@
+package dk.kb.storage.facade;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.kb.storage.config.ServiceConfig;
+import dk.kb.storage.model.v1.DsRecordDto;
+import dk.kb.storage.model.v1.RecordTypeDto;
+import dk.kb.storage.storage.DsStorageUnitTestUtil;
+import dk.kb.storage.storage.RecordRowMapper;
+import dk.kb.storage.util.VirtualThreads;
+import dk.kb.util.webservice.stream.ExportWriter;
+import dk.kb.util.webservice.stream.ExportWriterFactory;
+
+/*
+ * Simulates concurrent slow harvest clients, each exporting all records with prefetching of batches and a pause after
+ * every batch, as if the batch was written to a slow network connection. The clients run on platform threads in both
+ * runs, like the request threads of a servlet container. Before, the prefetch threads are platform threads. After,
+ * they are virtual threads (threads.virtual.enabled) and the storage action limiter bounds the database concurrency.
+ * The peak heap usage and the peak number of platform threads are measured for both and the number of slow clients
+ * that a heap of HEAP_BUDGET_BYTES can sustain is derived from the heap usage.
+ */
+public class SlowHarvestLoadTest extends DsStorageUnitTestUtil {
+
+    private static final Logger log = LoggerFactory.getLogger(SlowHarvestLoadTest.class);
+
+    private static final String ORIGIN = "origin.strategy.none";
+    private static final int CLIENTS = 200;
+    private static final int RECORDS = 500;
+    private static final int BATCH_SIZE = 50;
+    private static final int PREFETCH_DEPTH = 2;
+    private static final long PAUSE_MILLIS = 20;
+    // The fixed heap that the sustained clients are calculated for
+    private static final long HEAP_BUDGET_BYTES = 512L * 1024 * 1024;
+
+    @AfterEach
+    public void resetVirtualThreads() {
+        DsStorageFacade.setVirtualThreads(null);
+    }
+
+    /*
+     * Benchmark: Only run with -Dbenchmark=true
+     */
+    @Test
+    @Tag("benchmark")
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    public void testSlowHarvestClients() throws Exception {
+        createRecords();
+
+        DsStorageFacade.setVirtualThreads(false);
+        LoadResult platform = runClients();
+        log.info("Platform prefetch threads: {}", platform);
+
+        Assumptions.assumeTrue(VirtualThreads.isSupported(), "Virtual threads require Java 21+");
+        DsStorageFacade.setVirtualThreads(true);
+        LoadResult virtual = runClients();
+        log.info("Virtual prefetch threads: {}", virtual);
+        log.info("Sustained slow clients for a heap of {}MB. Before: {}, after: {}",
+                 HEAP_BUDGET_BYTES / 1024 / 1024, platform.getSustainedClients(), virtual.getSustainedClients());
+
+        int maxConcurrent = ServiceConfig.getVirtualThreadsMaxConcurrentStorageActions();
+        int peakActive = DsStorageFacade.getStorageActionLimiter().getPeakActive();
+        log.info("Peak concurrent storage actions with virtual threads: {} (limit {})", peakActive, maxConcurrent);
+        assertTrue(peakActive <= maxConcurrent,
+                   "The storage action limiter should bound the database concurrency to " + maxConcurrent +
+                   ", but " + peakActive + " actions were running at the same time");
+        assertTrue(virtual.peakPlatformThreads < platform.peakPlatformThreads,
+                   "Virtual prefetch threads should not each need a platform thread. Before: " + platform +
+                   ", after: " + virtual);
+    }
+
+    @Test
+    public void testVirtualThreadFactory() throws Exception {
+        Assumptions.assumeTrue(VirtualThreads.isSupported(), "Virtual threads require Java 21+");
+        Thread thread = VirtualThreads.newThreadFactory("test-", true).newThread(() -> {});
+        assertTrue(VirtualThreads.isVirtual(thread));
+        assertEquals("test-0", thread.getName());
+    }
+
+    private LoadResult runClients() throws Exception {
+        System.gc();
+        long baselineHeap = usedHeap();
+        int baselineThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        AtomicLong peakHeap = new AtomicLong(baselineHeap);
+        AtomicLong peakThreads = new AtomicLong(baselineThreads);
+        CountDownLatch done = new CountDownLatch(CLIENTS);
+        List<ExportProgress> progresses = new ArrayList<>();
+        List<Throwable> failures = new ArrayList<>();
+
+        long startTime = System.nanoTime();
+        ThreadFactory clientFactory = VirtualThreads.newThreadFactory("harvest-client-", false);
+        for (int i = 0 ; i < CLIENTS ; i++) {
+            ExportProgress progress = new SlowClientProgress();
+            progresses.add(progress);
+            clientFactory.newThread(() -> {
+                try (ExportWriter writer = ExportWriterFactory.wrap(
+                        OutputStream.nullOutputStream(), null, ExportWriterFactory.FORMAT.json, false, "records")) {
+                    DsStorageFacade.prefetchRecordsModifiedAfter(writer, ORIGIN, 0L, -1L, BATCH_SIZE, progress,
+                                                                 RecordRowMapper.ALL, PREFETCH_DEPTH);
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        while (done.getCount() > 0) {
+            peakHeap.accumulateAndGet(usedHeap(), Math::max);
+            peakThreads.accumulateAndGet(ManagementFactory.getThreadMXBean().getThreadCount(), Math::max);
+            Thread.sleep(10);
+        }
+        long millis = (System.nanoTime() - startTime) / 1000000;
+
+        assertTrue(failures.isEmpty(), "Harvest clients failed: " + failures);
+        for (ExportProgress progress : progresses) {
+            assertEquals(RECORDS, progress.getDelivered());
+        }
+        return new LoadResult(millis, peakThreads.get() - baselineThreads, peakHeap.get() - baselineHeap);
+    }
+
+    private void createRecords() throws Exception {
+        String data = "x".repeat(1000);
+        for (int i = 0 ; i < RECORDS ; i++) {
+            DsRecordDto record = new DsRecordDto();
+            record.setId(ORIGIN + ":load" + i);
+            record.setOrigin(ORIGIN);
+            record.setData(data);
+            record.setRecordType(RecordTypeDto.MANIFESTATION);
+            storage.createNewRecord(record);
+        }
+        storage.commit();
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Pauses after each delivered batch, like a client reading slowly from the connection.
+     */
+    private static class SlowClientProgress extends ExportProgress {
+        SlowClientProgress() {
+            super(0L);
+        }
+
+        @Override
+        public void delivered(long count, long mTime) {
+            super.delivered(count, mTime);
+            try {
+                Thread.sleep(PAUSE_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class LoadResult {
+        final long millis;
+        final long peakPlatformThreads;
+        final long peakHeapBytes;
+
+        LoadResult(long millis, long peakPlatformThreads, long peakHeapBytes) {
+            this.millis = millis;
+            this.peakPlatformThreads = peakPlatformThreads;
+            this.peakHeapBytes = peakHeapBytes;
+        }
+
+        /**
+         * @return the number of slow clients that {@link #HEAP_BUDGET_BYTES} can sustain, extrapolated from the peak
+         *         heap usage for {@link #CLIENTS} clients.
+         */
+        long getSustainedClients() {
+            return HEAP_BUDGET_BYTES / Math.max(1, peakHeapBytes / CLIENTS);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                                 "%d clients in %d ms, peak extra platform threads=%d, peak extra heap=%dKB " +
+                                 "(%dKB/client), sustained clients for %dMB heap=%d",
+                                 CLIENTS, millis, peakPlatformThreads, peakHeapBytes / 1024,
+                                 peakHeapBytes / 1024 / CLIENTS, HEAP_BUDGET_BYTES / 1024 / 1024,
+                                 getSustainedClients());
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package dk.kb.storage.storage;
+
+import dk.kb.storage.model.v1.DsRecordDto;
+import dk.kb.storage.model.v1.RecordTypeDto;
+import dk.kb.storage.util.MTimeAllocator;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DatabaseMTimeAllocatorTest extends DsStorageUnitTestUtil {
+
+    @Test
+    public void testBlocks() {
+        try (DatabaseMTimeAllocator allocator = new DatabaseMTimeAllocator(DRIVER, URL, USERNAME, PASSWORD, 10, 60000, 0)) {
+            long before = System.currentTimeMillis()*1000;
+            long first = allocator.next();
+            assertTrue(first >= before, "mTimes must follow the clock");
+            for (int i = 1 ; i < 25 ; i++) {
+                assertEquals(first+i, allocator.next(), "mTimes within the same instance must be consecutive " +
+                                                        "when blocks follow each other");
+            }
+            //Larger than a block
+            long reserved = allocator.reserve(100);
+            assertTrue(reserved > first+24);
+            assertTrue(allocator.next() >= reserved+100);
+            assertThrows(IllegalArgumentException.class, () -> allocator.reserve(0));
+        }
+    }
+
+    @Test
+    public void testMaxBlockAge() throws Exception {
+        try (DatabaseMTimeAllocator allocator = new DatabaseMTimeAllocator(DRIVER, URL, USERNAME, PASSWORD, 1000, 10, 0)) {
+            long first = allocator.next();
+            Thread.sleep(50);
+            long afterSleep = allocator.next();
+            assertTrue(afterSleep - first >= 40*1000, "A new block following the clock must be fetched after max age");
+        }
+    }
+
+    /*
+     * Two allocators on the same database simulates two ds-storage instances.
+     */
+    @Test
+    public void testUniqueAcrossInstances() throws Exception {
+        int threads = 8;
+        int perThread = 5000;
+        try (DatabaseMTimeAllocator instance1 = new DatabaseMTimeAllocator(DRIVER, URL, USERNAME, PASSWORD, 100, 1000, 0);
+             DatabaseMTimeAllocator instance2 = new DatabaseMTimeAllocator(DRIVER, URL, USERNAME, PASSWORD, 100, 1000, 0)) {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<long[]>> futures = new ArrayList<>();
+                for (int t = 0 ; t < threads ; t++) {
+                    DatabaseMTimeAllocator allocator = t % 2 == 0 ? instance1 : instance2;
+                    futures.add(executor.submit(() -> {
+                        long[] mTimes = new long[perThread];
+                        for (int i = 0 ; i < perThread ; i++) {
+                            mTimes[i] = allocator.next();
+                        }
+                        return mTimes;
+                    }));
+                }
+                Set<Long> all = new HashSet<>();
+                for (Future<long[]> future : futures) {
+                    for (long mTime : future.get()) {
+                        assertTrue(all.add(mTime), "Duplicate mTime " + mTime);
+                    }
+                }
+                assertEquals(threads*perThread, all.size());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    @Test
+    public void testHarvestHorizon() {
+        try (DatabaseMTimeAllocator allocator = new DatabaseMTimeAllocator(DRIVER, URL, USERNAME, PASSWORD, 10, 1000, 5000)) {
+            long before = System.currentTimeMillis();
+            long horizon = allocator.getHarvestHorizon();
+            long after = System.currentTimeMillis();
+            assertTrue(horizon < (after-6000)*1000, "The horizon must be held back by max block age and margin");
+            assertTrue(horizon >= (before-6000)*1000-1, "The horizon must follow the clock");
+        }
+        assertEquals(Long.MAX_VALUE, MTimeAllocator.JVM.getHarvestHorizon());
+    }
+
+    /*
+     * Two ds-storage instances, each with their own allocator, write records while a harvester pages through the
+     * records by mTime. An instance can commit a record with a lower mTime than records that the other instance has
+     * already committed, but the harvest horizon holds those back until no lower mTimes can be written, so the
+     * harvester gets all records.
+     */
+    @Test
+    public void testHarvestAcrossInstances() throws Exception {
+        int writers = 4;
+        int perWriter = 200;
+        int maxCommitDelayMillis = 10;
+        try (DatabaseMTimeAllocator instance1 = new DatabaseMTimeAllocator(DRIVER, URL, USERNAME, PASSWORD, 1000, 100, 50);
+             DatabaseMTimeAllocator instance2 = new DatabaseMTimeAllocator(DRIVER, URL, USERNAME, PASSWORD, 1000, 100, 50)) {
+            // DsStorage has a single allocator, so the instance is selected by the writing thread
+            ThreadLocal<MTimeAllocator> instance = ThreadLocal.withInitial(() -> instance1);
+            MTimeAllocator instances = new MTimeAllocator() {
+                @Override
+                public long next() {
+                    return instance.get().next();
+                }
+
+                @Override
+                public long reserve(int count) {
+                    return instance.get().reserve(count);
+                }
+
+                @Override
+                public long getHarvestHorizon() {
+                    return instance.get().getHarvestHorizon();
+                }
+            };
+            MTimeAllocator previous = DsStorage.replaceMTimeAllocator(instances);
+            ExecutorService executor = Executors.newFixedThreadPool(writers);
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (int t = 0 ; t < writers ; t++) {
+                    final int writer = t;
+                    futures.add(executor.submit(() -> {
+                        instance.set(writer % 2 == 0 ? instance1 : instance2);
+                        for (int i = 0 ; i < perWriter ; i++) {
+                            try (DsStorage writeStorage = new DsStorage()) {
+                                writeStorage.createNewRecord(createRecord("test.origin:instance" + writer + "_" + i));
+                                // Time between allocation of the mTime and commit
+                                Thread.sleep(ThreadLocalRandom.current().nextInt(maxCommitDelayMillis));
+                                writeStorage.commit();
+                            }
+                        }
+                        return null;
+                    }));
+                }
+
+                Set<String> harvested = new HashSet<>();
+                long mTime = 0L;
+                boolean writing = true;
+                while (writing) {
+                    writing = futures.stream().anyMatch(future -> !future.isDone());
+                    mTime = harvest(mTime, harvested);
+                    Thread.sleep(5);
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+                // Records written at the end are delivered when the horizon has passed them
+                Thread.sleep(100 + 50 + 10);
+                harvest(mTime, harvested);
+                assertEquals(writers*perWriter, harvested.size(), "All written records should be harvested");
+            } finally {
+                executor.shutdownNow();
+                DsStorage.replaceMTimeAllocator(previous);
+            }
+        }
+    }
+
+    /**
+     * Page through the records after the given mTime as a harvester would.
+     * @return the mTime to continue from.
+     */
+    private static long harvest(long mTime, Set<String> harvested) throws Exception {
+        try (DsStorage harvestStorage = new DsStorage()) {
+            List<DsRecordDto> page;
+            while (!(page = harvestStorage.getRecordsModifiedAfter("test.origin", mTime, 100)).isEmpty()) {
+                for (DsRecordDto record : page) {
+                    assertTrue(harvested.add(record.getId()), "Record harvested twice: " + record.getId());
+                }
+                mTime = page.get(page.size()-1).getmTime();
+            }
+            harvestStorage.commit();
+        }
+        return mTime;
+    }
+
+    private static DsRecordDto createRecord(String id) {
+        DsRecordDto record = new DsRecordDto();
+        record.setId(id);
+        record.setOrigin("test.origin");
+        record.setData("data for " + id);
+        record.setRecordType(RecordTypeDto.MANIFESTATION);
+        return record;
+    }
+}
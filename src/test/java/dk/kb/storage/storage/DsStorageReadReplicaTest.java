@@ -0,0 +1,154 @@
+package dk.kb.storage.storage;
+
+import dk.kb.storage.facade.DsStorageFacade;
+import dk.kb.storage.facade.RecordCache;
+import dk.kb.storage.model.v1.DsRecordDto;
+import dk.kb.storage.model.v1.OriginCountDto;
+import dk.kb.storage.model.v1.RecordTypeDto;
+import dk.kb.storage.util.H2DbUtil;
+import dk.kb.storage.util.UniqueTimestampGenerator;
+import dk.kb.util.webservice.exception.NotFoundServiceException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+ * Uses a second H2 database as stand-in for a read replica. Records are written directly to the replica database,
+ * so it can be seen which database a request has used.
+ */
+public class DsStorageReadReplicaTest extends DsStorageUnitTestUtil {
+
+    private static final String REPLICA_URL =
+            "jdbc:h2:" + TEST_CLASSES_PATH + "/h2/ds_storage_replica;MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE";
+
+    @BeforeAll
+    public static void createReplica() throws Exception {
+        H2DbUtil.createEmptyH2DBFromDDL(REPLICA_URL, DRIVER, USERNAME, PASSWORD);
+    }
+
+    @BeforeEach
+    public void clearReplica() throws Exception {
+        try (Connection connection = DriverManager.getConnection(REPLICA_URL, USERNAME, PASSWORD);
+             PreparedStatement stmt = connection.prepareStatement("DELETE FROM ds_records")) {
+            stmt.execute();
+        }
+    }
+
+    @AfterEach
+    public void closeReplica() {
+        DsStorage.closeReadReplica();
+    }
+
+    @Test
+    public void testReadsUseReplica() throws Exception {
+        storage.upsertRecord(createRecord("origin.strategy.none:primary"));
+        storage.commit();
+        createReplicaRecord("origin.strategy.none:replica");
+        createReplicaRecord("origin.strategy.none:replica2");
+        DsStorage.initializeReadReplica(DRIVER, REPLICA_URL, USERNAME, PASSWORD, new ReplicaLagGuard("SELECT 0", 60, 0));
+
+        assertTrue(DsStorage.hasReadReplica());
+        assertEquals("origin.strategy.none:replica", DsStorageFacade.getRecord("origin.strategy.none:replica", false).getId());
+        assertThrows(NotFoundServiceException.class, () -> DsStorageFacade.getRecord("origin.strategy.none:primary", false));
+        assertEquals(2, getTestOriginCount(DsStorageFacade.getOriginStatistics()));
+        assertEquals(2, DsStorageFacade.getPagingInfo("origin.strategy.none", null, 0L, 1000L).getRecordCount());
+
+        // Writes and the mTime touching paths stay on the primary
+        DsStorageFacade.createOrUpdateRecord(createRecord("origin.strategy.none:written"));
+        assertEquals(1, DsStorageFacade.touchRecord("origin.strategy.none:primary").getCount());
+        assertNotNull(storage.loadRecord("origin.strategy.none:written"));
+
+        assertTrue(DsStorage.getReadReplicaPoolStatus().getInUse());
+        assertEquals(0.0, DsStorage.getReadReplicaPoolStatus().getReplicationLagSeconds());
+    }
+
+    @Test
+    public void testStaleReplicaFallsBackToPrimary() throws Exception {
+        storage.upsertRecord(createRecord("origin.strategy.none:primary"));
+        storage.commit();
+        createReplicaRecord("origin.strategy.none:replica");
+        DsStorage.initializeReadReplica(DRIVER, REPLICA_URL, USERNAME, PASSWORD, new ReplicaLagGuard("SELECT 120", 60, 0));
+
+        assertEquals("origin.strategy.none:primary", DsStorageFacade.getRecord("origin.strategy.none:primary", false).getId());
+        assertThrows(NotFoundServiceException.class, () -> DsStorageFacade.getRecord("origin.strategy.none:replica", false));
+        try (DsStorage readOnly = new DsStorage(true)) {
+            assertFalse(readOnly.isUsingReadReplica());
+        }
+        assertFalse(DsStorage.getReadReplicaPoolStatus().getInUse());
+        assertEquals(120.0, DsStorage.getReadReplicaPoolStatus().getReplicationLagSeconds());
+    }
+
+    @Test
+    public void testReplicaReadsAreNotCached() throws Exception {
+        storage.upsertRecord(createRecord("origin.strategy.none:primary"));
+        storage.commit();
+        createReplicaRecord("origin.strategy.none:replica");
+        DsStorage.initializeReadReplica(DRIVER, REPLICA_URL, USERNAME, PASSWORD, new ReplicaLagGuard("SELECT 0", 60, 0));
+
+        RecordCache cache = new RecordCache(1000000, 1000000, false);
+        try (DsStorage readOnly = new DsStorage(true)) {
+            assertTrue(readOnly.isUsingReadReplica());
+            assertEquals("replica data", cache.loadRecordWithChildIds(readOnly, "origin.strategy.none:replica").getData());
+            assertEquals("replica data", cache.loadRecordWithChildIds(readOnly, "origin.strategy.none:replica").getData());
+        }
+        assertEquals(0, cache.getStatus().getEntries(), "Records from the replica must not be cached");
+        assertEquals(0, cache.getStatus().getHits());
+
+        // Records from the primary are cached
+        assertEquals("primary data", cache.loadRecordWithChildIds(storage, "origin.strategy.none:primary").getData());
+        assertEquals("primary data", cache.loadRecordWithChildIds(storage, "origin.strategy.none:primary").getData());
+        assertEquals(1, cache.getStatus().getEntries());
+        assertEquals(1, cache.getStatus().getHits());
+    }
+
+    @Test
+    public void testFailingLagQueryFallsBackToPrimary() throws Exception {
+        DsStorage.initializeReadReplica(
+                DRIVER, REPLICA_URL, USERNAME, PASSWORD, new ReplicaLagGuard("SELECT * FROM no_such_table", 60, 0));
+        try (DsStorage readOnly = new DsStorage(true)) {
+            assertFalse(readOnly.isUsingReadReplica());
+        }
+        DsStorage.closeReadReplica();
+        assertFalse(DsStorage.hasReadReplica());
+        try (DsStorage readOnly = new DsStorage(true)) {
+            assertFalse(readOnly.isUsingReadReplica());
+        }
+    }
+
+    private long getTestOriginCount(List<OriginCountDto> statistics) {
+        return statistics.stream()
+                .filter(origin -> "origin.strategy.none".equals(origin.getOrigin()))
+                .mapToLong(OriginCountDto::getCount)
+                .sum();
+    }
+
+    private void createReplicaRecord(String id) throws Exception {
+        long mTime = UniqueTimestampGenerator.next();
+        try (Connection connection = DriverManager.getConnection(REPLICA_URL, USERNAME, PASSWORD);
+             PreparedStatement stmt = connection.prepareStatement(
+                     "INSERT INTO ds_records (id, origin, recordtype, id_error, deleted, ctime, mtime, data)" +
+                     " VALUES (?, 'origin.strategy.none', 'MANIFESTATION', 0, 0, ?, ?, 'replica data')")) {
+            stmt.setString(1, id);
+            stmt.setLong(2, mTime);
+            stmt.setLong(3, mTime);
+            stmt.execute();
+        }
+    }
+
+    private DsRecordDto createRecord(String id) {
+        DsRecordDto record = new DsRecordDto();
+        record.setId(id);
+        record.setOrigin("origin.strategy.none");
+        record.setData("primary data");
+        record.setRecordType(RecordTypeDto.MANIFESTATION);
+        return record;
+    }
+}
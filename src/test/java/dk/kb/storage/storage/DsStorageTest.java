@@ -1,20 +1,49 @@
 package dk.kb.storage.storage;
 
+import dk.kb.storage.config.ServiceConfig;
+import dk.kb.storage.model.v1.DatabasePoolStatusDto;
 import dk.kb.storage.model.v1.DsRecordDto;
 import dk.kb.storage.model.v1.DsRecordMinimalDto;
 import dk.kb.storage.model.v1.OriginCountDto;
 import dk.kb.storage.model.v1.RecordTypeDto;
 import dk.kb.storage.model.v1.TranscriptionDto;
+import dk.kb.storage.util.MinimalRecordsBinary;
 import dk.kb.storage.util.UniqueTimestampGenerator;
+import dk.kb.util.Pair;
+import dk.kb.util.webservice.exception.InvalidArgumentServiceException;
+import dk.kb.util.webservice.stream.ExportWriter;
+import dk.kb.util.webservice.stream.ExportWriterFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.sun.management.ThreadMXBean;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -348,7 +377,742 @@ public class DsStorageTest extends DsStorageUnitTestUtil{
         createMegaParent(parentId,"test.origin");
 
         ArrayList<DsRecordDto> list1 = storage.getRecordsModifiedAfter("test.origin", before, 10000);
-        assertEquals(1001, list1.size()); //100 children +1 parent                              
+        assertEquals(1001, list1.size()); //100 children +1 parent
+    }
+
+    @Test
+    public void testGetModifiedAfterWithFields() throws Exception {
+        String parentId="test.origin:mega_parent_id";
+        long before = UniqueTimestampGenerator.next();
+        createMegaParent(parentId,"test.origin");
+
+        List<DsRecordDto> all = storage.getRecordsModifiedAfter("test.origin", before, 10000);
+        RecordRowMapper mapper = RecordRowMapper.forFields("parentId, MTIME");
+        List<DsRecordDto> projected = storage.getRecordsModifiedAfter("test.origin", before, 10000, mapper);
+        assertEquals(all.size(), projected.size());
+        for (int i = 0 ; i < all.size() ; i++) {
+            DsRecordDto full = all.get(i);
+            DsRecordDto record = projected.get(i);
+            assertEquals(full.getId(), record.getId(), "id should always be delivered");
+            assertEquals(full.getmTime(), record.getmTime(), "mTime should always be delivered");
+            assertEquals(full.getmTimeHuman(), record.getmTimeHuman());
+            assertEquals(full.getParentId(), record.getParentId());
+            assertNull(record.getData(), "data should not be loaded");
+            assertNull(record.getOrigin(), "origin should not be loaded");
+            assertNull(record.getRecordType(), "recordType should not be loaded");
+        }
+
+        List<DsRecordDto> streamed = new ArrayList<>();
+        storage.streamRecordsModifiedAfter("test.origin", before, -1, mapper, streamed::add);
+        assertEquals(projected.size(), streamed.size());
+        assertNull(streamed.get(0).getData(), "data should not be loaded when streaming");
+
+        assertEquals(List.of("id", "mTime", "parentId"), mapper.getFieldNames());
+        assertTrue(RecordRowMapper.forFields(null).isAll());
+        assertTrue(RecordRowMapper.forFields(String.join(",", RecordRowMapper.FIELD_NAMES)).isAll());
+        assertThrows(InvalidArgumentServiceException.class, () -> RecordRowMapper.forFields("id,unknown"));
+    }
+
+    @Test
+    public void testPagingInfo() throws Exception {
+        String parentId="test.origin:mega_parent_id";
+        long before = UniqueTimestampGenerator.next();
+        createMegaParent(parentId,"test.origin");
+        long after = UniqueTimestampGenerator.next();
+        List<DsRecordDto> all = storage.getRecordsModifiedAfter("test.origin", before, 10000);
+        long middle = all.get(500).getmTime();
+
+        for (long mTime: new long[]{0, before, middle, after}) {
+            for (long maxRecords: new long[]{-1, 1, 100, 499, 500, 501, 1000, 1001, 1002, 5000}) {
+                assertPagingInfo(null, mTime, maxRecords);
+                assertPagingInfo(RecordTypeDto.MANIFESTATION, mTime, maxRecords);
+                assertPagingInfo(RecordTypeDto.COLLECTION, mTime, maxRecords);
+            }
+        }
+    }
+
+    @Test
+    public void testPagingInfoEmptyAndInvalidPage() throws Exception {
+        String parentId="test.origin:mega_parent_id";
+        long before = UniqueTimestampGenerator.next();
+        createMegaParent(parentId,"test.origin");
+        long after = UniqueTimestampGenerator.next();
+
+        assertPagingInfo(null, before, 0);
+        assertPagingInfo(null, after, 0);
+        assertTrue(storage.getMaxMtimeAfter("test.origin", before, 0).getRight());
+        assertFalse(storage.getMaxMtimeAfter("test.origin", RecordTypeDto.MANIFESTATION, after, 0).getRight());
+        assertThrows(InvalidArgumentServiceException.class, () -> storage.getPagingInfo("test.origin", null, before, -2));
+    }
+
+    /*
+     * Compare the single probe paging information to the values derived from the full list of records.
+     */
+    private void assertPagingInfo(RecordTypeDto recordType, long mTime, long maxRecords) throws Exception {
+        String message = "recordType=" + recordType + ", mTime=" + mTime + ", maxRecords=" + maxRecords;
+        PagingInfo pagingInfo = storage.getPagingInfo("test.origin", recordType, mTime, maxRecords);
+
+        List<Long> mTimes = new ArrayList<>();
+        long start = mTime;
+        List<DsRecordDto> page;
+        while (!(page = storage.getRecordsModifiedAfter("test.origin", start, 10000)).isEmpty()) {
+            for (DsRecordDto record: page) {
+                if (recordType == null || recordType == record.getRecordType()) {
+                    mTimes.add(record.getmTime());
+                }
+            }
+            start = page.get(page.size()-1).getmTime();
+        }
+        long count = maxRecords == -1 ? mTimes.size() : Math.min(maxRecords, mTimes.size());
+        Long lastMTime = count > 0 ? mTimes.get((int) count-1) : maxRecords == -1 ? null : 0L;
+
+        assertEquals(lastMTime, pagingInfo.getLastMTime(), "Last mTime for " + message);
+        assertEquals(maxRecords != -1 && mTimes.size() > maxRecords, pagingInfo.hasMore(), "Has more for " + message);
+        assertEquals(count, pagingInfo.getRecordCount(), "Record count for " + message);
+        Pair<Long, Boolean> continuation = recordType == null ?
+                storage.getMaxMtimeAfter("test.origin", mTime, maxRecords) :
+                storage.getMaxMtimeAfter("test.origin", recordType, mTime, maxRecords);
+        assertEquals(lastMTime, continuation.getLeft(), "getMaxMtimeAfter last mTime for " + message);
+        assertEquals(pagingInfo.hasMore(), continuation.getRight(), "getMaxMtimeAfter has more for " + message);
+    }
+
+    /*
+     * Timing of the paging information compared to a plain count of the remaining records.
+     * Use a larger number of records to get meaningful numbers.
+     * Benchmark: Only run with -Dbenchmark=true
+     */
+    @Test
+    @Tag("benchmark")
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    public void testPagingInfoPerformance() throws Exception {
+        int records = 20000;
+        int pageSize = 1000;
+        for (int i = 0 ; i < records ; i++) {
+            DsRecordDto record = new DsRecordDto();
+            record.setId("test.origin:paging" + i);
+            record.setOrigin("test.origin");
+            record.setData("paging data " + i);
+            record.setRecordType(RecordTypeDto.MANIFESTATION);
+            storage.createNewRecord(record);
+        }
+        List<Long> pageStarts = new ArrayList<>();
+        pageStarts.add(0L);
+        long mTime = 0L;
+        List<DsRecordDto> page;
+        while (!(page = storage.getRecordsModifiedAfter("test.origin", mTime, pageSize)).isEmpty()) {
+            mTime = page.get(page.size()-1).getmTime();
+            pageStarts.add(mTime);
+        }
+
+        long countTime = -System.nanoTime();
+        for (long start: pageStarts) {
+            storage.getAmountOfRecordsForOrigin("test.origin", start);
+        }
+        countTime += System.nanoTime();
+
+        long pagingTime = -System.nanoTime();
+        for (long start: pageStarts) {
+            storage.getPagingInfo("test.origin", null, start, pageSize);
+        }
+        pagingTime += System.nanoTime();
+
+        log.info("Paging headers for {} pages of {} records: count={}ms, pagingInfo={}ms",
+                 pageStarts.size(), pageSize, countTime/1000000, pagingTime/1000000);
+        for (long start: pageStarts) {
+            assertPagingInfo(null, start, pageSize);
+        }
+    }
+
+    @Test
+    public void testStreamModifiedAfter() throws Exception {
+        String parentId="test.origin:mega_parent_id";
+        long before = UniqueTimestampGenerator.next();
+
+        createMegaParent(parentId,"test.origin");
+
+        //All records must be delivered in same order and with same content as the batch method
+        ArrayList<DsRecordDto> batched = storage.getRecordsModifiedAfter("test.origin", before, 10000);
+        List<DsRecordDto> streamed = new ArrayList<>();
+        long delivered = storage.streamRecordsModifiedAfter("test.origin", before, -1, streamed::add);
+        assertEquals(1001, delivered);
+        assertEquals(batched, streamed);
+
+        //Limit and continuation
+        List<DsRecordDto> first = new ArrayList<>();
+        assertEquals(600, storage.streamRecordsModifiedAfter("test.origin", before, 600, first::add));
+        List<DsRecordDto> second = new ArrayList<>();
+        long lastMTime = first.get(first.size()-1).getmTime();
+        assertEquals(401, storage.streamRecordsModifiedAfter("test.origin", lastMTime, 600, second::add));
+        first.addAll(second);
+        assertEquals(batched, first);
+    }
+
+    @Test
+    public void testWriteRecordsModifiedAfter() throws Exception {
+        String parentId="test.origin:mega_parent_id";
+        long before = UniqueTimestampGenerator.next();
+
+        createMegaParent(parentId,"test.origin");
+
+        //The passthrough JSON must deserialize to the same records as the batch method, both as array and NDJSON
+        ArrayList<DsRecordDto> batched = storage.getRecordsModifiedAfter("test.origin", before, 10000);
+        for (boolean lines: new boolean[]{false, true}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (RecordJSONWriter writer = new RecordJSONWriter(out, lines)) {
+                assertEquals(1001, storage.writeRecordsModifiedAfter("test.origin", before, -1, RecordRowMapper.ALL, writer));
+                assertEquals(batched.get(batched.size()-1).getmTime(), writer.getLastMTime());
+            }
+            List<DsRecordDto> written = new ObjectMapper().readerFor(DsRecordDto.class).<DsRecordDto>readValues(out.toByteArray()).readAll();
+            assertEquals(batched, written, "Passthrough records with lines=" + lines);
+        }
+
+        //Limit and fields
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RecordRowMapper mapper = RecordRowMapper.forFields("parentId");
+        try (RecordJSONWriter writer = new RecordJSONWriter(out, false)) {
+            assertEquals(10, storage.writeRecordsModifiedAfter("test.origin", before, 10, mapper, writer));
+        }
+        List<DsRecordDto> limited = new ObjectMapper().readerFor(DsRecordDto.class).<DsRecordDto>readValues(out.toByteArray()).readAll();
+        assertEquals(storage.getRecordsModifiedAfter("test.origin", before, 10, mapper), limited);
+    }
+
+    @Test
+    public void testWriteRecordsModifiedAfterMatchesExportWriter() throws Exception {
+        String parentId="test.origin:mega_parent_id";
+        long before = UniqueTimestampGenerator.next();
+
+        createMegaParent(parentId,"test.origin");
+
+        //Clients must not be able to tell passthrough from records written with an ExportWriter, also not on field order
+        ArrayList<DsRecordDto> batched = storage.getRecordsModifiedAfter("test.origin", before, 10000);
+        ByteArrayOutputStream exported = new ByteArrayOutputStream();
+        try (ExportWriter writer = ExportWriterFactory.wrap(
+                exported, null, ExportWriterFactory.FORMAT.jsonl, false, "records")) {
+            batched.forEach(writer::write);
+        }
+
+        ByteArrayOutputStream passthrough = new ByteArrayOutputStream();
+        try (RecordJSONWriter writer = new RecordJSONWriter(passthrough, true)) {
+            assertEquals(batched.size(), storage.writeRecordsModifiedAfter("test.origin", before, -1, RecordRowMapper.ALL, writer));
+        }
+
+        List<String> exportedLines = exported.toString(StandardCharsets.UTF_8).lines().collect(Collectors.toList());
+        List<String> passthroughLines = passthrough.toString(StandardCharsets.UTF_8).lines().collect(Collectors.toList());
+        assertEquals(exportedLines, passthroughLines);
+    }
+
+    @Test
+    public void testPrecomputedJSON() throws Exception {
+        String origin = "origin.precomputed.json";
+        assertTrue(ServiceConfig.isPrecomputedJSON(origin), "The test origin should have precomputeJSON enabled");
+        assertFalse(ServiceConfig.isPrecomputedJSON("test.origin"));
+
+        long before = UniqueTimestampGenerator.next();
+        List<DsRecordDto> records = new ArrayList<>();
+        for (int i = 0 ; i < 10 ; i++) {
+            DsRecordDto record = new DsRecordDto();
+            record.setId(origin + ":record" + i);
+            record.setOrigin(origin);
+            record.setData(i == 3 ? null : "<mods><title>\"Title\" " + i + " \\ æøå ☃</title>\n\t</mods>");
+            record.setRecordType(RecordTypeDto.MANIFESTATION);
+            records.add(record);
+        }
+        storage.createNewRecord(records.get(0));
+        storage.createNewRecords(records.subList(1, 10));
+        records.get(1).setData("updated data with \"quotes\"");
+        storage.updateRecord(records.get(1));
+        records.get(2).setData("upserted data");
+        storage.upsertRecord(records.get(2));
+        storage.updateRecords(records.subList(4, 6));
+
+        // Records in other origins do not get precomputed JSON
+        DsRecordDto plain = new DsRecordDto();
+        plain.setId("test.origin:plain");
+        plain.setOrigin("test.origin");
+        plain.setData("plain data");
+        plain.setRecordType(RecordTypeDto.MANIFESTATION);
+        storage.createNewRecord(plain);
+
+        assertEquals(RecordRowMapper.toDataJSON("updated data with \"quotes\""), loadDataJSON(origin + ":record1"));
+        assertEquals(RecordRowMapper.toDataJSON("upserted data"), loadDataJSON(origin + ":record2"));
+        assertNull(loadDataJSON(origin + ":record3"));
+        assertNull(loadDataJSON("test.origin:plain"));
+
+        // JSON left from when precomputeJSON was enabled for an origin is cleared when the record is written
+        for (boolean upsert: new boolean[]{false, true}) {
+            try (PreparedStatement stmt = storage.connection.prepareStatement(
+                    "UPDATE ds_records SET data_json = ? WHERE id = ?")) {
+                stmt.setString(1, RecordRowMapper.toDataJSON("outdated data"));
+                stmt.setString(2, "test.origin:plain");
+                stmt.executeUpdate();
+            }
+            plain.setData("plain data, upsert=" + upsert);
+            if (upsert) {
+                storage.upsertRecord(plain);
+            } else {
+                storage.updateRecord(plain);
+            }
+            assertNull(loadDataJSON("test.origin:plain"), "Outdated JSON should be cleared with upsert=" + upsert);
+        }
+
+        // A record written before precomputeJSON was enabled falls back to data
+        try (PreparedStatement stmt = storage.connection.prepareStatement(
+                "UPDATE ds_records SET data_json = NULL WHERE id = ?")) {
+            stmt.setString(1, origin + ":record7");
+            stmt.executeUpdate();
+        }
+
+        ArrayList<DsRecordDto> expected = storage.getRecordsModifiedAfter(origin, before, 100);
+        assertEquals(10, expected.size());
+        RecordRowMapper mapper = RecordRowMapper.ALL.withPrecomputedJSON();
+        assertTrue(mapper.isPrecomputedJSON());
+        assertFalse(mapper.isAll());
+        for (boolean lines: new boolean[]{false, true}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (RecordJSONWriter writer = new RecordJSONWriter(out, lines)) {
+                assertEquals(10, storage.writeRecordsModifiedAfter(origin, before, -1, mapper, writer));
+            }
+            List<DsRecordDto> written = new ObjectMapper().readerFor(DsRecordDto.class).<DsRecordDto>readValues(out.toByteArray()).readAll();
+            assertEquals(expected, written, "Spliced records with lines=" + lines);
+        }
+
+        // Mapping to records decodes the precomputed JSON
+        List<DsRecordDto> mapped = new ArrayList<>();
+        storage.streamRecordsModifiedAfter(origin, before, -1, mapper, mapped::add);
+        assertEquals(expected, mapped);
+
+        // Mappers without data are unchanged
+        RecordRowMapper noData = RecordRowMapper.forFields("parentId");
+        assertSame(noData, noData.withPrecomputedJSON());
+    }
+
+    private String loadDataJSON(String id) throws Exception {
+        try (PreparedStatement stmt = storage.connection.prepareStatement("SELECT data_json FROM ds_records WHERE id = ?")) {
+            stmt.setString(1, id);
+            try (ResultSet rs = stmt.executeQuery()) {
+                assertTrue(rs.next(), "The record '" + id + "' should exist");
+                return rs.getString(1);
+            }
+        }
+    }
+
+    /*
+     * Memory allocation benchmark for exporting records with large data as DsRecordDtos serialized by Jackson versus
+     * passthrough of the data from the JDBC character stream. Measures the bytes allocated by the calling thread.
+     * Benchmark: Only run with -Dbenchmark=true
+     */
+    @Test
+    @Tag("benchmark")
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    public void testPassthroughAllocation() throws Exception {
+        ThreadMXBean threads = ManagementFactory.getPlatformMXBean(ThreadMXBean.class);
+        Assumptions.assumeTrue(threads != null && threads.isThreadAllocatedMemorySupported(),
+                               "Measuring allocated memory is not supported by this JVM");
+
+        int records = 20;
+        int dataSize = 1000000;
+        StringBuilder data = new StringBuilder(dataSize);
+        while (data.length() < dataSize) {
+            data.append("<mods><title>Title with \"quotes\" &amp; æøå</title></mods>\n");
+        }
+        long before = UniqueTimestampGenerator.next();
+        for (int i = 0 ; i < records ; i++) {
+            DsRecordDto record = new DsRecordDto();
+            record.setId("test.origin:large" + i);
+            record.setOrigin("test.origin");
+            record.setData(data.toString());
+            record.setRecordType(RecordTypeDto.MANIFESTATION);
+            storage.createNewRecord(record);
+        }
+
+        ObjectMapper jsonMapper = new ObjectMapper();
+        long dtoBytes = 0;
+        long passthroughBytes = 0;
+        for (int run = 0 ; run < 3 ; run++) { // First run is warm up
+            long allocated = -threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            try (JsonGenerator generator = jsonMapper.getFactory().createGenerator(OutputStream.nullOutputStream())) {
+                storage.streamRecordsModifiedAfter("test.origin", before, -1, record -> jsonMapper.writeValue(generator, record));
+            }
+            allocated += threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            dtoBytes = allocated;
+
+            allocated = -threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            try (RecordJSONWriter writer = new RecordJSONWriter(OutputStream.nullOutputStream(), false)) {
+                storage.writeRecordsModifiedAfter("test.origin", before, -1, RecordRowMapper.ALL, writer);
+            }
+            allocated += threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            passthroughBytes = allocated;
+        }
+        log.info("Allocated for {} records with {} bytes of data: DsRecordDto={} bytes/record, passthrough={} bytes/record",
+                 records, dataSize, dtoBytes/records, passthroughBytes/records);
+        assertTrue(passthroughBytes < dtoBytes,
+                   "Passthrough should allocate less than DsRecordDto, but allocated " + passthroughBytes +
+                   " bytes vs. " + dtoBytes + " bytes");
+    }
+
+    @Test
+    public void testWriteReferenceIds() throws Exception {
+        String parentId="test.origin:mega_parent_id";
+        long before = UniqueTimestampGenerator.next();
+
+        createMegaParent(parentId,"test.origin");
+        storage.updateReferenceIdForRecord(parentId, "reference_123");
+
+        //The binary records must be the same as the minimal records from getReferenceIds
+        ArrayList<DsRecordMinimalDto> expected = storage.getReferenceIds("test.origin", before, 500);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (MinimalRecordsBinary.Writer writer = new MinimalRecordsBinary.Writer(out)) {
+            assertEquals(500, storage.writeReferenceIds("test.origin", before, 500, writer));
+            writer.finish();
+        }
+        List<DsRecordMinimalDto> read = new ArrayList<>();
+        try (MinimalRecordsBinary.Reader reader = new MinimalRecordsBinary.Reader(new ByteArrayInputStream(out.toByteArray()))) {
+            reader.forEachRemaining(read::add);
+        }
+        assertEquals(expected, read);
+    }
+
+    @Test
+    public void testUpsertRecord() throws Exception {
+        DsRecordDto record = new DsRecordDto();
+        record.setId("test.origin:upsert");
+        record.setOrigin("test.origin");
+        record.setData("first");
+        record.setRecordType(RecordTypeDto.MANIFESTATION);
+        record.setReferenceId("ref1");
+        record.setKalturaId("kaltura1");
+        storage.upsertRecord(record);
+
+        DsRecordDto created = storage.loadRecord(record.getId());
+        assertEquals("first", created.getData());
+        assertEquals("kaltura1", created.getKalturaId());
+        assertEquals(created.getcTime(), created.getmTime());
+
+        //Same referenceId and no kalturaId. kalturaId is kept, cTime is not changed
+        record.setData("second");
+        record.setKalturaId(null);
+        storage.upsertRecord(record);
+        DsRecordDto updated = storage.loadRecord(record.getId());
+        assertEquals("second", updated.getData());
+        assertEquals("kaltura1", updated.getKalturaId());
+        assertEquals(created.getcTime(), updated.getcTime());
+        assertTrue(updated.getmTime() > created.getmTime());
+
+        //New referenceId. kalturaId is cleared
+        record.setReferenceId("ref2");
+        storage.upsertRecord(record);
+        assertNull(storage.loadRecord(record.getId()).getKalturaId());
+
+        //A given kalturaId is also cleared on update, as for the old update logic
+        record.setKalturaId("kaltura2");
+        storage.upsertRecord(record);
+        assertNull(storage.loadRecord(record.getId()).getKalturaId());
+
+        //Deleted records are undeleted
+        storage.markRecordForDelete(record.getId());
+        storage.upsertRecord(record);
+        assertFalse(storage.loadRecord(record.getId()).getDeleted());
+    }
+
+    /*
+     * Compares create and update of records with the previous exists, load and insert/update round trips
+     * and with the single upsert statement.
+     * Benchmark: Only run with -Dbenchmark=true
+     */
+    @Test
+    @Tag("benchmark")
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    public void testUpsertPerformance() throws Exception {
+        int records = 2000;
+        for (int run = 0 ; run < 2 ; run++) { // First run creates, second run updates
+            long oldTime = -System.nanoTime();
+            for (int i = 0 ; i < records ; i++) {
+                DsRecordDto record = createUpsertTestRecord("test.origin:old" + i, run);
+                if (storage.recordExists(record.getId())) {
+                    storage.loadRecord(record.getId());
+                    storage.updateRecord(record);
+                } else {
+                    storage.createNewRecord(record);
+                }
+            }
+            oldTime += System.nanoTime();
+
+            long newTime = -System.nanoTime();
+            for (int i = 0 ; i < records ; i++) {
+                storage.upsertRecord(createUpsertTestRecord("test.origin:new" + i, run));
+            }
+            newTime += System.nanoTime();
+            log.info("{} {} records: exists+load+insert/update={}ms, upsert={}ms",
+                     run == 0 ? "Created" : "Updated", records, oldTime/1000000, newTime/1000000);
+        }
+        assertTrue(storage.loadRecord("test.origin:new17").getData().startsWith("data 1 for test.origin:new17 "));
+    }
+
+    /*
+     * Compares the storage calls behind getRecord and recordPost with and without pooling of prepared statements.
+     * Each call uses a new DsStorage, as the facade does. The runs alternate to even out JIT warm up.
+     * Benchmark: Only run with -Dbenchmark=true
+     */
+    @Test
+    @Tag("benchmark")
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    public void testStatementCachePerformance() throws Exception {
+        int records = 1000;
+        boolean[] runs = new boolean[]{false, true, false, true};
+        try {
+            for (int run = 0 ; run < runs.length ; run++) {
+                boolean pooled = runs[run];
+                DsStorage.shutdown();
+                DsStorage.initialize(DRIVER, URL, USERNAME, PASSWORD, pooled);
+                String prefix = "test.origin:run" + run + "_";
+
+                long postTime = -System.nanoTime();
+                for (int i = 0 ; i < records ; i++) {
+                    try (DsStorage postStorage = new DsStorage()) {
+                        postStorage.upsertRecord(createUpsertTestRecord(prefix + i, run));
+                        postStorage.commit();
+                    }
+                }
+                postTime += System.nanoTime();
+
+                long getTime = -System.nanoTime();
+                for (int i = 0 ; i < records ; i++) {
+                    try (DsStorage getStorage = new DsStorage()) {
+                        assertNotNull(getStorage.loadRecordWithChildIds(prefix + i));
+                        getStorage.commit();
+                    }
+                }
+                getTime += System.nanoTime();
+                log.info("poolPreparedStatements={}: {} recordPost={}ms, {} getRecord={}ms",
+                         pooled, records, postTime/1000000, records, getTime/1000000);
+            }
+        } finally {
+            DsStorage.shutdown();
+            DsStorage.initialize(DRIVER, URL, USERNAME, PASSWORD);
+        }
+    }
+
+    @Test
+    public void testPoolStatus() throws Exception {
+        DatabasePoolStatusDto before = DsStorage.getPoolStatus();
+        assertNotNull(before);
+        assertEquals(ServiceConfig.getConnectionPoolSize(), before.getMaxTotal());
+        try (DsStorage first = new DsStorage(); DsStorage second = new DsStorage()) {
+            DatabasePoolStatusDto during = DsStorage.getPoolStatus();
+            assertEquals(before.getActive() + 2, during.getActive());
+            assertEquals(before.getBorrows() + 2, during.getBorrows());
+            assertEquals(0, during.getWaiters());
+        }
+        DatabasePoolStatusDto after = DsStorage.getPoolStatus();
+        assertEquals(before.getActive(), after.getActive());
+        long histogramCount = after.getBorrowWaitHistogram().values().stream().mapToLong(Long::longValue).sum();
+        assertEquals(after.getBorrows() + after.getTimeouts(), histogramCount);
+    }
+
+    @Test
+    public void testReadOnlyStorage() throws Exception {
+        long before = UniqueTimestampGenerator.next();
+        storage.upsertRecord(createUpsertTestRecord("test.origin:readonly", 0));
+        storage.commit();
+
+        try (DsStorage readOnly = new DsStorage(true)) {
+            assertTrue(readOnly.isReadOnly());
+            assertFalse(readOnly.isUsingReadReplica(), "No read replica is configured for unit tests");
+            assertEquals("test.origin:readonly", readOnly.loadRecord("test.origin:readonly").getId());
+
+            List<DsRecordDto> streamed = new ArrayList<>();
+            readOnly.streamRecordsModifiedAfter("test.origin", before, -1, streamed::add);
+            assertEquals(1, streamed.size());
+            assertTrue(readOnly.connection.getAutoCommit(), "Autocommit should be restored after streaming");
+        }
+    }
+
+    private DsRecordDto createUpsertTestRecord(String id, int run) {
+        DsRecordDto record = new DsRecordDto();
+        record.setId(id);
+        record.setOrigin("test.origin");
+        record.setData("data " + run + " for " + id + " " + "x".repeat(2000));
+        record.setRecordType(RecordTypeDto.MANIFESTATION);
+        record.setReferenceId("ref_" + id);
+        return record;
+    }
+
+    @Test
+    public void testUpdateMTimeForRecords() throws Exception {
+        String parentId="test.origin:mega_parent_id";
+        createMegaParent(parentId,"test.origin");
+        long before = UniqueTimestampGenerator.next();
+
+        List<String> childrenIds = new ArrayList<>(storage.getChildrenIds(parentId));
+        childrenIds.add("test.origin:does_not_exist");
+        List<String> missing = storage.updateMTimeForRecords(childrenIds);
+        assertEquals(List.of("test.origin:does_not_exist"), missing);
+
+        //All children are updated with unique mTimes in the order of the ids
+        List<DsRecordDto> updated = storage.getRecordsModifiedAfter("test.origin", before, 10000);
+        assertEquals(1000, updated.size());
+        for (int i = 0 ; i < updated.size() ; i++) {
+            assertEquals(childrenIds.get(i), updated.get(i).getId());
+        }
+        assertTrue(storage.updateMTimeForRecords(Collections.emptyList()).isEmpty());
+    }
+
+    @Test
+    public void testConvertToHumanDate() {
+        SimpleDateFormat oldFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ssZ", Locale.getDefault());
+        long base = 1637057234458000L;
+        //Same second, next second, going back and a date in another part of the year (daylight saving time)
+        long[] stamps = {base, base+1, base+500000, base+1000000, base, base+180L*24*3600*1000*1000, 0L};
+        for (long stamp : stamps) {
+            assertEquals(oldFormat.format(new Date(stamp/1000)), DsStorage.convertToHumanDate(stamp),
+                         "Human date for " + stamp);
+        }
+    }
+
+    /*
+     * Decoding throughput for exports with 1 to 32 concurrent threads.
+     * Benchmark: Only run with -Dbenchmark=true
+     */
+    @Test
+    @Tag("benchmark")
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    public void testDecodeThroughput() throws Exception {
+        int records = 5000;
+        for (int i = 0 ; i < records ; i++) {
+            DsRecordDto record = new DsRecordDto();
+            record.setId("test.origin:decode" + i);
+            record.setOrigin("test.origin");
+            record.setData("decode data " + i);
+            record.setRecordType(RecordTypeDto.MANIFESTATION);
+            storage.createNewRecord(record);
+        }
+        storage.commit();
+
+        for (int threads = 1 ; threads <= 32 ; threads *= 2) {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                List<Callable<Integer>> tasks = new ArrayList<>();
+                for (int t = 0 ; t < threads ; t++) {
+                    tasks.add(() -> {
+                        try (DsStorage threadStorage = new DsStorage()) {
+                            return threadStorage.getRecordsModifiedAfter("test.origin", 0L, records).size();
+                        }
+                    });
+                }
+                long start = System.nanoTime();
+                for (Future<Integer> future : executor.invokeAll(tasks)) {
+                    assertEquals(records, future.get());
+                }
+                long nanos = System.nanoTime()-start;
+                log.info("{} threads decoded {} records in {} ms: {} records/ms",
+                         threads, threads*records, nanos/1000000, threads*(long)records*1000000L/Math.max(1, nanos));
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    @Test
+    public void testLoadRecordRelation() throws Exception {
+        String parentId="test.origin:mega_parent_id";
+        createMegaParent(parentId,"test.origin");
+
+        DsRecordDto relation = storage.loadRecordRelation("test.origin:child5");
+        assertEquals("test.origin:child5", relation.getId());
+        assertEquals("test.origin", relation.getOrigin());
+        assertEquals(parentId, relation.getParentId());
+        assertNull(relation.getData()); //Data is never loaded
+        assertNull(storage.loadRecordRelation("test.origin:does_not_exist"));
+    }
+
+    @Test
+    public void testLoadParentChain() throws Exception {
+        // top <- middle <- bottom, and orphan -> does_not_exist
+        storage.upsertRecord(createRelationTestRecord("test.origin:top", null));
+        storage.upsertRecord(createRelationTestRecord("test.origin:middle", "test.origin:top"));
+        storage.upsertRecord(createRelationTestRecord("test.origin:bottom", "test.origin:middle"));
+        storage.upsertRecord(createRelationTestRecord("test.origin:orphan", "test.origin:does_not_exist"));
+        // cycle1 <- cycle2 <- cycle1
+        storage.upsertRecord(createRelationTestRecord("test.origin:cycle1", "test.origin:cycle2"));
+        storage.upsertRecord(createRelationTestRecord("test.origin:cycle2", "test.origin:cycle1"));
+        storage.commit();
+
+        List<DsRecordDto> chain = storage.loadParentChain("test.origin:bottom");
+        assertEquals(List.of("test.origin:bottom", "test.origin:middle", "test.origin:top"),
+                     chain.stream().map(DsRecordDto::getId).collect(Collectors.toList()));
+        assertEquals("test.origin", chain.get(2).getOrigin());
+        assertNull(chain.get(2).getParentId());
+        assertNull(chain.get(0).getData()); //Data is never loaded
+
+        assertEquals(1, storage.loadParentChain("test.origin:top").size());
+        chain = storage.loadParentChain("test.origin:orphan");
+        assertEquals(1, chain.size());
+        assertEquals("test.origin:does_not_exist", chain.get(0).getParentId());
+        assertTrue(storage.loadParentChain("test.origin:does_not_exist").isEmpty());
+
+        // The recursion for a cycle stops at the maximum depth
+        assertEquals(DsStorage.PARENT_CHAIN_MAX_DEPTH + 1, storage.loadParentChain("test.origin:cycle1").size());
+    }
+
+    @Test
+    public void testLoadSubtree() throws Exception {
+        // top <- a <- a1, top <- b
+        storage.upsertRecord(createRelationTestRecord("test.origin:top", null));
+        storage.upsertRecord(createRelationTestRecord("test.origin:a", "test.origin:top"));
+        storage.upsertRecord(createRelationTestRecord("test.origin:b", "test.origin:top"));
+        storage.upsertRecord(createRelationTestRecord("test.origin:a1", "test.origin:a"));
+        storage.upsertRecord(createRelationTestRecord("test.origin:other", null));
+        storage.commit();
+
+        List<DsRecordDto> subtree = storage.loadSubtree("test.origin:top", 100);
+        assertEquals(List.of("test.origin:top", "test.origin:a", "test.origin:b", "test.origin:a1"),
+                     subtree.stream().map(DsRecordDto::getId).collect(Collectors.toList()));
+        assertEquals(storage.loadRecord("test.origin:a1"), subtree.get(3)); //All fields are loaded
+
+        assertEquals(List.of("test.origin:a", "test.origin:a1"),
+                     storage.loadSubtree("test.origin:a", 100).stream().map(DsRecordDto::getId).collect(Collectors.toList()));
+        assertEquals(1, storage.loadSubtree("test.origin:b", 100).size());
+        assertEquals(2, storage.loadSubtree("test.origin:top", 2).size());
+        assertTrue(storage.loadSubtree("test.origin:does_not_exist", 100).isEmpty());
+    }
+
+    private DsRecordDto createRelationTestRecord(String id, String parentId) {
+        DsRecordDto record = new DsRecordDto();
+        record.setId(id);
+        record.setOrigin("test.origin");
+        record.setParentId(parentId);
+        record.setData("data for " + id);
+        record.setRecordType(RecordTypeDto.MANIFESTATION);
+        return record;
+    }
+
+    @Test
+    public void testLoadRecordsAndChildrenIds() throws Exception {
+        String parentId="test.origin:mega_parent_id";
+        createMegaParent(parentId,"test.origin");
+
+        //Bulk load must give the same records as loading them one at a time, in the order of the ids
+        List<String> ids = List.of("test.origin:child7", parentId, "test.origin:child3", "test.origin:does_not_exist");
+        Map<String, DsRecordDto> records = storage.loadRecords(ids);
+        assertEquals(List.of("test.origin:child7", parentId, "test.origin:child3"), new ArrayList<>(records.keySet()));
+        for (DsRecordDto record : records.values()) {
+            assertEquals(storage.loadRecord(record.getId()), record);
+        }
+        assertTrue(storage.loadRecords(Collections.emptyList()).isEmpty());
+
+        //Bulk children ids must match the single parent variant, including order
+        Map<String, List<String>> childrenIds = storage.getChildrenIds(List.of(parentId, "test.origin:child1"));
+        assertEquals(storage.getChildrenIds(parentId), childrenIds.get(parentId));
+        assertEquals(1000, childrenIds.get(parentId).size());
+        assertEquals("test.origin:child1", childrenIds.get(parentId).get(0));
+        assertTrue(childrenIds.get("test.origin:child1").isEmpty());
+
+        //Bulk load with children ids must match loading them one at a time
+        List<DsRecordDto> withChildIds = storage.loadRecordsWithChildIds(ids);
+        assertEquals(3, withChildIds.size());
+        for (DsRecordDto record : withChildIds) {
+            assertEquals(storage.loadRecordWithChildIds(record.getId()), record);
+        }
     }
 
     /*
@@ -0,0 +1,92 @@
+package dk.kb.storage.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class ExportCompressionTest {
+
+    private static final Logger log = LoggerFactory.getLogger(ExportCompressionTest.class);
+
+    private static final List<ExportCompression> BOTH = List.of(ExportCompression.ZSTD, ExportCompression.GZIP);
+    private static final List<ExportCompression> GZIP_ONLY = List.of(ExportCompression.GZIP);
+
+    @Test
+    public void testNegotiate() {
+        assertNull(ExportCompression.negotiate(null, BOTH));
+        assertNull(ExportCompression.negotiate("br, deflate", BOTH));
+        assertNull(ExportCompression.negotiate("gzip", List.of()));
+        assertEquals(ExportCompression.GZIP, ExportCompression.negotiate("gzip, deflate, br", BOTH));
+        assertEquals(ExportCompression.GZIP, ExportCompression.negotiate("zstd, gzip", GZIP_ONLY));
+        assertNull(ExportCompression.negotiate("gzip;q=0", BOTH));
+        assertNull(ExportCompression.negotiate("*;q=0", BOTH));
+        if (ExportCompression.ZSTD.isAvailable()) {
+            // The server preference decides
+            assertEquals(ExportCompression.ZSTD, ExportCompression.negotiate("gzip, zstd;q=0.5", BOTH));
+            assertEquals(ExportCompression.ZSTD, ExportCompression.negotiate("*", BOTH));
+            assertEquals(ExportCompression.GZIP, ExportCompression.negotiate("*, zstd;q=0", BOTH));
+        }
+    }
+
+    @Test
+    public void testParseList() {
+        assertEquals(GZIP_ONLY, ExportCompression.parseList("gzip"));
+        assertEquals(GZIP_ONLY, ExportCompression.parseList(" GZIP , brotli"));
+        assertTrue(ExportCompression.parseList("").isEmpty());
+        assertTrue(ExportCompression.parseList(null).isEmpty());
+    }
+
+    @Test
+    public void testFromContentEncoding() throws IOException {
+        assertNull(ExportCompression.fromContentEncoding(null));
+        assertNull(ExportCompression.fromContentEncoding("identity"));
+        assertEquals(ExportCompression.GZIP, ExportCompression.fromContentEncoding("gzip"));
+        assertEquals(ExportCompression.ZSTD, ExportCompression.fromContentEncoding("zstd"));
+        assertThrows(IOException.class, () -> ExportCompression.fromContentEncoding("br"));
+    }
+
+    @Test
+    public void testGzipRoundTrip() throws IOException {
+        assertRoundTrip(ExportCompression.GZIP);
+    }
+
+    @Test
+    public void testZstdRoundTrip() throws IOException {
+        Assumptions.assumeTrue(ExportCompression.ZSTD.isAvailable(), "zstd is not available on this platform");
+        assertRoundTrip(ExportCompression.ZSTD);
+    }
+
+    private void assertRoundTrip(ExportCompression compression) throws IOException {
+        StringBuilder ndjson = new StringBuilder();
+        for (int i = 0 ; i < 1000 ; i++) {
+            ndjson.append("{\"id\":\"ds.tv:record").append(i).append("\",\"data\":\"<mods><title>Title ")
+                    .append(i).append("</title><genre>Drama</genre></mods>\"}\n");
+        }
+        byte[] plain = ndjson.toString().getBytes(StandardCharsets.UTF_8);
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream out = compression.compress(compressed)) {
+            out.write(plain);
+        }
+        log.info("{}: {} bytes compressed to {} bytes", compression, plain.length, compressed.size());
+        assertTrue(compressed.size() < plain.length / 5, "Repetitive XML records should compress well");
+
+        try (InputStream in = compression.decompress(new ByteArrayInputStream(compressed.toByteArray()))) {
+            assertEquals(ndjson.toString(), new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+}
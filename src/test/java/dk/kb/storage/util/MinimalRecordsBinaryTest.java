@@ -0,0 +1,129 @@
+package dk.kb.storage.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import dk.kb.storage.model.v1.DsRecordMinimalDto;
+
+public class MinimalRecordsBinaryTest {
+
+    private static final Logger log = LoggerFactory.getLogger(MinimalRecordsBinaryTest.class);
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        List<DsRecordMinimalDto> records = createRecords(1000);
+        byte[] binary = write(records, true);
+
+        List<DsRecordMinimalDto> read = read(binary);
+        assertEquals(records, read);
+    }
+
+    @Test
+    public void testNullsAndSpecialCharacters() throws IOException {
+        List<DsRecordMinimalDto> records = List.of(
+                record("ds.tv:æøå", 1700000000000000L, null, null),
+                record("ds.tv:æøå-2", 1700000000000000L, "", "0_kaltura"),
+                record("a", 1700000000000001L, "ref:☃", null),
+                record("", Long.MAX_VALUE, null, ""));
+
+        assertEquals(records, read(write(records, true)));
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        assertTrue(read(write(List.of(), true)).isEmpty());
+    }
+
+    @Test
+    public void testSizeComparedToJSON() throws IOException {
+        List<DsRecordMinimalDto> records = createRecords(1000);
+        int binarySize = write(records, true).length;
+        int jsonSize = new ObjectMapper().writeValueAsBytes(records).length;
+        log.info("{} minimal records: {} bytes as binary, {} bytes as JSON", records.size(), binarySize, jsonSize);
+        assertTrue(binarySize * 3 < jsonSize,
+                   "The binary format should be less than a third of the size of JSON, but was " + binarySize +
+                   " bytes vs. " + jsonSize + " bytes");
+    }
+
+    @Test
+    public void testOutOfOrder() throws IOException {
+        try (MinimalRecordsBinary.Writer writer = new MinimalRecordsBinary.Writer(new ByteArrayOutputStream())) {
+            writer.write("ds.tv:1", 10L, null, null);
+            assertThrows(IllegalArgumentException.class, () -> writer.write("ds.tv:2", 9L, null, null));
+        }
+    }
+
+    @Test
+    public void testTruncated() throws IOException {
+        List<DsRecordMinimalDto> records = createRecords(10);
+
+        // No end marker, as when the export fails on the server
+        byte[] unfinished = write(records, false);
+        assertThrows(UncheckedIOException.class, () -> read(unfinished));
+
+        // Cut in the middle of a record
+        byte[] complete = write(records, true);
+        byte[] cut = Arrays.copyOf(complete, complete.length - 5);
+        assertThrows(UncheckedIOException.class, () -> read(cut));
+    }
+
+    @Test
+    public void testInvalidHeader() {
+        assertThrows(IOException.class, () -> new MinimalRecordsBinary.Reader(
+                new ByteArrayInputStream("[{\"id\":\"ds.tv:1\"}]".getBytes())));
+    }
+
+    private static List<DsRecordMinimalDto> createRecords(int count) {
+        List<DsRecordMinimalDto> records = new ArrayList<>(count);
+        long mTime = 1700000000000000L;
+        for (int i = 0 ; i < count ; i++) {
+            mTime += 1 + (i % 7);
+            records.add(record("ds.tv:oai:io:" + String.format("%08d", i) + "-d3b1-4a3c-9ef2-7d8e1c6b5a4f", mTime,
+                               i % 3 == 0 ? null : "ref-" + i, i % 2 == 0 ? null : "0_k" + i));
+        }
+        return records;
+    }
+
+    private static DsRecordMinimalDto record(String id, long mTime, String referenceId, String kalturaId) {
+        return new DsRecordMinimalDto().id(id).mTime(mTime).referenceId(referenceId).kalturaId(kalturaId);
+    }
+
+    private static byte[] write(List<DsRecordMinimalDto> records, boolean finish) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (MinimalRecordsBinary.Writer writer = new MinimalRecordsBinary.Writer(out)) {
+            for (DsRecordMinimalDto record: records) {
+                writer.write(record.getId(), record.getmTime(), record.getReferenceId(), record.getKalturaId());
+            }
+            assertEquals(records.size(), writer.getCount());
+            if (finish) {
+                writer.finish();
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static List<DsRecordMinimalDto> read(byte[] binary) throws IOException {
+        List<DsRecordMinimalDto> records = new ArrayList<>();
+        try (MinimalRecordsBinary.Reader reader = new MinimalRecordsBinary.Reader(new ByteArrayInputStream(binary))) {
+            reader.forEachRemaining(records::add);
+            assertFalse(reader.hasNext());
+        }
+        return records;
+    }
+}
@@ -1,9 +1,18 @@
 package dk.kb.storage.util;
 
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,4 +44,108 @@ public class UniqueTimestampGeneratorTest {
 
     }	    
 
+    @Test
+    public void testUniqueTimestampsMultiThreaded() throws Exception {
+        int threads = 16;
+        int perThread = 20000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<long[]>> futures = new ArrayList<>();
+            for (int t = 0 ; t < threads ; t++) {
+                final boolean useReserve = t % 2 == 0;
+                futures.add(executor.submit(() -> {
+                    long[] stamps = new long[perThread];
+                    for (int i = 0 ; i < perThread ; i += useReserve ? 10 : 1) {
+                        if (useReserve) {
+                            long first = UniqueTimestampGenerator.reserve(10);
+                            for (int r = 0 ; r < 10 ; r++) {
+                                stamps[i+r] = first+r;
+                            }
+                        } else {
+                            stamps[i] = UniqueTimestampGenerator.next();
+                        }
+                    }
+                    return stamps;
+                }));
+            }
+
+            Set<Long> all = new HashSet<>();
+            for (Future<long[]> future : futures) {
+                long[] stamps = future.get();
+                for (int i = 0 ; i < stamps.length ; i++) {
+                    Assertions.assertTrue(all.add(stamps[i]), "Duplicate timestamp " + stamps[i]);
+                    if (i > 0) {
+                        Assertions.assertTrue(stamps[i-1] < stamps[i], "Timestamps must increase within a thread");
+                    }
+                }
+            }
+            Assertions.assertEquals(threads*perThread, all.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /*
+     * Throughput for 1 to 64 threads calling next(). Only logs the result.
+     * The number of timestamps is kept low, as the generator waits for the clock when it gets too far ahead.
+     * Benchmark: Only run with -Dbenchmark=true
+     */
+    @Test
+    @Tag("benchmark")
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    public void testThroughput() throws Exception {
+        int perThread = 1000;
+        for (int threads = 1 ; threads <= 64 ; threads *= 2) {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                List<Callable<Long>> tasks = new ArrayList<>();
+                for (int t = 0 ; t < threads ; t++) {
+                    tasks.add(() -> {
+                        long last = 0;
+                        for (int i = 0 ; i < perThread ; i++) {
+                            last = UniqueTimestampGenerator.next();
+                        }
+                        return last;
+                    });
+                }
+                long start = System.nanoTime();
+                for (Future<Long> future : executor.invokeAll(tasks)) {
+                    future.get();
+                }
+                long nanos = System.nanoTime()-start;
+                log.info("{} threads generated {} timestamps in {} ms: {} timestamps/ms",
+                         threads, threads*perThread, nanos/1000000, threads*perThread*1000000L/Math.max(1, nanos));
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    @Test
+    public void testReserve() {
+        long before = UniqueTimestampGenerator.next();
+        long first = UniqueTimestampGenerator.reserve(5000); // More than 1000 in the same millis
+        long after = UniqueTimestampGenerator.next();
+
+        Assertions.assertTrue(before < first);
+        Assertions.assertTrue(first + 5000 - 1 < after, "next() must not return a reserved timestamp");
+        Assertions.assertThrows(IllegalArgumentException.class, () -> UniqueTimestampGenerator.reserve(0));
+    }
+
+    @Test
+    public void testDriftIsCapped() {
+        // Reserving a large block moves the last used timestamp far ahead of the clock
+        long first = UniqueTimestampGenerator.reserve(300000);
+        Assertions.assertTrue(first - System.currentTimeMillis()*1000 <= UniqueTimestampGenerator.MAX_DRIFT_MILLIS*1000);
+
+        long start = System.currentTimeMillis();
+        long next = UniqueTimestampGenerator.next();
+        long now = System.currentTimeMillis();
+        Assertions.assertTrue(first + 300000 - 1 < next, "next() must not return a reserved timestamp");
+        Assertions.assertTrue(next - now*1000 <= UniqueTimestampGenerator.MAX_DRIFT_MILLIS*1000,
+                              "The timestamp should be at most " + UniqueTimestampGenerator.MAX_DRIFT_MILLIS +
+                              "ms ahead of the clock, but was " + (next - now*1000)/1000 + "ms ahead");
+        log.info("Waited {}ms for the clock to catch up", now-start);
+    }
+
 }